@@ -0,0 +1,231 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+   Times how the probing threads get addresses and store results, with
+   no probing: PingsBatch, as used by PingsClient, against the single
+   lock of the former PingsClient.setNewAddress(), reconstructed in
+   LockedQueue. Both hand out the addresses of the same Pings to 1, 2,
+   4, ... threads and count the Pings completed.
+
+   <p>Not part of the client. Run with "make bench" or
+   <tt>java BatchBenchmark [max_threads [nb_pings]]</tt>; exits with 1
+   if an address got no result.
+*/
+public class BatchBenchmark {
+    private static final int PINGS_SIZE = 1000;
+    private static final ProbeResult RESULT = new ProbeResult.Text("ICMP");
+
+    private static ServerProxy.Pings[] newPings(int nb_pings) {
+        ServerProxy.Pings[] all = new ServerProxy.Pings[nb_pings];
+        for (int p = 0; p < nb_pings; p++) {
+            all[p] = new ServerProxy.Pings();
+            all[p].columns = new PingsColumns(PINGS_SIZE);
+            for (int i = 0; i < PINGS_SIZE; i++)
+                all[p].columns.addIpv4(0xc0000200 + i % 256);
+            all[p].results = new ProbeResult[PINGS_SIZE];
+        }
+        return all;
+    }
+
+    /** Hands out the addresses of all the Pings, then returns the number completed */
+    private interface Scheme {
+        void work();
+        int getCompleted();
+    }
+
+    /** The PingsClient way: the threads drain the batches in order */
+    private static class LockFree implements Scheme {
+        private final PingsBatch[] m_batches;
+        private final AtomicInteger m_current = new AtomicInteger();
+        private final AtomicInteger m_completed = new AtomicInteger();
+
+        LockFree(ServerProxy.Pings[] all) {
+            m_batches = new PingsBatch[all.length];
+            for (int p = 0; p < all.length; p++)
+                m_batches[p] = new PingsBatch(all[p]);
+        }
+
+        public void work() {
+            int b;
+            while ((b = m_current.get()) < m_batches.length) {
+                int i = m_batches[b].claim();
+                if (i < 0) {
+                    m_current.compareAndSet(b, b + 1);
+                    continue;
+                }
+                if (m_batches[b].complete(i, RESULT))
+                    m_completed.incrementAndGet();
+            }
+        }
+
+        public int getCompleted() { return m_completed.get(); }
+    }
+
+    /**
+       setNewAddress() as it was, with a queue of 2 Pings: under the lock
+       of the queue, store the last result, count it, then look for the
+       next address across the queue. A complete Pings is replaced at
+       once by the next one, where the client started a thread to submit
+       it, and the threads without address wait() for it instead of
+       wait(100), so only the lock is timed.
+    */
+    private static class LockedQueue implements Scheme {
+        private final ServerProxy.Pings[] m_all;
+        private int m_next_pings = 0;
+        private int m_completed = 0;
+
+        private final int pings_queue_size = 2;
+        private final ServerProxy.Pings[] pings_queue = new ServerProxy.Pings[pings_queue_size];
+        private final int next_available_address[] = new int[pings_queue_size];
+        private final int remaining_addresses[] = new int[pings_queue_size];
+        private int next_pings_with_addresses = 0;
+
+        LockedQueue(ServerProxy.Pings[] all) {
+            m_all = all;
+            synchronized(pings_queue) {
+                for (int pings_index = 0; pings_index < pings_queue_size; pings_index++)
+                    fill(pings_index);
+            }
+        }
+
+        /** Puts the next Pings in the slot, or empties it */
+        private void fill(int pings_index) {
+            if (m_next_pings < m_all.length) {
+                pings_queue[pings_index] = m_all[m_next_pings++];
+                next_available_address[pings_index] = 0;
+                remaining_addresses[pings_index] = PINGS_SIZE;
+            }
+            else {
+                pings_queue[pings_index] = null;
+                next_available_address[pings_index] = -1;
+            }
+            pings_queue.notifyAll();
+        }
+
+        /** @return pings_index * PINGS_SIZE + address_index, -1 when all is done */
+        private int setNewAddress(ProbeResult last_result,
+                                  int current_pings_index, int current_address_index) {
+            synchronized(pings_queue) {
+                if (last_result != null) {
+                    ServerProxy.Pings pings = pings_queue[current_pings_index];
+                    pings.results[current_address_index] = last_result;
+                    remaining_addresses[current_pings_index] -= 1;
+                    if (remaining_addresses[current_pings_index] == 0) {
+                        m_completed++;
+                        fill(current_pings_index);
+                    }
+                }
+
+                int pings_index = next_pings_with_addresses;
+                int index_to_wait = next_pings_with_addresses;
+                while (true) {
+                    ServerProxy.Pings local_pings = pings_queue[pings_index];
+                    if (next_available_address[pings_index] != -1 && local_pings != null) {
+                        int address_index = next_available_address[pings_index];
+                        next_available_address[pings_index]++;
+                        if (next_available_address[pings_index] == local_pings.size()) {
+                            next_available_address[pings_index] = -1;
+                            next_pings_with_addresses = (next_pings_with_addresses + 1) % pings_queue_size;
+                        }
+                        return pings_index * PINGS_SIZE + address_index;
+                    }
+                    next_pings_with_addresses = (next_pings_with_addresses + 1) % pings_queue_size;
+                    pings_index = (pings_index + 1) % pings_queue_size;
+                    if (pings_index == index_to_wait && next_available_address[index_to_wait] == -1) {
+                        if (m_completed == m_all.length)
+                            return -1;
+                        try {
+                            pings_queue.wait();
+                        }
+                        catch (InterruptedException e) {
+                            return -1;
+                        }
+                    }
+                }
+            }
+        }
+
+        public void work() {
+            int next = setNewAddress(null, 0, 0);
+            while (next >= 0)
+                next = setNewAddress(RESULT, next / PINGS_SIZE, next % PINGS_SIZE);
+        }
+
+        public int getCompleted() {
+            synchronized(pings_queue) {
+                return m_completed;
+            }
+        }
+    }
+
+    /** @return the time to run the scheme on threads threads, in nanoseconds */
+    private static long run(final Scheme scheme, int threads) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread() {
+                    public void run() {
+                        try {
+                            start.await();
+                        }
+                        catch (InterruptedException e) {
+                            return;
+                        }
+                        scheme.work();
+                    }
+                };
+            workers[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread w : workers)
+            w.join();
+        return System.nanoTime() - begin;
+    }
+
+    /** @return the number of results missing from the Pings */
+    private static int check(ServerProxy.Pings[] all, Scheme scheme) {
+        int missing = (all.length - scheme.getCompleted()) * PINGS_SIZE;
+        for (ServerProxy.Pings pings : all)
+            for (ProbeResult r : pings.results)
+                if (r == null)
+                    missing++;
+        return missing;
+    }
+
+    /** @return the best time of a few runs of a scheme, in nanoseconds per address */
+    private static double time(boolean locked, int threads, int nb_pings) throws InterruptedException {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            ServerProxy.Pings[] all = newPings(nb_pings);
+            Scheme scheme = locked ? new LockedQueue(all) : new LockFree(all);
+            long ns = run(scheme, threads);
+            int missing = check(all, scheme);
+            if (missing != 0) {
+                System.out.println((locked ? "LockedQueue" : "PingsBatch") + " with " + threads +
+                                   " threads: " + missing + " addresses without result");
+                System.exit(1);
+            }
+            best = Math.min(best, ns);
+        }
+        return (double)best / ((long)nb_pings * PINGS_SIZE);
+    }
+
+    public static void main(String args[]) throws InterruptedException {
+        int max_threads = (args.length > 0) ? Integer.parseInt(args[0]) :
+            2 * Runtime.getRuntime().availableProcessors();
+        int nb_pings = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+
+        // Warm up both versions before timing them.
+        time(true, 2, nb_pings / 10 + 1);
+        time(false, 2, nb_pings / 10 + 1);
+        System.out.println("threads  setNewAddress  PingsBatch  (ns per address)");
+        for (int threads = 1; threads <= max_threads; threads *= 2) {
+            double locked_ns = time(true, threads, nb_pings);
+            double batch_ns = time(false, threads, nb_pings);
+            System.out.printf("%7d  %13.1f  %10.1f  %.1fx%n",
+                              threads, locked_ns, batch_ns, locked_ns / batch_ns);
+        }
+    }
+}
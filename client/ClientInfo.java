@@ -392,4 +392,27 @@ public class ClientInfo {
         setPreferences(uuid, nickname);
     }
 
+    /**
+       Constructor for another identity on the same host: the OS, the
+       network adapter and the probe settings are those of network,
+       not detected again.
+       If uuid is empty, we will generate one.
+    */
+    public ClientInfo(ClientInfo network, String uuid, String nickname) {
+        m_os_type = network.m_os_type;
+        m_local_addr = network.m_local_addr;
+        m_global_addr = network.m_global_addr;
+        m_adapter = network.m_adapter;
+        m_number_of_pings = network.m_number_of_pings;
+        m_number_of_tcp_pings = network.m_number_of_tcp_pings;
+        m_number_of_traces = network.m_number_of_traces;
+        m_tcp_timeout = network.m_tcp_timeout;
+        m_client_geoip_info = network.m_client_geoip_info;
+
+        m_nickname = nickname;
+        m_uuid = uuid;
+        if (uuid == null || uuid.length() == 0)
+            this.setUUID();
+    }
+
 }
@@ -1,10 +1,31 @@
 import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Prober class that probes an IP address with multiple methods. Right now
- * it includes all the Prober implementations: IcmpPinger, TcpPinger and
- * TraceRouter. It returns all the result strings together,
- * separated by a ';'.
+ * it includes all the Prober implementations: NativeIcmpPinger (which
+ * falls back to IcmpPinger), NioTcpPinger and ParallelTraceRouter (which
+ * falls back to TraceRouter). It returns all
+ * the results together in a ProbeResult.Composite, whose string
+ * separates them by a ';'.
+ * <p>
+ * By default the probers run one after the other. In parallel mode (see
+ * setParallel()) they all start at once on a pool shared by all the
+ * CompositeProbers, so an address costs the longest probe instead of
+ * their sum. Either way, the number of probes of a protocol running at
+ * once in the JVM can be capped with setConcurrencyLimit(), for example
+ * to spare the translation table of small routers from too many TCP
+ * connections.
  *
  * @author Christian Hudon <chrish@pianocktail.org>
  */
@@ -12,6 +33,42 @@ class CompositeProber implements Prober {
     private Prober m_probers[];
     private String prob_result = "first";
 
+    /** True to run the probers at the same time */
+    private boolean m_parallel = false;
+
+    /** Runs the probers of the CompositeProbers in parallel mode */
+    private static ExecutorService s_executor = null;
+
+    /** The caps set by setConcurrencyLimit(), by protocol */
+    private static final Map<String, Limit> s_limits = new HashMap<String, Limit>();
+
+    /**
+       The cap of a protocol. Resized in place, so the probes running
+       give their slot back to the semaphore they took it from: a cap
+       lowered below the probes running lets no new one start until
+       enough are done.
+    */
+    @SuppressWarnings("serial")
+    private static class Limit extends Semaphore {
+        /** The permits of no cap, more than probes can run */
+        static final int NONE = Integer.MAX_VALUE / 2;
+
+        /** The current cap, guarded by s_limits */
+        private int m_max = 0;
+
+        Limit() {
+            super(0, true);
+        }
+
+        void resize(int max) {
+            if (max > m_max)
+                release(max - m_max);
+            else if (max < m_max)
+                reducePermits(m_max - max);
+            m_max = max;
+        }
+    }
+
     public CompositeProber(Prober[] probers, String prob_result){
 	m_probers = probers;
 
@@ -21,32 +78,92 @@ class CompositeProber implements Prober {
 
     public CompositeProber(ClientInfo client_info, String prob_result) {
         m_probers = new Prober[3];
-        m_probers[0] = new IcmpPinger(client_info);
-        m_probers[1] = new TcpPinger(client_info);
-        m_probers[2] = new TraceRouter(client_info);
+        m_probers[0] = new NativeIcmpPinger(client_info);
+        m_probers[1] = new NioTcpPinger(client_info);
+        m_probers[2] = new ParallelTraceRouter(client_info);
 
 	if(prob_result.equals("first") || prob_result.equals("and"))
 	    this.prob_result = prob_result;
     }
 
     public String getLastProbe() {
-        boolean first_one_done = false;
-        StringBuilder sb = new StringBuilder();
+        return getLastResult().toString();
+    }
 
-        for (Prober p : m_probers) {
-	    if(p == null)
-		continue;
-            if (first_one_done) {
-                sb.append("; ");
-            }
-            else {
-                first_one_done = true;
+    /**
+       Selects whether the probers run at the same time (true) or one
+       after the other (false, the default).
+    */
+    public void setParallel(boolean parallel) {
+        m_parallel = parallel;
+    }
+
+    /**
+       Caps the number of probes of one protocol running at once, over
+       all the CompositeProbers. Probes over the cap wait for a slot.
+
+       @param protocol "ICMP", "TCP" or "TROUTE"
+       @param max the cap, or 0 for none
+    */
+    public static void setConcurrencyLimit(String protocol, int max) {
+        synchronized (s_limits) {
+            Limit limit = s_limits.get(protocol);
+            if (limit == null) {
+                if (max <= 0)
+                    return;
+                limit = new Limit();
+                s_limits.put(protocol, limit);
             }
+            limit.resize((max <= 0) ? Limit.NONE : max);
+        }
+    }
+
+    /** @return the cap of the protocol of p, or null if it never had one */
+    private static Semaphore getLimit(Prober p) {
+        String protocol;
+        if (p instanceof NativeIcmpPinger || p instanceof IcmpPinger)
+            protocol = "ICMP";
+        else if (p instanceof NioTcpPinger || p instanceof TcpPinger)
+            protocol = "TCP";
+        else if (p instanceof ParallelTraceRouter || p instanceof TraceRouter)
+            protocol = "TROUTE";
+        else
+            return null;
+        synchronized (s_limits) {
+            return s_limits.get(protocol);
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (s_executor == null)
+            s_executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                                                new SynchronousQueue<Runnable>(),
+                                                new Launcher.DaemonThreadFactory("CompositeProber"));
+        return s_executor;
+    }
 
-            sb.append(p.getLastProbe());
+    /** Probes addr with p, within the cap of its protocol. */
+    private static int probe(Prober p, InetAddress addr) throws InterruptedException {
+        Semaphore limit = getLimit(p);
+        if (limit == null)
+            return p.probe(addr);
+        limit.acquire();
+        try {
+            return p.probe(addr);
+        }
+        finally {
+            limit.release();
         }
+    }
 
-        return sb.toString();
+    public ProbeResult getLastResult() {
+        int nb_parts = 0;
+        ProbeResult[] parts = new ProbeResult[m_probers.length];
+        for (Prober p : m_probers) {
+	    if(p != null)
+		parts[nb_parts++] = p.getLastResult();
+        }
+        return new ProbeResult.Composite(Arrays.copyOf(parts, nb_parts));
     }
 
     public void clearProbe() {
@@ -61,11 +178,12 @@ class CompositeProber implements Prober {
 	if (prob_result == "first" && m_probers[0] == null)
 	    succeeded = false;
 
+	int[] retvals = probeAll(m_probers, addr, m_parallel);
 	for (int i=0; i<m_probers.length; i++) {
 	    Prober p = m_probers[i];
 	    if(p == null)
 		continue;
-	    boolean succ = (p.probe(addr) == 0);
+	    boolean succ = (retvals[i] == 0);
 	    if (prob_result == "first" && i == 0)
 		succeeded = succ;
 	    else if(prob_result == "and")
@@ -74,4 +192,61 @@ class CompositeProber implements Prober {
         return (succeeded) ? 0 : 1;
 
     }
+
+    /**
+       Probes addr with all the probers, within the caps of their
+       protocols. In parallel, they are started on the shared pool and
+       waited for; if interrupted, the probes are interrupted too.
+
+       @param probers the probers, null entries are skipped
+       @return the return code of each prober
+    */
+    static int[] probeAll(Prober[] probers, final InetAddress addr, boolean parallel)
+        throws InterruptedException {
+        int[] retvals = new int[probers.length];
+        if (!parallel) {
+            for (int i = 0; i < probers.length; i++) {
+                if (probers[i] != null)
+                    retvals[i] = probe(probers[i], addr);
+            }
+            return retvals;
+        }
+
+        ExecutorService executor = getExecutor();
+        Future<?>[] futures = new Future<?>[probers.length];
+        try {
+            for (int i = 0; i < probers.length; i++) {
+                final Prober p = probers[i];
+                if (p == null)
+                    continue;
+                futures[i] = executor.submit(new Callable<Integer>() {
+                        public Integer call() throws InterruptedException {
+                            return Integer.valueOf(probe(p, addr));
+                        }
+                    });
+            }
+            for (int i = 0; i < probers.length; i++) {
+                if (futures[i] != null)
+                    retvals[i] = ((Integer)futures[i].get()).intValue();
+            }
+            return retvals;
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof InterruptedException)
+                throw (InterruptedException)cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            if (cause instanceof Error)
+                throw (Error)cause;
+            throw new RuntimeException(cause);
+        }
+        finally {
+            // Nothing left when all went well; else stop the others.
+            for (Future<?> future : futures) {
+                if (future != null)
+                    future.cancel(true);
+            }
+        }
+    }
 }
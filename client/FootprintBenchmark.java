@@ -0,0 +1,222 @@
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+   Compares the heap taken by the addresses and geoip information of
+   Pings kept in PingsColumns against the former InetAddress[] and
+   GeoipInfo[] of ServerProxy.Pings, reconstructed in Legacy, the time
+   to read them from the answer of the server, and the time to get the
+   InetAddress and GeoipInfo of every address of a Pings, as the probes
+   and the GUI do (the best of a few rounds of each, after a warm-up,
+   taken in turn). The heap of PingsColumns is also measured once all
+   their InetAddresses were made. The answers are like
+   the server's: PINGS_SIZE addresses, some IPv6, with the cities of a
+   few hundred places and some addresses without geoip information.
+   Checks first that both give the same addresses and geoip information.
+
+   <p>The strings PingsColumns shares between all the Pings are counted
+   out, as they are bounded by the places there are.
+
+   <p>Not part of the client. Run with "make bench" or
+   <tt>java FootprintBenchmark [nb_pings]</tt>; exits with 1 if an
+   address or its geoip information differs.
+*/
+public class FootprintBenchmark {
+    private static final int PINGS_SIZE = 1000;
+    private static final int PLACES = 300;
+    private static final int ROUNDS = 5;
+
+    /** Keeps the JIT from dropping the accesses timed */
+    private static volatile long s_sink;
+    private static final Random s_random = new Random(42);
+
+    /** The former ServerProxy.Pings, from the JSON tree of the answer */
+    private static class Legacy {
+        final InetAddress[] addresses;
+        final GeoipInfo[] geoip_info;
+
+        Legacy(String answer) throws IOException {
+            JSONObject json = (JSONObject)JSONValue.parse(answer);
+            JSONArray pings = (JSONArray)json.get("pings");
+            addresses = new InetAddress[pings.size()];
+            for (int i = 0; i < addresses.length; i++)
+                addresses[i] = InetAddress.getByName((String)pings.get(i));
+            JSONArray geoip = (JSONArray)json.get("geoip");
+            geoip_info = new GeoipInfo[addresses.length];
+            for (int i = 0; i < Math.min(addresses.length, geoip.size()); i++)
+                if (geoip.get(i) != null)
+                    geoip_info[i] = new GeoipInfo((JSONObject)geoip.get(i));
+        }
+    }
+
+    private static String address() {
+        if (s_random.nextInt(50) == 0)
+            return "2001:db8:" + Integer.toHexString(s_random.nextInt(0x10000)) + "::" +
+                Integer.toHexString(1 + s_random.nextInt(0xffff));
+        return (1 + s_random.nextInt(223)) + "." + s_random.nextInt(256) + "." +
+            s_random.nextInt(256) + "." + s_random.nextInt(256);
+    }
+
+    /** @return an answer of the server to /get_pings */
+    private static String answer() {
+        StringBuilder sb = new StringBuilder("{\"token\": \"t\", \"min_round_time\": 0, \"pings\": [");
+        for (int i = 0; i < PINGS_SIZE; i++)
+            sb.append(i > 0 ? ", " : "").append('"').append(address()).append('"');
+        sb.append("], \"geoip\": [");
+        for (int i = 0; i < PINGS_SIZE; i++) {
+            sb.append(i > 0 ? ", " : "");
+            if (s_random.nextInt(20) == 0) {
+                sb.append("null");
+                continue;
+            }
+            int place = s_random.nextInt(PLACES);
+            sb.append("{\"city\": \"City ").append(place)
+                .append("\", \"region_name\": \"Region ").append(place / 10)
+                .append("\", \"country_name\": \"Country ").append(place / 30)
+                .append("\", \"longitude\": ").append(-180 + 360.0 * place / PLACES)
+                .append(", \"latitude\": ").append(-60 + 120.0 * place / PLACES).append('}');
+        }
+        return sb.append("]}").toString();
+    }
+
+    private static PingsColumns columns(String answer) throws IOException, ParseException {
+        PingsJsonReader reader = new PingsJsonReader();
+        new JSONParser().parse(new StringReader(answer), reader);
+        return reader.columns;
+    }
+
+    private static Object read(String answer, boolean columns) throws IOException, ParseException {
+        return columns ? columns(answer) : new Legacy(answer);
+    }
+
+    /** Gets the InetAddress and GeoipInfo of every address */
+    private static void access(Object pings) {
+        long sum = 0;
+        if (pings instanceof Legacy) {
+            Legacy legacy = (Legacy)pings;
+            for (int i = 0; i < legacy.addresses.length; i++) {
+                sum += legacy.addresses[i].hashCode();
+                GeoipInfo info = legacy.geoip_info[i];
+                if (info != null)
+                    sum += (long)info.latitude;
+            }
+        }
+        else {
+            PingsColumns columns = (PingsColumns)pings;
+            for (int i = 0; i < columns.size(); i++) {
+                sum += columns.getAddress(i).hashCode();
+                GeoipInfo info = columns.getGeoipInfo(i);
+                if (info != null)
+                    sum += (long)info.latitude;
+            }
+        }
+        s_sink += sum;
+    }
+
+    private static boolean same(String a, String b) {
+        return (a == null) ? b == null : a.equals(b);
+    }
+
+    private static boolean same(GeoipInfo a, GeoipInfo b) {
+        if (a == null || b == null)
+            return a == b;
+        return same(a.city, b.city) && same(a.region, b.region) && same(a.country, b.country) &&
+            a.longitude == b.longitude && a.latitude == b.latitude;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // Until a collection frees nothing more
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            Thread.sleep(20);
+            long now = runtime.totalMemory() - runtime.freeMemory();
+            if (now >= used)
+                break;
+            used = now;
+        }
+        return used;
+    }
+
+    public static void main(String args[]) throws Exception {
+        int nb_pings = (args.length > 0) ? Integer.parseInt(args[0]) : 50;
+        String[] answers = new String[nb_pings];
+        for (int p = 0; p < nb_pings; p++)
+            answers[p] = answer();
+
+        int differences = 0;
+        for (int p = 0; p < nb_pings; p++) {
+            Legacy legacy = new Legacy(answers[p]);
+            PingsColumns columns = columns(answers[p]);
+            if (columns.size() != legacy.addresses.length) {
+                System.out.println("DIFFERENT SIZE " + columns.size() + " for Pings " + p);
+                differences++;
+                continue;
+            }
+            for (int i = 0; i < columns.size(); i++)
+                if (!columns.getAddress(i).equals(legacy.addresses[i]) ||
+                    !same(columns.getGeoipInfo(i), legacy.geoip_info[i])) {
+                    System.out.println("DIFFERENT address " + i + " of Pings " + p + ": " +
+                                       columns.getAddress(i) + " " + legacy.addresses[i]);
+                    differences++;
+                }
+        }
+        System.out.println(nb_pings + " Pings of " + PINGS_SIZE + " addresses, " +
+                           differences + " different");
+        if (differences != 0)
+            System.exit(1);
+
+        String[] names = {"InetAddress[] + GeoipInfo[]", "PingsColumns"};
+        long[] read_ns = {Long.MAX_VALUE, Long.MAX_VALUE};
+        long[] access_ns = {Long.MAX_VALUE, Long.MAX_VALUE};
+        for (int round = -1; round < ROUNDS; round++) {
+            for (int kind = 0; kind < 2; kind++) {
+                Object[] all = new Object[nb_pings];
+                long begin = System.nanoTime();
+                for (int p = 0; p < nb_pings; p++)
+                    all[p] = read(answers[p], kind == 1);
+                long read = (System.nanoTime() - begin) / nb_pings;
+                // Twice: the first access of PingsColumns makes the InetAddresses
+                begin = System.nanoTime();
+                for (int p = 0; p < nb_pings; p++) {
+                    access(all[p]);
+                    access(all[p]);
+                }
+                long access = (System.nanoTime() - begin) / nb_pings;
+                if (round >= 0) {
+                    read_ns[kind] = Math.min(read_ns[kind], read);
+                    access_ns[kind] = Math.min(access_ns[kind], access);
+                }
+            }
+        }
+        for (int kind = 0; kind < 2; kind++)
+            System.out.println(names[kind] + ": read in " + read_ns[kind] / 1000 +
+                               "us per Pings, every address and geoip got twice in " +
+                               access_ns[kind] / 1000 + "us");
+
+        for (int kind = 0; kind < 3; kind++) {
+            List<Object> kept = new ArrayList<Object>(nb_pings);
+            long before = usedHeap();
+            for (int p = 0; p < nb_pings; p++) {
+                kept.add(read(answers[p], kind > 0));
+                if (kind == 2)
+                    access(kept.get(p));
+            }
+            long bytes = usedHeap() - before;
+            System.out.println(((kind < 2) ? names[kind] : "PingsColumns, every InetAddress made") +
+                               ": " + bytes / ((long)nb_pings * PINGS_SIZE) + "B per address");
+            kept.clear();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+   The ServerTransport of java.net.http.HttpClient (Java 11 and
+   later): the requests share persistent connections, multiplexed over
+   one HTTP/2 connection when the server speaks it (HTTP/1.1 otherwise,
+   for example through plain HTTP to a server without h2c). At most
+   max_connections requests run at once, until the body of their answer
+   is closed; the others wait for one to end, within their deadline,
+   which bounds the request up to the headers of its answer.
+
+   <p>Not part of SRC, as the client still builds and runs on older
+   Java: built by "make http2" and loaded by name by
+   ServerProxy.newTransport().
+*/
+public class HttpClientTransport implements ServerTransport {
+    private final HttpClient m_client;
+    private final String m_base;
+    private final Semaphore m_slots;
+
+    public HttpClientTransport(String hostname, int port, int max_connections) {
+        m_client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .build();
+        m_base = "http://" + hostname + ":" + port;
+        m_slots = new Semaphore(Math.max(1, max_connections), true);
+    }
+
+    public Response post(String path, Map<String, String> headers, Body body, long timeout_ms)
+        throws IOException {
+        long start = System.currentTimeMillis();
+        try {
+            if (!m_slots.tryAcquire(timeout_ms, TimeUnit.MILLISECONDS))
+                throw new SocketTimeoutException("No connection to the server free in " + timeout_ms + "ms");
+            boolean answered = false;
+            try {
+                //The body is sent from memory, as written: compressed, if the
+                //caller compresses it
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                body.writeTo(bytes);
+                long left = timeout_ms - (System.currentTimeMillis() - start);
+                if (left <= 0)
+                    throw new SocketTimeoutException("Server request deadline passed");
+                HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(m_base + path))
+                    .timeout(Duration.ofMillis(left))
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(bytes.toByteArray()));
+                for (Map.Entry<String, String> h : headers.entrySet())
+                    request.header(h.getKey(), h.getValue());
+                HttpResponse<InputStream> response =
+                    m_client.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+
+                Map<String, String> answer_headers = new HashMap<String, String>();
+                for (Map.Entry<String, List<String>> h : response.headers().map().entrySet())
+                    if (!h.getValue().isEmpty())
+                        answer_headers.put(h.getKey().toLowerCase(), h.getValue().get(0));
+                Response answer = new Response(response.statusCode(), answer_headers,
+                                               new SlotStream(response.body(), m_slots));
+                answered = true;
+                return answer;
+            }
+            finally {
+                //Else the slot is given back with the body of the answer
+                if (!answered)
+                    m_slots.release();
+            }
+        }
+        catch (HttpTimeoutException e) {
+            throw timeout(e);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during a request to the server");
+        }
+    }
+
+    /** @return e as the SocketTimeoutException of the other transport */
+    private static SocketTimeoutException timeout(HttpTimeoutException e) {
+        SocketTimeoutException timeout = new SocketTimeoutException(e.getMessage());
+        timeout.initCause(e);
+        return timeout;
+    }
+
+    /** HttpClient closes its idle connections by itself. */
+    public void close() {
+    }
+}
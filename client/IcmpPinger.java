@@ -17,6 +17,9 @@ public class IcmpPinger implements Prober {
     /** A reference to ClientInfo */
     private ClientInfo m_info;
 
+    /** The ping command is killed after this many milliseconds (ping -w 15, plus a margin) */
+    static final int TIMEOUT = 20000;
+
     /** Describes OS-specific commands for external ping command */
     private static final String[][] OS_SPECIFIC_COMMAND =  {
         // The number of pings parameter must be LAST because it is
@@ -30,8 +33,9 @@ public class IcmpPinger implements Prober {
         {"ping", "-w", "2000", "-n"}
     };
 
-    /** OS-specific regexes to get the summary line */
-    private static final String[][] OS_SPECIFIC_SUMMARY_REGEX = {
+    /** OS-specific regexes to get the summary line, in the order of
+        ProbeOutputParser's SUMMARY_ formats */
+    static final String[][] OS_SPECIFIC_SUMMARY_REGEX = {
         // On *nixes: "7 packets transmitted, 6 received, 14% packet loss, time 6014ms"
         {"(([0-9]+)\\s[\\w|\\s]+),\\s(([0-9]+)\\s[\\w|\\s]+),.*(time)\\s(.*)", "$2 $4 $6"},
 
@@ -47,6 +51,8 @@ public class IcmpPinger implements Prober {
 
     public String getLastProbe() { return m_icmp_times; }
 
+    public ProbeResult getLastResult() { return new ProbeResult.Text(m_icmp_times); }
+
     public void clearProbe() { m_icmp_times = ""; }
 
     /**
@@ -57,6 +63,21 @@ public class IcmpPinger implements Prober {
     */
     public static String getSummary(String[] summary_regex,
                                     List<String> stdout_lines) {
+        int format = -1;
+        for (int i = 0; i < OS_SPECIFIC_SUMMARY_REGEX.length; i++)
+            if (summary_regex == OS_SPECIFIC_SUMMARY_REGEX[i])
+                format = i;
+        if (format < 0 || ProbeOutputParser.hasLineTerminator(stdout_lines))
+            return getSummaryRegex(summary_regex, stdout_lines);
+        return ProbeOutputParser.get().getSummary(format, stdout_lines);
+    }
+
+    /**
+       getSummary() with regexes: the reference ProbeOutputParser is
+       checked against, also used for output it does not handle.
+    */
+    static String getSummaryRegex(String[] summary_regex,
+                                  List<String> stdout_lines) {
 	Pattern summary = Pattern.compile(summary_regex[0]);
         for (String s : stdout_lines)
             if (summary.matcher(s).matches())
@@ -79,6 +100,16 @@ public class IcmpPinger implements Prober {
        @return The ping times
     */
     public static String getTimes(List<String> stdout_lines) {
+        if (ProbeOutputParser.hasLineTerminator(stdout_lines))
+            return getTimesRegex(stdout_lines);
+        return ProbeOutputParser.get().getTimes(stdout_lines);
+    }
+
+    /**
+       getTimes() with regexes: the reference ProbeOutputParser is
+       checked against, also used for output it does not handle.
+    */
+    static String getTimesRegex(List<String> stdout_lines) {
 	String ret = "";
 	Pattern times = Pattern.compile(".*\\s(time|temps|tiempo|tempo|durata|Zeit|时间)(=|<)[0-9]+.*"); // osx/bsd/nunux/windows?
 	for (String s : stdout_lines){
@@ -154,7 +185,7 @@ public class IcmpPinger implements Prober {
         LinkedList<String> stderr_lines = new LinkedList<String>();
   
         // FIXME: Check if 20 is always ok for ping.
-        int retval = Launcher.launch(command, stdout_lines, stderr_lines, 20);
+        int retval = Launcher.launch(command, stdout_lines, stderr_lines, 20, TIMEOUT);
 
         m_icmp_times = "ICMP " + addr.toString().split("/")[1] + " "; // the protocol+target
         if (retval==0) {
@@ -183,50 +214,31 @@ public class IcmpPinger implements Prober {
         m_info = this_info;
     }
 
-    public static void main(String args[]) throws InterruptedException {
-	System.out.println("Test parsing of ICMP summary on windows");
-	// Tests getSummary on Windows regex as there is difference in output depending of the OS language.
-	String[] to_test= {" Packets: Sent = 10, Received = 9, Lost = 1 (10% loss)", //
-			   "    Packets: Sent = 5, Received = 5, Lost = 0 (0% loss),",//Windows XP Pro SP3 (English)
-			   "Paquets : envoyés = 5, reçus = 5, perdus = 0 (perte 0%),", // Windows Vista Sp2
-			   "     Paquets : envoyes = 10, recus = 9, perdus = 1 (perte 10%),",
-			   "     Paquets : envoyés = 10, recus = 9, perdus = 1 (perte 10%),",
-			   "     Paquets : envoyes = 10, reçus = 9, perdus = 1 (perte 10%),",
-			   "     Paquets : envoyés = 10, reçus = 9, perdus = 1 (perte 10%),",
-			   "    数据包: 已发送 = 5，已接收 = 5，丢失 = 0 (0% 丢失)，",
-	};
-        ArrayList<String> out = new ArrayList<String>();
-	for (int i = 0; i < to_test.length; i++){
-	    out.add(to_test[i]);
-	    System.out.println(IcmpPinger.getSummary(OS_SPECIFIC_SUMMARY_REGEX[2], out));
-	    out.remove(0);
-	}
+    /*
+       Test vectors: outputs seen on the ping commands of many systems,
+       used by main() and by ParserBenchmark.
+    */
+    static final String[] TEST_WINDOWS_SUMMARIES = {
+	    " Packets: Sent = 10, Received = 9, Lost = 1 (10% loss)", //
+	    "    Packets: Sent = 5, Received = 5, Lost = 0 (0% loss),",//Windows XP Pro SP3 (English)
+	    "Paquets : envoyés = 5, reçus = 5, perdus = 0 (perte 0%),", // Windows Vista Sp2
+	    "     Paquets : envoyes = 10, recus = 9, perdus = 1 (perte 10%),",
+	    "     Paquets : envoyés = 10, recus = 9, perdus = 1 (perte 10%),",
+	    "     Paquets : envoyes = 10, reçus = 9, perdus = 1 (perte 10%),",
+	    "     Paquets : envoyés = 10, reçus = 9, perdus = 1 (perte 10%),",
+	    "    数据包: 已发送 = 5，已接收 = 5，丢失 = 0 (0% 丢失)，",
+    };
 
-	System.out.println("\nTest parsing of ICMP summary on linux");
-	// Tests getSummary regex as there is difference in output depending of the OS language.
-	String[] to_test3 = {
+    static final String[] TEST_LINUX_SUMMARIES = {
 	    "3 packets transmitted, 0 received, 100% packet loss, time 1999ms",//FC14
-	};
-	for (int i = 0; i < to_test3.length; i++){
-	    out.add(to_test3[i]);
-	    System.out.println(IcmpPinger.getSummary(OS_SPECIFIC_SUMMARY_REGEX[0], out));
-	    out.remove(0);
-	}
-	System.out.println("\nTest parsing of ICMP summary on OSX");
-	// Tests getSummary regex as there is difference in output depending of the OS language.
-	String[] to_test4 = {
+    };
+
+    static final String[] TEST_OSX_SUMMARIES = {
 	    "35 packets transmitted, 0 packets received, 100.0% packet loss",//OSX lab computer
 	    "5 packets transmitted, 5 packets received, 0.0% packet loss" //OSX 10.7, OSX 10.7.5, 10.8.2, 10.6.8
-	};
-	for (int i = 0; i < to_test4.length; i++){
-	    out.add(to_test4[i]);
-	    System.out.println(IcmpPinger.getSummary(OS_SPECIFIC_SUMMARY_REGEX[1], out));
-	    out.remove(0);
-	}
+    };
 
-	// Test getTimes
-	System.out.println("\nTest parsing of ICMP individual outputs");
-	String[] to_test2 = {
+    static final String[] TEST_TIMES = {
 	    "64 bytes from nuq04s08-in-f31.1e100.net (74.125.224.127): icmp_seq=1 ttl=53 time=1.97 ms", //Some linux
 	    "64 bytes from 127.0.0.1: icmp_seq=1 ttl=64 time=0.040 ms", //linux
 	    "64 bytes from 173.194.75.94: icmp_seq=2 ttl=45 time=454.709 ms", //OSX 10.7, 10.6.8, 10.7.5, 10.8.2
@@ -253,9 +265,37 @@ public class IcmpPinger implements Prober {
 	    //Output from a lab member
 	    "来自 74.125.135.94 的回复: 字节=32 时间=40ms TTL=40",
 
-	};
-	for (int i = 0; i < to_test2.length; i++){
-	    out.add(to_test2[i]);
+    };
+
+    public static void main(String args[]) throws InterruptedException {
+	System.out.println("Test parsing of ICMP summary on windows");
+	// Tests getSummary on Windows regex as there is difference in output depending of the OS language.
+        ArrayList<String> out = new ArrayList<String>();
+	for (int i = 0; i < TEST_WINDOWS_SUMMARIES.length; i++){
+	    out.add(TEST_WINDOWS_SUMMARIES[i]);
+	    System.out.println(IcmpPinger.getSummary(OS_SPECIFIC_SUMMARY_REGEX[2], out));
+	    out.remove(0);
+	}
+
+	System.out.println("\nTest parsing of ICMP summary on linux");
+	// Tests getSummary regex as there is difference in output depending of the OS language.
+	for (int i = 0; i < TEST_LINUX_SUMMARIES.length; i++){
+	    out.add(TEST_LINUX_SUMMARIES[i]);
+	    System.out.println(IcmpPinger.getSummary(OS_SPECIFIC_SUMMARY_REGEX[0], out));
+	    out.remove(0);
+	}
+	System.out.println("\nTest parsing of ICMP summary on OSX");
+	// Tests getSummary regex as there is difference in output depending of the OS language.
+	for (int i = 0; i < TEST_OSX_SUMMARIES.length; i++){
+	    out.add(TEST_OSX_SUMMARIES[i]);
+	    System.out.println(IcmpPinger.getSummary(OS_SPECIFIC_SUMMARY_REGEX[1], out));
+	    out.remove(0);
+	}
+
+	// Test getTimes
+	System.out.println("\nTest parsing of ICMP individual outputs");
+	for (int i = 0; i < TEST_TIMES.length; i++){
+	    out.add(TEST_TIMES[i]);
 	    System.out.println(IcmpPinger.getTimes(out));
 	    out.remove(0);
 	}
@@ -0,0 +1,293 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+/**
+   Thin wrapper around a Linux unprivileged ICMP socket
+   (<tt>socket(AF_INET, SOCK_DGRAM, IPPROTO_ICMP)</tt>), reached through
+   the small JNI shim in jni/IcmpSocket.c.
+
+   <p>The kernel only lets processes whose group is inside
+   <tt>net.ipv4.ping_group_range</tt> open such sockets. Use isSupported()
+   before creating an IcmpSocket; callers are expected to fall back to
+   the external ping command when it returns false.
+
+   <p>The kernel rewrites the ICMP identifier of every echo request with
+   the socket's own identifier and only delivers the matching echo
+   replies, so replies are told apart by sequence number only. ICMP
+   errors about our requests (time exceeded, destination unreachable)
+   are also received, from the address of the router that sent them
+   and with the sequence number of the request.
+*/
+public class IcmpSocket {
+    /// Logging
+    private final static Logger LOGGER = Logger.getLogger(IcmpSocket.class.getName());
+
+    /** Name of the native library (libpingsicmp.so) */
+    private static final String LIBRARY_NAME = "pingsicmp";
+
+    /** Number of payload bytes after the ICMP header, same as ping's default */
+    public static final int PAYLOAD_SIZE = 56;
+
+    /** null until the support detection was done */
+    private static Boolean s_supported = null;
+
+    /** The native file descriptor, -1 once closed */
+    private int m_fd;
+
+    /**
+       Held for reading around the native calls on m_fd and for writing
+       by close(), so the descriptor is not closed (and its number given
+       to another file) while a send or a receive uses it
+    */
+    private final ReadWriteLock m_fd_lock = new ReentrantReadWriteLock();
+
+    /** True if this socket sends ICMPv6 */
+    private final boolean m_ipv6;
+
+    /** Buffers reused by receive() */
+    private final byte[] m_from = new byte[16];
+    private final int[] m_info = new int[3];
+
+    /**
+       Information about one received ICMP message. Reused between calls
+       to receive() to avoid garbage.
+    */
+    public static class Reply {
+        /** The address the message came from */
+        public InetAddress from;
+        /** The ICMP type and code */
+        public int type;
+        public int code;
+        /** The sequence number of the echo request this message answers */
+        public int sequence;
+        /** System.nanoTime() when the message was received */
+        public long time_received;
+
+        /** @return true if this is an echo reply (ICMP or ICMPv6) */
+        public boolean isEchoReply() {
+            return (type == 0 && !(from instanceof Inet6Address)) ||
+                (type == 129 && from instanceof Inet6Address);
+        }
+
+        /** @return true if this is a time exceeded error (ICMP or ICMPv6) */
+        public boolean isTimeExceeded() {
+            return (type == 11 && !(from instanceof Inet6Address)) ||
+                (type == 3 && from instanceof Inet6Address);
+        }
+
+        /** @return true if this is a destination unreachable error (ICMP or ICMPv6) */
+        public boolean isUnreachable() {
+            return (type == 3 && !(from instanceof Inet6Address)) ||
+                (type == 1 && from instanceof Inet6Address);
+        }
+    }
+
+    private static native int nativeOpen(boolean ipv6) throws IOException;
+    private static native void nativeSend(int fd, byte[] addr, int sequence,
+                                          int payload_size, int ttl) throws IOException;
+    private static native int nativeReceive(int fd, int timeout_ms, byte[] from,
+                                            int[] info) throws IOException;
+    private static native void nativeClose(int fd);
+
+    /**
+       Opens a new ICMP socket.
+
+       @param ipv6 true to open an ICMPv6 socket
+       @throws IOException if the socket cannot be created (for example
+       if net.ipv4.ping_group_range does not include our group)
+    */
+    public IcmpSocket(boolean ipv6) throws IOException {
+        if (!loadLibrary())
+            throw new IOException("Native library " + LIBRARY_NAME + " not available");
+        m_ipv6 = ipv6;
+        m_fd = nativeOpen(ipv6);
+    }
+
+    /**
+       Opens an ICMP socket suitable to reach the given address.
+    */
+    public static IcmpSocket forAddress(InetAddress addr) throws IOException {
+        return new IcmpSocket(addr instanceof Inet6Address);
+    }
+
+    /**
+       Sends an echo request to addr with the given sequence number.
+    */
+    public void send(InetAddress addr, int sequence) throws IOException {
+        send(addr, sequence, 0);
+    }
+
+    /**
+       Sends an echo request to addr with the given sequence number and
+       TTL (hop limit for IPv6). The TTL stays set for the next sends, so
+       threads sharing a socket must serialize their calls.
+
+       @param ttl the TTL, or 0 to keep the current one
+    */
+    public void send(InetAddress addr, int sequence, int ttl) throws IOException {
+        m_fd_lock.readLock().lock();
+        try {
+            if (m_fd < 0)
+                throw new IOException("Socket closed");
+            nativeSend(m_fd, addr.getAddress(), sequence & 0xffff, PAYLOAD_SIZE, ttl);
+        }
+        finally {
+            m_fd_lock.readLock().unlock();
+        }
+    }
+
+    /**
+       Waits up to timeout_ms milliseconds for an ICMP message.
+
+       @param timeout_ms maximum time to wait, 0 to only poll
+       @param reply filled with the received message, if any
+       @return true if a message was received, false on timeout
+    */
+    public boolean receive(int timeout_ms, Reply reply) throws IOException {
+        int len;
+        m_fd_lock.readLock().lock();
+        try {
+            if (m_fd < 0)
+                throw new IOException("Socket closed");
+            len = nativeReceive(m_fd, Math.max(timeout_ms, 0), m_from, m_info);
+        }
+        finally {
+            m_fd_lock.readLock().unlock();
+        }
+        if (len <= 0)
+            return false;
+        reply.time_received = System.nanoTime();
+        byte[] addr = new byte[len];
+        System.arraycopy(m_from, 0, addr, 0, len);
+        try {
+            reply.from = InetAddress.getByAddress(addr);
+        }
+        catch (UnknownHostException e) {
+            // Can't happen, length is 4 or 16.
+            reply.from = null;
+        }
+        reply.type = m_info[0];
+        reply.code = m_info[1];
+        reply.sequence = m_info[2];
+        return true;
+    }
+
+    /** @return true if this socket sends ICMPv6 */
+    public boolean isIPv6() { return m_ipv6; }
+
+    /**
+       Closes the socket. Safe to call more than once. Waits for the
+       sends and receives under way, so up to the timeout of a receive.
+    */
+    public void close() {
+        m_fd_lock.writeLock().lock();
+        try {
+            if (m_fd >= 0) {
+                nativeClose(m_fd);
+                m_fd = -1;
+            }
+        }
+        finally {
+            m_fd_lock.writeLock().unlock();
+        }
+    }
+
+    /**
+       Detects (once) whether unprivileged ICMP sockets can be used: the
+       native library must load, net.ipv4.ping_group_range must include
+       one of our groups and opening a socket must actually work.
+
+       @return true if IcmpSocket can be used
+    */
+    public static synchronized boolean isSupported() {
+        if (s_supported != null)
+            return s_supported.booleanValue();
+
+        boolean supported = false;
+        if (loadLibrary() && isPingGroupAllowed()) {
+            try {
+                new IcmpSocket(false).close();
+                supported = true;
+            }
+            catch (IOException e) {
+                LOGGER.info("Cannot open an ICMP socket: " + e.getMessage());
+            }
+        }
+        LOGGER.info("In-process ICMP sockets supported: " + supported);
+        s_supported = Boolean.valueOf(supported);
+        return supported;
+    }
+
+    private static boolean s_library_tried = false;
+    private static boolean s_library_loaded = false;
+
+    private static synchronized boolean loadLibrary() {
+        if (!s_library_tried) {
+            s_library_tried = true;
+            try {
+                System.loadLibrary(LIBRARY_NAME);
+                s_library_loaded = true;
+            }
+            catch (UnsatisfiedLinkError e) {
+                LOGGER.info("Native library " + LIBRARY_NAME + " not loaded: " + e.getMessage());
+            }
+            catch (SecurityException e) {
+                LOGGER.info("Not allowed to load native library " + LIBRARY_NAME);
+            }
+        }
+        return s_library_loaded;
+    }
+
+    /**
+       Checks /proc/sys/net/ipv4/ping_group_range against the groups of
+       this process, as listed in /proc/self/status.
+
+       @return true if one of our groups is inside the allowed range
+    */
+    static boolean isPingGroupAllowed() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader("/proc/sys/net/ipv4/ping_group_range"));
+            String[] range = reader.readLine().trim().split("\\s+");
+            reader.close();
+            long low = Long.parseLong(range[0]);
+            long high = Long.parseLong(range[1]);
+
+            reader = new BufferedReader(new FileReader("/proc/self/status"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // "Gid: real effective saved fs" and "Groups: g1 g2 ..."
+                if (!line.startsWith("Gid:") && !line.startsWith("Groups:"))
+                    continue;
+                String[] ids = line.substring(line.indexOf(':') + 1).trim().split("\\s+");
+                for (String id : ids) {
+                    if (id.length() == 0)
+                        continue;
+                    long gid = Long.parseLong(id);
+                    if (gid >= low && gid <= high)
+                        return true;
+                }
+            }
+            return false;
+        }
+        catch (Exception e) {
+            // Not Linux, or /proc is not readable.
+            return false;
+        }
+        finally {
+            try {
+                if (reader != null)
+                    reader.close();
+            }
+            catch (IOException e) {
+            }
+        }
+    }
+}
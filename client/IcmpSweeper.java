@@ -0,0 +1,456 @@
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+   Pings a whole batch of addresses at once from a single ICMP socket
+   (one per address family), instead of one blocking ping per thread.
+
+   <p>The echo requests to all the destinations are interleaved: round r
+   sends one request to every destination, spread evenly over the
+   NativeIcmpPinger.INTERVAL. A single receiver thread demultiplexes the
+   replies by sequence number (the kernel already filters on the ICMP
+   identifier) and a timing wheel holds the per-destination timeouts.
+   Each destination gets the same result as NativeIcmpPinger.
+
+   <p>When in-process ICMP sockets are not available, the addresses are
+   pinged one after the other with a NativeIcmpPinger, which itself
+   falls back to the external ping command.
+*/
+public class IcmpSweeper {
+    /// Logging
+    private final static Logger LOGGER = Logger.getLogger(IcmpSweeper.class.getName());
+
+    /** Resolution of the timing wheel, in milliseconds */
+    static final int TICK = 50;
+
+    /** A reference to ClientInfo */
+    private ClientInfo m_info;
+
+    /** Next sequence number to use, so consecutive sweeps don't collide */
+    private int m_next_sequence = 0;
+
+    /**
+       Creates an IcmpSweeper (linked to a ClientInfo configuration)
+       @param this_info A reference to a ClientInfo
+       @see ClientInfo
+    */
+    public IcmpSweeper(ClientInfo this_info) {
+        m_info = this_info;
+    }
+
+    /**
+       Pings all the addresses of pings and stores the results in
+       pings.results.
+    */
+    public void sweep(ServerProxy.Pings pings) throws InterruptedException {
+        ProbeResult[] results = sweep(pings.columns.getAddresses());
+        System.arraycopy(results, 0, pings.results, 0, results.length);
+    }
+
+    /**
+       Pings all the addresses.
+
+       @return one result per address
+    */
+    public ProbeResult[] sweep(InetAddress[] addresses) throws InterruptedException {
+        int count = m_info.getNumberOfPings();
+        ProbeResult[] results = new ProbeResult[addresses.length];
+        if (addresses.length == 0)
+            return results;
+
+        if (IcmpSocket.isSupported()) {
+            // Sequence numbers are 16 bits: sweep in chunks small enough
+            // for every (destination, round) pair to get its own.
+            int chunk = 65536 / count;
+            try {
+                for (int start = 0; start < addresses.length; start += chunk) {
+                    int end = Math.min(addresses.length, start + chunk);
+                    new Sweep(addresses, start, end, count).run(results);
+                }
+                return results;
+            }
+            catch (IOException e) {
+                LOGGER.log(Level.WARNING, "ICMP sweep failed, pinging one address at a time.", e);
+            }
+        }
+
+        NativeIcmpPinger pinger = new NativeIcmpPinger(m_info);
+        for (int i = 0; i < addresses.length; i++) {
+            if (results[i] != null)
+                continue;
+            pinger.probe(addresses[i]);
+            results[i] = pinger.getLastResult();
+        }
+        return results;
+    }
+
+    /**
+       The state of the sweep of addresses[start..end[. Index d below
+       is relative to start.
+    */
+    private class Sweep {
+        private final InetAddress[] m_addresses;
+        private final int m_start;
+        private final int m_size;
+        private final int m_count;
+        private final int m_first_sequence;
+
+        /** Send and receive times, indexed by round * m_size + d */
+        private final long[] m_sent_at;
+        private final long[] m_rtt;
+        private final int[] m_sent;
+        private final int[] m_received;
+        /** Set once the destination's line was produced */
+        private final boolean[] m_done;
+        private int m_remaining;
+
+        private IcmpSocket m_socket4;
+        private IcmpSocket m_socket6;
+        private volatile boolean m_finished = false;
+        private final TimingWheel m_wheel;
+
+        Sweep(InetAddress[] addresses, int start, int end, int count) {
+            m_addresses = addresses;
+            m_start = start;
+            m_size = end - start;
+            m_count = count;
+            m_first_sequence = m_next_sequence;
+            m_next_sequence = (m_next_sequence + m_size * count) & 0xffff;
+            m_sent_at = new long[m_size * count];
+            m_rtt = new long[m_size * count];
+            m_sent = new int[m_size];
+            m_received = new int[m_size];
+            m_done = new boolean[m_size];
+            m_remaining = m_size;
+            m_wheel = new TimingWheel(m_size,
+                                      (NativeIcmpPinger.DEADLINE + NativeIcmpPinger.INTERVAL) / TICK + 1);
+        }
+
+        void run(ProbeResult[] results) throws IOException, InterruptedException {
+            Thread receiver = null;
+            try {
+                for (int d = 0; d < m_size; d++) {
+                    if (m_addresses[m_start + d] instanceof Inet6Address) {
+                        if (m_socket6 == null)
+                            m_socket6 = new IcmpSocket(true);
+                    }
+                    else if (m_socket4 == null)
+                        m_socket4 = new IcmpSocket(false);
+                }
+                if (m_socket4 != null) {
+                    receiver = new Receiver(m_socket4);
+                    receiver.start();
+                }
+                Thread receiver6 = null;
+                if (m_socket6 != null) {
+                    receiver6 = new Receiver(m_socket6);
+                    receiver6.start();
+                }
+
+                send(results);
+
+                m_finished = true;
+                if (receiver != null)
+                    receiver.join();
+                if (receiver6 != null)
+                    receiver6.join();
+            }
+            finally {
+                m_finished = true;
+                if (m_socket4 != null)
+                    m_socket4.close();
+                if (m_socket6 != null)
+                    m_socket6.close();
+            }
+        }
+
+        /**
+           Sends all the echo requests and expires the destinations as
+           their timers fire, until every destination has its line.
+        */
+        private void send(ProbeResult[] results) throws InterruptedException {
+            long interval = NativeIcmpPinger.INTERVAL * 1000000L;
+            long start = System.nanoTime();
+            long deadline = start + NativeIcmpPinger.DEADLINE * 1000000L;
+            int total = m_size * m_count;
+            int next = 0;
+
+            m_wheel.start(start);
+            while (true) {
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+
+                long now = System.nanoTime();
+                // Send everything that is due: request k goes to
+                // destination k % m_size in round k / m_size.
+                while (next < total) {
+                    int round = next / m_size;
+                    int d = next % m_size;
+                    long due = start + round * interval + (d * interval) / m_size;
+                    if (due > now)
+                        break;
+                    sendOne(d, next);
+                    next++;
+                }
+
+                int[] fired;
+                synchronized (this) {
+                    fired = m_wheel.advance(now);
+                }
+                expire(fired, results, start);
+                synchronized (this) {
+                    if (m_remaining == 0)
+                        break;
+                }
+                if (now >= deadline + TICK * 1000000L) {
+                    // Whatever is left ran out of time.
+                    int[] left = new int[m_size];
+                    for (int d = 0; d < m_size; d++)
+                        left[d] = d;
+                    expire(left, results, start);
+                    break;
+                }
+
+                long wait = TICK * 1000000L;
+                if (next < total) {
+                    int round = next / m_size;
+                    int d = next % m_size;
+                    wait = Math.min(wait, start + round * interval + (d * interval) / m_size - now);
+                }
+                if (wait > 0)
+                    Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+            }
+        }
+
+        private void sendOne(int d, int k) {
+            InetAddress addr = m_addresses[m_start + d];
+            IcmpSocket socket = (addr instanceof Inet6Address) ? m_socket6 : m_socket4;
+            synchronized (this) {
+                if (m_done[d])
+                    return;
+                // Before the send, for a reply that comes at once
+                m_sent_at[k] = System.nanoTime();
+            }
+            boolean sent = false;
+            try {
+                socket.send(addr, m_first_sequence + k);
+                sent = true;
+            }
+            catch (IOException e) {
+                LOGGER.log(Level.FINE, "Cannot send echo request to " + addr.getHostAddress(), e);
+            }
+            synchronized (this) {
+                // Only the requests sent count, a failed one is not lost
+                if (sent)
+                    m_sent[d]++;
+                else
+                    m_sent_at[k] = 0;
+                // The destination expires REPLY_TIMEOUT after its last
+                // request, like ping -W, at once if none could be sent.
+                if (k / m_size == m_count - 1)
+                    m_wheel.schedule(d, (m_sent[d] == 0) ? System.nanoTime() :
+                                     System.nanoTime() + NativeIcmpPinger.REPLY_TIMEOUT * 1000000L);
+            }
+        }
+
+        /**
+           Records a reply. Called by the receiver threads.
+        */
+        private void record(IcmpSocket.Reply reply) {
+            int k = (reply.sequence - m_first_sequence) & 0xffff;
+            if (k >= m_size * m_count)
+                return;
+            int d = k % m_size;
+            if (!m_addresses[m_start + d].equals(reply.from))
+                return;
+            synchronized (this) {
+                if (m_done[d] || m_sent_at[k] == 0 || m_rtt[k] != 0)
+                    return;
+                m_rtt[k] = Math.max(1, reply.time_received - m_sent_at[k]);
+                m_received[d]++;
+                // All answered: fire the destination's timer right away.
+                if (m_received[d] == m_count)
+                    m_wheel.schedule(d, reply.time_received);
+            }
+        }
+
+        /**
+           Produces the result of the given destinations.
+
+           @param expired destination indexes, terminated by -1 or the
+           end of the array
+        */
+        private void expire(int[] expired, ProbeResult[] results, long start) {
+            for (int i = 0; i < expired.length && expired[i] >= 0; i++) {
+                int d = expired[i];
+                synchronized (this) {
+                    if (m_done[d])
+                        continue;
+                    long[] rtt = new long[m_count];
+                    m_done[d] = true;
+                    m_remaining--;
+                    long last = start;
+                    for (int r = 0; r < m_count; r++) {
+                        int k = r * m_size + d;
+                        rtt[r] = m_rtt[k];
+                        if (m_sent_at[k] != 0)
+                            last = Math.max(last, m_sent_at[k] + m_rtt[k]);
+                    }
+                    long first = m_sent_at[d];
+                    if (first == 0)
+                        first = last;
+                    results[m_start + d] = new ProbeResult.Icmp(
+                        m_addresses[m_start + d], m_sent[d], m_received[d],
+                        (last - first) / 1000000, rtt);
+                }
+            }
+        }
+
+        /** The receiver thread of one socket. */
+        private class Receiver extends Thread {
+            private final IcmpSocket m_socket;
+
+            Receiver(IcmpSocket socket) {
+                m_socket = socket;
+                setName("IcmpSweeper receiver");
+                setDaemon(true);
+            }
+
+            public void run() {
+                IcmpSocket.Reply reply = new IcmpSocket.Reply();
+                try {
+                    while (!m_finished) {
+                        if (m_socket.receive(TICK, reply) && reply.isEchoReply())
+                            record(reply);
+                    }
+                }
+                catch (IOException e) {
+                    if (!m_finished)
+                        LOGGER.log(Level.WARNING, "ICMP sweep receiver failed.", e);
+                }
+            }
+        }
+    }
+
+    /**
+       A hashed timing wheel of per-destination timers. A destination
+       has at most one pending timer; scheduling it again moves it.
+       Timers fire with a resolution of TICK milliseconds. Not thread
+       safe: the Sweep calls it with its own lock held.
+    */
+    static class TimingWheel {
+        /** Head of the list of each slot, -1 if empty */
+        private final int[] m_slots;
+        /** Next destination in the same slot, and the slot it is in */
+        private final int[] m_next;
+        private final int[] m_prev;
+        private final int[] m_slot_of;
+        /** Expiration time of each destination, in ticks */
+        private final long[] m_expires;
+        private long m_start;
+        /** The last tick processed */
+        private long m_current = 0;
+        /** Returned by advance(), reused by the next call */
+        private final int[] m_fired;
+
+        TimingWheel(int size, int nb_slots) {
+            m_slots = new int[nb_slots];
+            m_next = new int[size];
+            m_prev = new int[size];
+            m_slot_of = new int[size];
+            m_expires = new long[size];
+            m_fired = new int[size + 1];
+            for (int i = 0; i < nb_slots; i++)
+                m_slots[i] = -1;
+            for (int i = 0; i < size; i++)
+                m_slot_of[i] = -1;
+        }
+
+        void start(long now) {
+            m_start = now;
+            m_current = 0;
+        }
+
+        private long toTick(long time) {
+            return Math.max(0, (time - m_start) / (TICK * 1000000L));
+        }
+
+        /** (Re)schedules destination d to fire at the given nanoTime */
+        void schedule(int d, long time) {
+            unlink(d);
+            // Never schedule in the past: it would wait for a full turn.
+            long tick = Math.max(toTick(time), m_current + 1);
+            // Timers further than one turn are clamped to the last slot.
+            tick = Math.min(tick, m_current + m_slots.length - 1);
+            int slot = (int)(tick % m_slots.length);
+            m_expires[d] = tick;
+            m_slot_of[d] = slot;
+            m_prev[d] = -1;
+            m_next[d] = m_slots[slot];
+            if (m_slots[slot] >= 0)
+                m_prev[m_slots[slot]] = d;
+            m_slots[slot] = d;
+        }
+
+        private void unlink(int d) {
+            int slot = m_slot_of[d];
+            if (slot < 0)
+                return;
+            if (m_prev[d] >= 0)
+                m_next[m_prev[d]] = m_next[d];
+            else
+                m_slots[slot] = m_next[d];
+            if (m_next[d] >= 0)
+                m_prev[m_next[d]] = m_prev[d];
+            m_slot_of[d] = -1;
+        }
+
+        /**
+           Advances the wheel to the given nanoTime.
+
+           @return the destinations whose timer fired, terminated by -1,
+           in an array overwritten by the next call
+        */
+        int[] advance(long now) {
+            long target = toTick(now);
+            int[] fired = m_fired;
+            int n = 0;
+            while (m_current < target) {
+                m_current++;
+                int slot = (int)(m_current % m_slots.length);
+                int d = m_slots[slot];
+                while (d >= 0) {
+                    int next = m_next[d];
+                    if (m_expires[d] <= m_current) {
+                        unlink(d);
+                        fired[n++] = d;
+                    }
+                    d = next;
+                }
+            }
+            fired[n] = -1;
+            return fired;
+        }
+    }
+
+    /**
+       Sweeps the given hosts, for testing.
+    */
+    public static void main(String args[]) throws Exception {
+        if (args.length == 0)
+            args = new String[] {"127.0.0.1", "127.0.0.2", "127.0.0.3"};
+        InetAddress[] addresses = new InetAddress[args.length];
+        for (int i = 0; i < args.length; i++)
+            addresses[i] = InetAddress.getByName(args[i]);
+
+        IcmpSweeper sweeper = new IcmpSweeper(new ClientInfo("", ""));
+        long start = System.currentTimeMillis();
+        ProbeResult[] results = sweeper.sweep(addresses);
+        for (ProbeResult r : results)
+            System.out.println(r);
+        System.out.println("Sweep took " + (System.currentTimeMillis() - start) + "ms");
+    }
+}
@@ -1,72 +1,249 @@
 import java.io.BufferedReader;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
-   This class launches an external commands and returns its output (both on
-   stdout and stderr) into two List<String>. As it is static, it is also
+   This class launches an external commands and streams its output (both
+   on stdout and stderr), line by line, to a LineHandler. Both pipes are
+   drained at the same time, so a command writing a lot on stderr cannot
+   block, and the command is killed at a deadline, so a hung command
+   cannot hold its caller forever. As it is static, it is also
    thread-safe.
 
+   <p>stdout is read by the calling thread and stderr by one of the few
+   threads of a pool shared by all the launches. When they are all busy,
+   the calling thread reads stderr itself once stdout is done, so the
+   threads stay bounded however many commands run at once (a command
+   that fills the stderr pipe meanwhile waits until then, or until its
+   deadline).
+
    @author   Steven Pigeon <pigeon@iro.umontreal.ca>
 */
 public class Launcher {
+    /** Returned by launch() when the command was killed at its deadline */
+    public static final int TIMED_OUT = -2;
+
+    /** Time given to a killed command to exit before it is killed for good, in milliseconds */
+    static final int KILL_GRACE = 1000;
+
     /**
-       Launches a command and reports the exit code, as well as the output
-       on both stdout and stderr.
+       Receives the output of a command as it comes. Calls are
+       serialized, so implementations need not be thread-safe.
+    */
+    public interface LineHandler {
+        /**
+           @param line a line of output, without its end of line
+           @param from_stderr true if the line was written on stderr
+        */
+        void handleLine(String line, boolean from_stderr);
+    }
+
+    /** Makes daemon threads, so pending launches do not keep the JVM alive */
+    static class DaemonThreadFactory implements ThreadFactory {
+        private final String m_name;
+        private int m_count = 0;
+
+        DaemonThreadFactory(String name) {
+            m_name = name;
+        }
+
+        public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, m_name + " " + (m_count++));
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /** Number of threads reading stderr */
+    static final int STDERR_READERS = 4;
+
+    /** Reads stderr; threads idle for a minute are let go */
+    private static final ThreadPoolExecutor s_readers =
+        new ThreadPoolExecutor(STDERR_READERS, STDERR_READERS, 60, TimeUnit.SECONDS,
+                               new LinkedBlockingQueue<Runnable>(),
+                               new DaemonThreadFactory("Launcher reader"));
+    static {
+        s_readers.allowCoreThreadTimeOut(true);
+    }
+
+    /** Kills the commands at their deadline */
+    private static final ScheduledThreadPoolExecutor s_watchdog =
+        new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("Launcher watchdog"));
+    static {
+        s_watchdog.setRemoveOnCancelPolicy(true);
+    }
+
+    /** One running command */
+    private static class Run {
+        private final Process m_proc;
+        private final LineHandler m_handler;
+        private volatile boolean m_timed_out = false;
+
+        Run(Process proc, LineHandler handler) {
+            m_proc = proc;
+            m_handler = handler;
+        }
+
+        /**
+           Hands the lines of in to the handler until EOF. After the
+           deadline, the rest is read and dropped.
+        */
+        void drain(InputStream in, boolean from_stderr) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (m_timed_out)
+                        continue;
+                    synchronized (m_handler) {
+                        m_handler.handleLine(line, from_stderr);
+                    }
+                }
+            }
+            catch (IOException e) {
+                // The pipe was closed by kill().
+            }
+            finally {
+                try {
+                    reader.close();
+                }
+                catch (IOException e) {
+                }
+            }
+        }
+
+        void timeout() {
+            m_timed_out = true;
+            kill();
+        }
+
+        /**
+           Asks the command to terminate, then kills it for good if it is
+           still there after KILL_GRACE.
+        */
+        void kill() {
+            m_proc.destroy();
+            s_watchdog.schedule(new Runnable() {
+                    public void run() {
+                        m_proc.destroyForcibly();
+                    }
+                }, KILL_GRACE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+       Launches a command and streams its output to handler, line by line,
+       as the command writes it.
 
        @param args specifies the command and its arguments
-       @param stdout_lines returns the output on stdout as a list of strings
-       @param stderr_lines returns the output on stderr as a list of strings
-       @param max_nb_lines specifies how many lines to capture (extra lines are ignored)
+       @param handler receives the lines on stdout and stderr
+       @param timeout_ms the command is killed after that many milliseconds
 
-       @return program exit code (or -1 if a IO error occurs)
+       @return program exit code, TIMED_OUT if it was killed at the
+       deadline (or -1 if a IO error occurs)
     */
-    public static int launch(List<String> args,
-                             List<String> stdout_lines,
-                             List<String> stderr_lines,
-                             int max_nb_lines) throws InterruptedException {
+    public static int launch(List<String> args, LineHandler handler,
+                             long timeout_ms) throws InterruptedException {
         Process proc = null;
+        ScheduledFuture<?> deadline = null;
         try {
-            proc = Runtime.getRuntime().exec(args.toArray(new String[args.size()]));
+            proc = new ProcessBuilder(args).start();
+            proc.getOutputStream().close();
 
-            BufferedReader stdout = new BufferedReader(new InputStreamReader(proc.getInputStream()));
-            BufferedReader stderr = new BufferedReader(new InputStreamReader(proc.getErrorStream()));
-            String line;
-            int c;
+            final Run run = new Run(proc, handler);
+            final InputStream stderr = proc.getErrorStream();
+            // Whoever claims it first reads stderr: a reader or this thread
+            final AtomicBoolean stderr_claimed = new AtomicBoolean(false);
+            deadline = s_watchdog.schedule(new Runnable() {
+                    public void run() {
+                        run.timeout();
+                    }
+                }, timeout_ms, TimeUnit.MILLISECONDS);
+            Future<?> stderr_done = s_readers.submit(new Runnable() {
+                    public void run() {
+                        if (stderr_claimed.compareAndSet(false, true))
+                            run.drain(stderr, true);
+                    }
+                });
 
-            c = 0;
-            while ((c < max_nb_lines) && (line = stdout.readLine()) != null) {
-                stdout_lines.add(line);
-                c++;
+            run.drain(proc.getInputStream(), false);
+            if (stderr_claimed.compareAndSet(false, true)) {
+                // No reader was free
+                stderr_done.cancel(false);
+                run.drain(stderr, true);
             }
-    
-            c = 0;
-            while ((c < max_nb_lines) && (line = stderr.readLine()) != null) {
-                stderr_lines.add(line);
-                c++;
+            else {
+                try {
+                    stderr_done.get();
+                }
+                catch (ExecutionException e) {
+                    // drain() catches its errors.
+                }
             }
-
-            stdout.close();
-            stderr.close();
             proc.waitFor();
+            deadline.cancel(false);
+
+            if (run.m_timed_out)
+                return TIMED_OUT;
         }
         catch (IOException error) {
             if (proc != null) {
                 // Don't leave subprocess hanging around...
-                proc.destroy();
+                proc.destroyForcibly();
             }
+            if (deadline != null)
+                deadline.cancel(false);
             return -1;
         }
         catch (InterruptedException ie) {
             if (proc != null) {
                 // Don't leave subprocess hanging around...
-                proc.destroy();
+                proc.destroyForcibly();
             }
+            if (deadline != null)
+                deadline.cancel(false);
             throw ie;
         }
 
         // ...else we return the process's exit value.
         return proc.exitValue();
     }
+
+    /**
+       Launches a command and reports the exit code, as well as the output
+       on both stdout and stderr.
+
+       @param args specifies the command and its arguments
+       @param stdout_lines returns the output on stdout as a list of strings
+       @param stderr_lines returns the output on stderr as a list of strings
+       @param max_nb_lines specifies how many lines to capture (extra lines are ignored)
+       @param timeout_ms the command is killed after that many milliseconds
+
+       @return program exit code, TIMED_OUT if it was killed at the
+       deadline (or -1 if a IO error occurs)
+    */
+    public static int launch(List<String> args,
+                             final List<String> stdout_lines,
+                             final List<String> stderr_lines,
+                             final int max_nb_lines,
+                             long timeout_ms) throws InterruptedException {
+        return launch(args, new LineHandler() {
+                public void handleLine(String line, boolean from_stderr) {
+                    List<String> lines = from_stderr ? stderr_lines : stdout_lines;
+                    if (lines.size() < max_nb_lines)
+                        lines.add(line);
+                }
+            }, timeout_ms);
+    }
 };
@@ -0,0 +1,260 @@
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+   Resizes the concurrency of a PingsClient to the load of the host,
+   so that the probes make way for the owner of a shared or volunteer
+   machine, and use it when it is idle.
+
+   <p>Every PERIOD, the controller looks at three signals:
+   <ul>
+   <li>the CPU load of the whole system (the load average over the
+   processors where the JVM does not give the CPU load);</li>
+   <li>how much the RTT to the first hop grew over the lowest one seen:
+   our own probes queueing in the host or its link inflate it first.
+   It is taken from the traces that start at the first hop and, where
+   IcmpSocket is supported, from FIRST_HOP_PROBES echo requests of TTL 1
+   sent each period toward the last destination probed; a period
+   without a new RTT leaves this signal out;</li>
+   <li>the share of the time the JVM spent collecting garbage.</li>
+   </ul>
+   If one is over its limit, the concurrency is halved, otherwise it
+   grows by one (AIMD), between a minimum and a maximum. Each decision
+   is logged with the signals, to tune the limits.
+*/
+public class LoadController implements Runnable {
+    /// Logging
+    private final static Logger LOGGER = Logger.getLogger(LoadController.class.getName());
+
+    /** Time between two decisions, in milliseconds */
+    public static final long PERIOD = 5000;
+
+    /** Default limits of the signals */
+    public static final double DEFAULT_MAX_CPU = 0.85;
+    public static final double DEFAULT_MAX_INFLATION = 3.0;
+    public static final double DEFAULT_MAX_GC = 0.10;
+
+    /** Echo requests sent to the first hop each period, when IcmpSocket is supported */
+    static final int FIRST_HOP_PROBES = 3;
+
+    /** Time given to the first hop to answer an echo request, in milliseconds */
+    static final int FIRST_HOP_TIMEOUT = 500;
+
+    /** The weight of a new first hop RTT in the recent average */
+    private static final double WEIGHT = 0.25;
+
+    /**
+       The lowest RTT moves this share of the way to the recent average
+       at each decision, so a lasting change of route is not taken for
+       load forever
+    */
+    private static final double BASE_DRIFT = 1.0 / 64;
+
+    private final PingsClient m_client;
+    private final int m_min;
+    private final int m_max;
+
+    private volatile double m_max_cpu = DEFAULT_MAX_CPU;
+    private volatile double m_max_inflation = DEFAULT_MAX_INFLATION;
+    private volatile double m_max_gc = DEFAULT_MAX_GC;
+
+    private final OperatingSystemMXBean m_os = ManagementFactory.getOperatingSystemMXBean();
+    /** com.sun.management.OperatingSystemMXBean.getSystemCpuLoad(), null if not there */
+    private Method m_cpu_load = null;
+
+    /** The lowest first hop RTT seen, and the recent average, in ns; 0 if none */
+    private long m_base_rtt = 0;
+    private double m_recent_rtt = 0;
+    /** The first hop RTTs added since the last decision */
+    private int m_fresh_rtts = 0;
+
+    /** Where the echo requests of TTL 1 go, null until a probe ended */
+    private volatile InetAddress m_destination = null;
+    private int m_sequence = 0;
+
+    private long m_last_tick = System.currentTimeMillis();
+    private long m_last_gc_ms = getGcTime();
+
+    private ScheduledExecutorService m_executor = null;
+
+    /** @param min, max the bounds of the concurrency */
+    public LoadController(PingsClient client, int min, int max) {
+        m_client = client;
+        m_min = Math.max(1, min);
+        m_max = Math.max(m_min, max);
+        try {
+            Class<?> c = Class.forName("com.sun.management.OperatingSystemMXBean");
+            if (c.isInstance(m_os))
+                m_cpu_load = c.getMethod("getSystemCpuLoad");
+        }
+        catch (Exception e) {
+            LOGGER.info("No system CPU load, using the load average.");
+        }
+    }
+
+    /** Sets the limits over which the concurrency is halved. */
+    public void setLimits(double max_cpu, double max_inflation, double max_gc) {
+        m_max_cpu = max_cpu;
+        m_max_inflation = max_inflation;
+        m_max_gc = max_gc;
+    }
+
+    /** Makes a decision every PERIOD, on a thread of its own. */
+    public synchronized void start() {
+        if (m_executor != null)
+            return;
+        m_executor = new ScheduledThreadPoolExecutor(1, new Launcher.DaemonThreadFactory("Load control"));
+        m_executor.scheduleWithFixedDelay(this, PERIOD, PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (m_executor != null)
+            m_executor.shutdownNow();
+        m_executor = null;
+    }
+
+    /**
+       Takes the RTT to the first hop out of the traces among the parts
+       of result, and dest as the destination of the next echo requests
+       to the first hop.
+    */
+    public void learn(InetAddress dest, ProbeResult result) {
+        m_destination = dest;
+        ProbeResult[] parts = (result instanceof ProbeResult.Composite) ?
+            ((ProbeResult.Composite)result).getParts() : new ProbeResult[] {result};
+        for (ProbeResult part : parts) {
+            if (!(part instanceof ProbeResult.Trace))
+                continue;
+            ProbeResult.Trace trace = (ProbeResult.Trace)part;
+            // Most traces start past the first hops (see TopologyCache)
+            if (trace.getNbHops() == 0 || trace.getTtl(0) != 1)
+                continue;
+            for (long rtt : trace.getRtts(0))
+                if (rtt > 0)
+                    addFirstHopRtt(rtt);
+        }
+    }
+
+    /** Adds an RTT to the first hop, in nanoseconds. */
+    public synchronized void addFirstHopRtt(long rtt_ns) {
+        if (m_base_rtt == 0 || rtt_ns < m_base_rtt)
+            m_base_rtt = rtt_ns;
+        m_recent_rtt = (m_recent_rtt == 0) ? rtt_ns :
+            WEIGHT * rtt_ns + (1 - WEIGHT) * m_recent_rtt;
+        m_fresh_rtts++;
+    }
+
+    /**
+       Sends FIRST_HOP_PROBES echo requests of TTL 1 toward the last
+       destination probed, one at a time, and adds the RTT of the first
+       hop's answers (time exceeded, or echo reply if it is the
+       destination). Does nothing where IcmpSocket is not supported.
+    */
+    private void probeFirstHop() {
+        InetAddress dest = m_destination;
+        if (dest == null || !IcmpSocket.isSupported())
+            return;
+        IcmpSocket socket = null;
+        try {
+            socket = IcmpSocket.forAddress(dest);
+            IcmpSocket.Reply reply = new IcmpSocket.Reply();
+            for (int i = 0; i < FIRST_HOP_PROBES; i++) {
+                int sequence = (m_sequence++) & 0xffff;
+                long sent = System.nanoTime();
+                socket.send(dest, sequence, 1);
+                long deadline = sent + FIRST_HOP_TIMEOUT * 1000000L;
+                long left;
+                while ((left = deadline - System.nanoTime()) > 0 &&
+                       socket.receive((int)Math.max(1, left / 1000000), reply)) {
+                    if (reply.sequence == sequence &&
+                        (reply.isTimeExceeded() || reply.isEchoReply())) {
+                        addFirstHopRtt(reply.time_received - sent);
+                        break;
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            LOGGER.fine("No echo request to the first hop: " + e.getMessage());
+        }
+        finally {
+            if (socket != null)
+                socket.close();
+        }
+    }
+
+    /**
+       @return the recent RTT to the first hop over the lowest one, NaN
+       if no RTT was added since the last call
+    */
+    private synchronized double getInflation() {
+        if (m_fresh_rtts == 0)
+            return Double.NaN;
+        m_fresh_rtts = 0;
+        double inflation = m_recent_rtt / m_base_rtt;
+        m_base_rtt += (long)(BASE_DRIFT * (m_recent_rtt - m_base_rtt));
+        return inflation;
+    }
+
+    /** @return the CPU load of the system between 0 and 1, -1 if unknown */
+    private double getCpuLoad() {
+        if (m_cpu_load != null) {
+            try {
+                return ((Double)m_cpu_load.invoke(m_os)).doubleValue();
+            }
+            catch (Exception e) {
+                m_cpu_load = null;
+            }
+        }
+        double load = m_os.getSystemLoadAverage();
+        return (load < 0) ? -1 : Math.min(1, load / m_os.getAvailableProcessors());
+    }
+
+    /** @return the time spent collecting garbage since the JVM started, in ms */
+    private static long getGcTime() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            total += Math.max(0, gc.getCollectionTime());
+        return total;
+    }
+
+    /** Makes one decision. */
+    public void run() {
+        long now = System.currentTimeMillis();
+        long gc_ms = getGcTime();
+        double gc = (double)(gc_ms - m_last_gc_ms) / Math.max(1, now - m_last_tick);
+        m_last_gc_ms = gc_ms;
+        m_last_tick = now;
+        double cpu = getCpuLoad();
+        probeFirstHop();
+        double inflation = getInflation();
+
+        String reason;
+        if (cpu > m_max_cpu)
+            reason = "cpu";
+        else if (inflation > m_max_inflation)
+            reason = "first hop RTT";
+        else if (gc > m_max_gc)
+            reason = "GC";
+        else
+            reason = null;
+
+        int concurrency = m_client.getConcurrency();
+        int next = (reason != null) ? Math.max(m_min, concurrency / 2) :
+            Math.min(m_max, concurrency + 1);
+        if (next != concurrency)
+            m_client.setConcurrency(next);
+        LOGGER.info(String.format("Load control: cpu %.2f, first hop RTT x%.2f, GC %.1f%%:" +
+                                  " concurrency %d -> %d%s.",
+                                  cpu, inflation, 100 * gc, concurrency, next,
+                                  (reason == null) ? "" : " (" + reason + ")"));
+    }
+}
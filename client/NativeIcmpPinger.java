@@ -0,0 +1,164 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+   This class pings a remote destination from inside the JVM, using a
+   Linux unprivileged ICMP socket (see IcmpSocket), instead of launching
+   an external ping command. It avoids a fork/exec and the parsing of
+   localized output for every destination.
+
+   <p>It behaves like <tt>ping -w 15 -W 2 -c N</tt>: one echo request
+   per second, stopping when all replies arrived, when the last request
+   waited long enough or at the deadline. When ICMP sockets are not
+   allowed (see net.ipv4.ping_group_range), it falls back to IcmpPinger.
+
+   <p>The output has the same format as IcmpPinger:
+
+   <p><tt>ICMP 132.204.24.179 5 5 4005ms 3.660ms 7.140ms 2.390ms 11.600ms 3.590ms</tt>
+*/
+public class NativeIcmpPinger implements Prober {
+    /// Logging
+    private final static Logger LOGGER = Logger.getLogger(NativeIcmpPinger.class.getName());
+
+    /** Time between two echo requests, in milliseconds (ping -i) */
+    static final int INTERVAL = 1000;
+    /** Time to wait for the reply to the last request, in milliseconds (ping -W) */
+    static final int REPLY_TIMEOUT = 2000;
+    /** Maximum time for the whole probe, in milliseconds (ping -w) */
+    static final int DEADLINE = 15000;
+
+    /** Holds the last collected times */
+    private ProbeResult m_result;
+
+    /** A reference to ClientInfo */
+    private ClientInfo m_info;
+
+    /** Used when in-process ICMP sockets are not available */
+    private IcmpPinger m_fallback;
+
+    /** Sequence numbers are kept unique across probes of this instance */
+    private int m_next_sequence = 0;
+
+    public String getLastProbe() { return m_result.toString(); }
+
+    public ProbeResult getLastResult() { return m_result; }
+
+    public void clearProbe() { m_result = ProbeResult.EMPTY; }
+
+    /**
+       Pings addr getNumberOfPings() times.
+
+       @return 0 if all the echo requests were answered, 1 otherwise (as
+       ping does), or the fallback IcmpPinger's return code
+    */
+    public int probe(InetAddress addr) throws InterruptedException {
+        if (!IcmpSocket.isSupported())
+            return fallbackProbe(addr);
+
+        IcmpSocket socket;
+        try {
+            socket = IcmpSocket.forAddress(addr);
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.INFO, "Cannot open ICMP socket, using ping command.", e);
+            return fallbackProbe(addr);
+        }
+
+        try {
+            return probe(socket, addr);
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    private int probe(IcmpSocket socket, InetAddress addr) throws InterruptedException {
+        int count = m_info.getNumberOfPings();
+        int first_sequence = m_next_sequence;
+        m_next_sequence = (m_next_sequence + count) & 0xffff;
+
+        long[] sent_at = new long[count];
+        long[] rtt = new long[count];
+        int sent = 0;
+        int received = 0;
+        IcmpSocket.Reply reply = new IcmpSocket.Reply();
+
+        long start = System.nanoTime();
+        long deadline = start + DEADLINE * 1000000L;
+        long next_send = start;
+
+        try {
+            while (true) {
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+
+                long now = System.nanoTime();
+                if (sent < count && now >= next_send) {
+                    sent_at[sent] = System.nanoTime();
+                    socket.send(addr, first_sequence + sent);
+                    sent++;
+                    next_send += INTERVAL * 1000000L;
+                    now = System.nanoTime();
+                }
+
+                // Done when everything is answered, when the last reply
+                // is overdue or at the deadline.
+                long end = deadline;
+                if (sent == count)
+                    end = Math.min(end, sent_at[count - 1] + REPLY_TIMEOUT * 1000000L);
+                if (received == count || now >= end)
+                    break;
+
+                long wait_until = (sent < count) ? Math.min(next_send, end) : end;
+                int wait_ms = (int)Math.max(1, (wait_until - now + 999999) / 1000000);
+                if (!socket.receive(wait_ms, reply) || !reply.isEchoReply() ||
+                    !addr.equals(reply.from))
+                    continue;
+
+                int index = (reply.sequence - first_sequence) & 0xffff;
+                if (index < sent && rtt[index] == 0) {
+                    rtt[index] = Math.max(1, reply.time_received - sent_at[index]);
+                    received++;
+                }
+            }
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.INFO, "ICMP socket error while pinging " + addr.getHostAddress(), e);
+        }
+
+        long total = (System.nanoTime() - start) / 1000000;
+        m_result = new ProbeResult.Icmp(addr, sent, received, total, rtt);
+        return (received == count) ? 0 : 1;
+    }
+
+    private int fallbackProbe(InetAddress addr) throws InterruptedException {
+        int retval = m_fallback.probe(addr);
+        m_result = m_fallback.getLastResult();
+        return retval;
+    }
+
+    /**
+       Creates a NativeIcmpPinger (linked to a ClientInfo configuration)
+       @param this_info A reference to a ClientInfo
+       @see ClientInfo
+    */
+    public NativeIcmpPinger(ClientInfo this_info) {
+        m_result = ProbeResult.EMPTY;
+        m_info = this_info;
+        m_fallback = new IcmpPinger(this_info);
+    }
+
+    /**
+       Pings the given host, for testing.
+    */
+    public static void main(String args[]) throws Exception {
+        String host = (args.length > 0) ? args[0] : "127.0.0.1";
+        ClientInfo info = new ClientInfo("", "");
+        NativeIcmpPinger pinger = new NativeIcmpPinger(info);
+        System.out.println("In-process ICMP supported: " + IcmpSocket.isSupported());
+        int retval = pinger.probe(InetAddress.getByName(host));
+        System.out.println(retval + " " + pinger.getLastProbe());
+    }
+}
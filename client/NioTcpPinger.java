@@ -0,0 +1,389 @@
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+   This class does TCP-based pinging like TcpPinger, but with
+   non-blocking connects on a NIO Selector. One thread can then time
+   the connections to many (address, port) pairs at once: each
+   SocketChannel.connect() is issued in non-blocking mode, the time is
+   taken when OP_CONNECT becomes ready and the timeouts are enforced by
+   the same event loop.
+
+   <p>The sockets are taken from the TcpSocketBudget shared with
+   TcpPinger: when it is spent, the attempts due wait as they do for
+   the maximum of connections in progress.
+
+   <p>Each destination follows the TcpPinger rules (same number of
+   attempts, 500ms between attempts, give up if the first attempt
+   fails) and gets the same output line:
+
+   <p><tt>TCP 132.204.24.179:80 5 3 1000 3.770ms 4.588ms 8.609ms</tt>
+*/
+public class NioTcpPinger implements Prober {
+    /// Logging
+    private final static Logger LOGGER = Logger.getLogger(NioTcpPinger.class.getName());
+
+    /** Time between two attempts to the same destination, in milliseconds */
+    static final int ATTEMPT_INTERVAL = 500;
+
+    /** Default maximum number of connections in progress at once */
+    static final int DEFAULT_MAX_IN_FLIGHT = 1000;
+
+    /** Time between two looks at an empty socket budget, in milliseconds */
+    static final int BUDGET_POLL = 10;
+
+    /** Holds the last collected times */
+    private ProbeResult m_result;
+
+    /** A reference to ClientInfo */
+    private ClientInfo m_info;
+
+    /** Maximum number of connections in progress at once */
+    private int m_max_in_flight = DEFAULT_MAX_IN_FLIGHT;
+
+    /** The sockets the pings may use */
+    private TcpSocketBudget m_budget = TcpSocketBudget.getDefault();
+
+    /**
+       Returns the last collected times as a String, in the TcpPinger
+       format.
+
+       @see TcpPinger#getLastProbe()
+    */
+    public String getLastProbe() { return m_result.toString(); }
+
+    public ProbeResult getLastResult() { return m_result; }
+
+    public void clearProbe() { m_result = ProbeResult.EMPTY; }
+
+    /**
+       Pings an external IP address using the default port (80).
+    */
+    public int probe(InetAddress addr) throws InterruptedException {
+        return probe(addr, 80);
+    }
+
+    /**
+       Pings an external IP address using a specific port.
+
+       @return 0 (for compatibility with other pinger-classes that return the exit code)
+    */
+    public int probe(InetAddress addr, int port) throws InterruptedException {
+        m_result = probe(new InetAddress[] {addr}, port)[0];
+        return 0;
+    }
+
+    /**
+       Sets how many connections may be in progress at once. The other
+       attempts wait for a free slot.
+    */
+    public void setMaxInFlight(int max_in_flight) {
+        m_max_in_flight = Math.max(1, max_in_flight);
+    }
+
+    /** Sets the budget the sockets of the pings are taken from, the default one otherwise. */
+    public void setBudget(TcpSocketBudget budget) {
+        m_budget = budget;
+    }
+
+    /**
+       Pings all the addresses on the given port, all at once.
+
+       @return one result per address
+    */
+    public ProbeResult.Tcp[] probe(InetAddress[] addresses, int port) throws InterruptedException {
+        Target[] targets = new Target[addresses.length];
+        PriorityQueue<Event> starts = new PriorityQueue<Event>();
+        long now = System.nanoTime();
+        for (int i = 0; i < addresses.length; i++) {
+            targets[i] = new Target(addresses[i], port);
+            starts.add(new Event(now, targets[i], 0));
+        }
+
+        Selector selector = null;
+        try {
+            selector = Selector.open();
+            run(selector, starts, addresses.length);
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.WARNING, "TCP ping event loop failed.", e);
+        }
+        finally {
+            for (Target t : targets)
+                t.closeChannel();
+            try {
+                if (selector != null)
+                    selector.close();
+            }
+            catch (IOException e) {
+            }
+        }
+
+        ProbeResult.Tcp[] results = new ProbeResult.Tcp[addresses.length];
+        for (int i = 0; i < targets.length; i++)
+            results[i] = targets[i].getResult();
+        return results;
+    }
+
+    /**
+       The event loop: expires the attempts that timed out, starts the
+       attempts that are due and waits for OP_CONNECT readiness.
+
+       @param starts the pending attempt starts, by time
+    */
+    private void run(Selector selector, PriorityQueue<Event> starts, int nb_targets)
+        throws IOException, InterruptedException {
+        long timeout = m_info.getTCPTimeOut() * 1000000L;
+        long interval = ATTEMPT_INTERVAL * 1000000L;
+        // Connections in progress, by deadline. Events whose attempt
+        // already completed are stale and skipped.
+        PriorityQueue<Event> timeouts = new PriorityQueue<Event>();
+        int done = 0;
+        int in_flight = 0;
+
+        while (done < nb_targets) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+
+            long now = System.nanoTime();
+            while (!timeouts.isEmpty() && timeouts.peek().time <= now) {
+                Event e = timeouts.poll();
+                Target t = e.target;
+                if (!t.connecting || e.attempt != t.attempt)
+                    continue;
+                t.attemptDone(ProbeResult.Tcp.TIMEOUT, now);
+                in_flight--;
+                if (t.finished)
+                    done++;
+                else
+                    starts.add(new Event(now + interval, t, t.attempt));
+            }
+
+            // The attempts due wait when the socket budget is spent,
+            // as they would for m_max_in_flight
+            boolean over_budget = false;
+            while (in_flight < m_max_in_flight &&
+                   !starts.isEmpty() && starts.peek().time <= now) {
+                if (!m_budget.tryAcquire()) {
+                    over_budget = true;
+                    break;
+                }
+                Target t = starts.poll().target;
+                t.holds_socket = true;
+                if (t.start(selector, now)) {
+                    in_flight++;
+                    timeouts.add(new Event(now + timeout, t, t.attempt));
+                }
+                else if (t.finished)
+                    done++;
+                else
+                    starts.add(new Event(now + interval, t, t.attempt));
+            }
+            if (done == nb_targets)
+                break;
+
+            // Sleep until the next timeout or the next start we may do.
+            long next = Long.MAX_VALUE;
+            if (!timeouts.isEmpty())
+                next = timeouts.peek().time;
+            if (in_flight < m_max_in_flight && !starts.isEmpty())
+                next = Math.min(next, over_budget ? now + BUDGET_POLL * 1000000L :
+                                starts.peek().time);
+            if (next == Long.MAX_VALUE)
+                selector.select();
+            else
+                selector.select(Math.max(1, (next - now + 999999) / 1000000));
+            now = System.nanoTime();
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                Target t = (Target)key.attachment();
+                if (!t.connecting)
+                    continue;
+                byte status = ProbeResult.Tcp.OK;
+                try {
+                    if (!t.channel.finishConnect())
+                        continue;
+                }
+                catch (ConnectException e) {
+                    status = ProbeResult.Tcp.REFUSED;
+                }
+                catch (IOException e) {
+                    status = ProbeResult.Tcp.ERROR;
+                }
+                t.attemptDone(status, now);
+                in_flight--;
+                if (t.finished)
+                    done++;
+                else
+                    starts.add(new Event(now + interval, t, t.attempt));
+            }
+        }
+    }
+
+    /** A timed event of the loop: start or timeout of an attempt. */
+    private static class Event implements Comparable<Event> {
+        final long time;
+        final Target target;
+        final int attempt;
+
+        Event(long time, Target target, int attempt) {
+            this.time = time;
+            this.target = target;
+            this.attempt = attempt;
+        }
+
+        public int compareTo(Event o) {
+            return (time < o.time) ? -1 : ((time == o.time) ? 0 : 1);
+        }
+    }
+
+    /** The state of the pings to one destination. */
+    private class Target {
+        final InetSocketAddress address;
+        SocketChannel channel = null;
+        /** True from the start of an attempt until its socket is returned to the budget */
+        boolean holds_socket = false;
+        boolean connecting = false;
+        boolean finished = false;
+        int attempt = 0;
+        int fails = 0;
+        long start_time;
+        final byte[] status;
+        final long[] rtt;
+
+        Target(InetAddress addr, int port) {
+            address = new InetSocketAddress(addr, port);
+            int attempts = Math.max(1, m_info.getNumberOfTcpPings());
+            status = new byte[attempts];
+            rtt = new long[attempts];
+        }
+
+        /**
+           Starts the next attempt.
+
+           @return true if the connection is in progress
+        */
+        boolean start(Selector selector, long now) {
+            start_time = now;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                if (channel.connect(address)) {
+                    attemptDone(ProbeResult.Tcp.OK, System.nanoTime());
+                    return false;
+                }
+                channel.register(selector, SelectionKey.OP_CONNECT, this);
+                connecting = true;
+                return true;
+            }
+            catch (ConnectException e) {
+                attemptDone(ProbeResult.Tcp.REFUSED, System.nanoTime());
+            }
+            catch (IOException e) {
+                attemptDone(ProbeResult.Tcp.ERROR, System.nanoTime());
+            }
+            return false;
+        }
+
+        /**
+           Records the end of the current attempt.
+
+           @param result ProbeResult.Tcp.OK, REFUSED, TIMEOUT or ERROR
+        */
+        void attemptDone(byte result, long now) {
+            connecting = false;
+            closeChannel();
+            if (result != ProbeResult.Tcp.OK)
+                fails++;
+            status[attempt] = result;
+            rtt[attempt] = now - start_time;
+            attempt++;
+            if (attempt >= m_info.getNumberOfTcpPings())
+                finished = true;
+            else if (fails >= attempt) {
+                // As in TcpPinger: if the first connection fails, the
+                // others are not tried, to spare routers with small
+                // connection tables.
+                fails = m_info.getNumberOfPings();
+                finished = true;
+            }
+        }
+
+        void closeChannel() {
+            boolean connected = false;
+            if (channel != null) {
+                connected = channel.isConnected();
+                try {
+                    if (connected && m_budget.isAbortiveClose())
+                        channel.socket().setSoLinger(true, 0);
+                }
+                catch (SocketException e) {
+                }
+                try {
+                    channel.close();
+                }
+                catch (IOException e) {
+                }
+                channel = null;
+            }
+            if (holds_socket) {
+                holds_socket = false;
+                m_budget.release(connected);
+            }
+        }
+
+        ProbeResult.Tcp getResult() {
+            return new ProbeResult.Tcp(address.getAddress(), address.getPort(),
+                                       m_info.getNumberOfPings(), m_info.getNumberOfPings() - fails,
+                                       m_info.getTCPTimeOut(), Arrays.copyOf(status, attempt),
+                                       Arrays.copyOf(rtt, attempt));
+        }
+    }
+
+    /**
+       Creates a NioTcpPinger (linked to a ClientInfo configuration)
+       @param this_info A reference to a ClientInfo
+       @see ClientInfo
+    */
+    public NioTcpPinger(ClientInfo this_info) {
+        m_result = ProbeResult.EMPTY;
+        m_info = this_info;
+    }
+
+    /**
+       Pings the given hosts on port 80 (or -p=port), for testing.
+    */
+    public static void main(String args[]) throws Exception {
+        int port = 80;
+        java.util.ArrayList<InetAddress> hosts = new java.util.ArrayList<InetAddress>();
+        for (String a : args) {
+            if (a.startsWith("-p="))
+                port = Integer.parseInt(a.substring(3));
+            else
+                hosts.add(InetAddress.getByName(a));
+        }
+        if (hosts.isEmpty())
+            hosts.add(InetAddress.getByName("127.0.0.1"));
+
+        NioTcpPinger pinger = new NioTcpPinger(new ClientInfo("", ""));
+        long start = System.currentTimeMillis();
+        ProbeResult[] results = pinger.probe(hosts.toArray(new InetAddress[hosts.size()]), port);
+        for (ProbeResult r : results)
+            System.out.println(r);
+        System.out.println("Took " + (System.currentTimeMillis() - start) + "ms");
+    }
+}
@@ -6,8 +6,12 @@ import java.net.InetAddress;
    @author Frédéric Bastien
 */
 public class NullProber implements  Prober {
+    private static final ProbeResult NULL = new ProbeResult.Text("Null");
+
     public String getLastProbe() { return "Null"; }
 
+    public ProbeResult getLastResult() { return NULL; }
+
     /**
        Clears the last collected times
     */
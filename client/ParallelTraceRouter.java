@@ -0,0 +1,421 @@
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+   This class does the traceroute to a remote destination from inside
+   the JVM, probing all the hops at once instead of one after the other
+   as the traceroute command does (in the style of mtr).
+
+   <p>TTL-limited echo requests are sent for every hop from 1 to
+   MAX_HOPS on an ICMP socket shared by all the ParallelTraceRouter
+   instances. A single receiver thread per socket collects the time
+   exceeded errors and echo replies and hands them to the trace that
+   owns their sequence number. The trace stops at the first hop that
+   reaches the destination, so a silent tail costs one WAIT instead of
+   one timeout per probe.
+
+   <p>A TopologyCache lets traces skip what earlier traces already
+   found (Doubletree): they start after the first hops shared by all the
+   paths from this client, send their first round only a little past
+   the known distance to the destination's prefix and send no more
+   probes past a hop already seen on the way to that prefix. The hops
+   that were skipped are missing from the output.
+
+   <p>The output uses the TraceRouter format, so consumers do not
+   change:
+
+   <p><tt>TROUTE 132.204.24.179 1 10.39.128.2 7.078ms 8.637ms 8.628ms,5 132.204.24.179 8.499ms * *</tt>
+
+   <p>When in-process ICMP sockets are not available, it falls back to
+   TraceRouter and the external traceroute command.
+*/
+public class ParallelTraceRouter implements Prober {
+    /// Logging
+    private final static Logger LOGGER = Logger.getLogger(ParallelTraceRouter.class.getName());
+
+    /** Highest TTL probed, as traceroute's default */
+    static final int MAX_HOPS = 30;
+    /** Maximum number of probes per hop */
+    static final int MAX_QUERIES = 4;
+    /** Time between two rounds of probes, in milliseconds. Spreads the
+        probes a router sees, as many rate-limit their ICMP errors. */
+    static final int ROUND_GAP = 50;
+    /** Time to wait for a reply after the last probe, in milliseconds (traceroute -w) */
+    static final int WAIT = 1000;
+
+    /** Sequence numbers are given out to traces in blocks of this size */
+    static final int BLOCK_SIZE = MAX_HOPS * MAX_QUERIES;
+    static final int NB_BLOCKS = 65536 / BLOCK_SIZE;
+
+    /** Holds the last collected trace */
+    private ProbeResult m_result;
+
+    /** A reference to ClientInfo */
+    private ClientInfo m_info;
+
+    /** Used when in-process ICMP sockets are not available */
+    private TraceRouter m_fallback;
+
+    /** The topology already known, null to always trace the whole path */
+    private TopologyCache m_cache;
+
+    /** The sockets shared by all the instances, created on first use */
+    private static SharedSocket s_socket4 = null;
+    private static SharedSocket s_socket6 = null;
+
+    public String getLastProbe() { return m_result.toString(); }
+
+    public ProbeResult getLastResult() { return m_result; }
+
+    public void clearProbe() { m_result = ProbeResult.EMPTY; }
+
+    /**
+       Sets the TopologyCache used to skip known hops, or null to trace
+       every path in full.
+    */
+    public void setTopologyCache(TopologyCache cache) { m_cache = cache; }
+
+    /**
+       Traces the route to addr.
+
+       @return 0, or the fallback TraceRouter's return code
+    */
+    public int probe(InetAddress addr) throws InterruptedException {
+        if (!IcmpSocket.isSupported())
+            return fallbackProbe(addr);
+
+        SharedSocket socket;
+        try {
+            socket = getSharedSocket(addr instanceof Inet6Address);
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.INFO, "Cannot open ICMP socket, using traceroute command.", e);
+            return fallbackProbe(addr);
+        }
+
+        int queries = Math.min(MAX_QUERIES, m_info.getNumberOfTraces());
+        int first_ttl = 1;
+        int first_round_max = MAX_HOPS;
+        if (m_cache != null) {
+            first_ttl = m_cache.getFirstTtl(addr);
+            first_round_max = Math.max(first_ttl, m_cache.getExpectedDistance(addr, MAX_HOPS));
+        }
+        Trace trace = new Trace(addr, queries, m_cache, first_ttl, first_round_max);
+        int block = socket.register(trace);
+        if (block < 0) {
+            // All the sequence numbers are in use.
+            return fallbackProbe(addr);
+        }
+        try {
+            trace.run(socket, block * BLOCK_SIZE);
+        }
+        finally {
+            socket.unregister(block);
+        }
+        if (m_cache != null)
+            trace.learn(m_cache);
+
+        m_result = trace.getResult();
+        return 0;
+    }
+
+    private int fallbackProbe(InetAddress addr) throws InterruptedException {
+        int retval = m_fallback.probe(addr);
+        m_result = m_fallback.getLastResult();
+        return retval;
+    }
+
+    private static synchronized SharedSocket getSharedSocket(boolean ipv6) throws IOException {
+        if (ipv6) {
+            if (s_socket6 == null)
+                s_socket6 = new SharedSocket(new IcmpSocket(true));
+            return s_socket6;
+        }
+        if (s_socket4 == null)
+            s_socket4 = new SharedSocket(new IcmpSocket(false));
+        return s_socket4;
+    }
+
+    /**
+       The probes and replies of one traceroute. Index k = query *
+       MAX_HOPS + (ttl - 1) is the probe's offset in the sequence block.
+    */
+    static class Trace {
+        private final InetAddress m_target;
+        private final int m_queries;
+        private final long[] m_sent_at = new long[BLOCK_SIZE];
+        private final long[] m_rtt = new long[BLOCK_SIZE];
+        private final InetAddress[] m_from = new InetAddress[BLOCK_SIZE];
+        private final String[] m_flag = new String[BLOCK_SIZE];
+        /** Lowest TTL at which the destination (or an unreachable) answered */
+        private int m_last_hop = MAX_HOPS;
+        /** True if a reply ended the trace at m_last_hop */
+        private boolean m_terminal = false;
+        /** True if that reply is the destination's echo reply */
+        private boolean m_reached = false;
+        /** Lowest TTL whose hop is in the global stop set */
+        private int m_stop_hop = MAX_HOPS;
+        /** The global stop set, or null */
+        private final TopologyCache m_cache;
+        /** First TTL probed */
+        private final int m_first_ttl;
+        /** Last TTL probed by the first round */
+        private final int m_first_round_max;
+
+        Trace(InetAddress target, int queries, TopologyCache cache,
+              int first_ttl, int first_round_max) {
+            m_target = target;
+            m_queries = queries;
+            m_cache = cache;
+            m_first_ttl = first_ttl;
+            m_first_round_max = first_round_max;
+        }
+
+        /**
+           Sends all the probes then waits for the replies, until every
+           hop up to the destination answered or WAIT expired.
+        */
+        void run(SharedSocket socket, int first_sequence) throws InterruptedException {
+            for (int q = 0; q < m_queries; q++) {
+                if (q != 0)
+                    Thread.sleep(ROUND_GAP);
+                int max_ttl = (q == 0) ? m_first_round_max : MAX_HOPS;
+                for (int ttl = m_first_ttl; ttl <= max_ttl; ttl++) {
+                    synchronized (this) {
+                        // No need to go past the destination or into
+                        // known territory.
+                        if (ttl > m_last_hop || ttl > m_stop_hop)
+                            break;
+                    }
+                    int k = q * MAX_HOPS + (ttl - 1);
+                    try {
+                        synchronized (this) {
+                            m_sent_at[k] = System.nanoTime();
+                        }
+                        socket.send(m_target, first_sequence + k, ttl);
+                    }
+                    catch (IOException e) {
+                        LOGGER.log(Level.FINE, "Cannot send probe with ttl " + ttl, e);
+                    }
+                }
+            }
+
+            long deadline = System.nanoTime() + WAIT * 1000000L;
+            synchronized (this) {
+                while (!isComplete()) {
+                    long left = (deadline - System.nanoTime()) / 1000000;
+                    if (left <= 0)
+                        break;
+                    wait(left);
+                }
+            }
+        }
+
+        /** @return true if every probe sent up to the last hop was answered */
+        private boolean isComplete() {
+            int last = Math.min(m_last_hop, m_stop_hop);
+            for (int q = 0; q < m_queries; q++)
+                for (int ttl = m_first_ttl; ttl <= last; ttl++) {
+                    int k = q * MAX_HOPS + (ttl - 1);
+                    if (m_sent_at[k] != 0 && m_rtt[k] == 0)
+                        return false;
+                }
+            return true;
+        }
+
+        /**
+           Records a reply. Called by the receiver thread.
+
+           @param k the probe's offset in the sequence block
+        */
+        synchronized void record(int k, IcmpSocket.Reply reply) {
+            if (k >= BLOCK_SIZE || m_sent_at[k] == 0 || m_rtt[k] != 0)
+                return;
+            int ttl = k % MAX_HOPS + 1;
+            boolean last = false;
+            if (reply.isEchoReply()) {
+                if (!m_target.equals(reply.from))
+                    return;
+                last = true;
+            }
+            else if (reply.isUnreachable()) {
+                m_flag[k] = unreachableFlag(reply);
+                last = true;
+            }
+            else if (!reply.isTimeExceeded())
+                return;
+
+            m_rtt[k] = Math.max(1, reply.time_received - m_sent_at[k]);
+            m_from[k] = reply.from;
+            if (last && ttl < m_last_hop) {
+                m_last_hop = ttl;
+                m_terminal = true;
+                m_reached = reply.isEchoReply();
+            }
+            else if (!last && ttl < m_stop_hop && m_cache != null &&
+                     m_cache.isKnown(reply.from, m_target))
+                m_stop_hop = ttl;
+            notifyAll();
+        }
+
+        /** Records the hops that answered in cache. */
+        synchronized void learn(TopologyCache cache) {
+            InetAddress[] hops = new InetAddress[m_last_hop];
+            for (int ttl = m_first_ttl; ttl <= m_last_hop; ttl++)
+                for (int q = 0; q < m_queries && hops[ttl - 1] == null; q++)
+                    hops[ttl - 1] = m_from[q * MAX_HOPS + (ttl - 1)];
+            cache.learn(m_target, hops, m_terminal ? m_last_hop : 0, m_reached);
+        }
+
+        /** The traceroute annotation for a destination unreachable */
+        private static String unreachableFlag(IcmpSocket.Reply reply) {
+            if (reply.from instanceof Inet6Address) {
+                switch (reply.code) {
+                case 0: return "!N";
+                case 1: return "!X";
+                case 3: return "!H";
+                case 4: return null; // Port unreachable: we got there
+                default: return "!" + reply.code;
+                }
+            }
+            switch (reply.code) {
+            case 0: return "!N";
+            case 1: return "!H";
+            case 2: return "!P";
+            case 3: return null; // Port unreachable: we got there
+            case 13: return "!X";
+            default: return "!" + reply.code;
+            }
+        }
+
+        /**
+           Copies the hops up to the last one into a ProbeResult.Trace,
+           leaving out the hops where all probes were lost.
+        */
+        synchronized ProbeResult getResult() {
+            int nb_hops = 0;
+            int[] ttls = new int[m_last_hop];
+            for (int ttl = m_first_ttl; ttl <= m_last_hop; ttl++)
+                for (int q = 0; q < m_queries; q++)
+                    if (m_rtt[q * MAX_HOPS + (ttl - 1)] != 0) {
+                        ttls[nb_hops++] = ttl;
+                        break;
+                    }
+
+            InetAddress[][] from = new InetAddress[nb_hops][m_queries];
+            long[][] rtt = new long[nb_hops][m_queries];
+            String[][] flag = new String[nb_hops][m_queries];
+            for (int h = 0; h < nb_hops; h++)
+                for (int q = 0; q < m_queries; q++) {
+                    int k = q * MAX_HOPS + (ttls[h] - 1);
+                    from[h][q] = m_from[k];
+                    rtt[h][q] = m_rtt[k];
+                    flag[h][q] = m_flag[k];
+                }
+            return new ProbeResult.Trace(m_target, Arrays.copyOf(ttls, nb_hops), from, rtt, flag);
+        }
+    }
+
+    /**
+       An ICMP socket shared by concurrent traces, with its receiver
+       thread. Each trace registers for a block of sequence numbers and
+       gets the replies to them.
+    */
+    static class SharedSocket extends Thread {
+        private final IcmpSocket m_socket;
+        private final Trace[] m_traces = new Trace[NB_BLOCKS];
+        private int m_next_block = 0;
+
+        SharedSocket(IcmpSocket socket) {
+            m_socket = socket;
+            setName("ParallelTraceRouter receiver");
+            setDaemon(true);
+            start();
+        }
+
+        /** @return the block given to trace, or -1 if none is free */
+        synchronized int register(Trace trace) {
+            for (int i = 0; i < NB_BLOCKS; i++) {
+                int block = (m_next_block + i) % NB_BLOCKS;
+                if (m_traces[block] == null) {
+                    m_traces[block] = trace;
+                    m_next_block = (block + 1) % NB_BLOCKS;
+                    return block;
+                }
+            }
+            return -1;
+        }
+
+        synchronized void unregister(int block) {
+            m_traces[block] = null;
+        }
+
+        private synchronized Trace getTrace(int block) {
+            return (block < NB_BLOCKS) ? m_traces[block] : null;
+        }
+
+        /** Sends one probe; the TTL is per socket, so sends are serialized. */
+        void send(InetAddress addr, int sequence, int ttl) throws IOException {
+            synchronized (m_socket) {
+                m_socket.send(addr, sequence, ttl);
+            }
+        }
+
+        public void run() {
+            IcmpSocket.Reply reply = new IcmpSocket.Reply();
+            while (true) {
+                try {
+                    if (!m_socket.receive(1000, reply))
+                        continue;
+                    Trace trace = getTrace(reply.sequence / BLOCK_SIZE);
+                    if (trace != null)
+                        trace.record(reply.sequence % BLOCK_SIZE, reply);
+                }
+                catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "ParallelTraceRouter receiver error.", e);
+                    try {
+                        Thread.sleep(1000);
+                    }
+                    catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+       Creates a ParallelTraceRouter (linked to a ClientInfo configuration)
+       @param this_info A reference to a ClientInfo
+       @see ClientInfo
+    */
+    public ParallelTraceRouter(ClientInfo this_info) {
+        m_result = ProbeResult.EMPTY;
+        m_info = this_info;
+        m_fallback = new TraceRouter(this_info);
+        m_cache = TopologyCache.getDefault();
+    }
+
+    /**
+       Traces the route to the given host, optionally several times to
+       see the topology cache at work, for testing.
+    */
+    public static void main(String args[]) throws Exception {
+        String host = (args.length > 0) ? args[0] : "127.0.0.1";
+        int count = (args.length > 1) ? Integer.parseInt(args[1]) : 1;
+        ParallelTraceRouter router = new ParallelTraceRouter(new ClientInfo("", ""));
+        router.setTopologyCache(new TopologyCache(null));
+        for (int i = 0; i < count; i++) {
+            if (i != 0)
+                Thread.sleep(2000); // ICMP errors are rate limited
+            long start = System.currentTimeMillis();
+            int retval = router.probe(InetAddress.getByName(host));
+            System.out.println(retval + " " + router.getLastProbe());
+            System.out.println("Took " + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+}
@@ -0,0 +1,127 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+   Checks that the hand-written parsers of ProbeOutputParser give exactly
+   the strings of the regexes of IcmpPinger and TraceRouter on their test
+   vectors, then times both on that corpus.
+
+   <p>Not part of the client. Run with "make bench" or
+   <tt>java ParserBenchmark [passes]</tt>; exits with 1 if an output
+   differs.
+*/
+public class ParserBenchmark {
+    /** One parse of the corpus */
+    private static abstract class Case {
+        final String m_name;
+
+        Case(String name) {
+            m_name = name;
+        }
+
+        /** @param regex true to run the regex version */
+        abstract String run(boolean regex);
+    }
+
+    private static List<String> lines(String... lines) {
+        return new LinkedList<String>(Arrays.asList(lines));
+    }
+
+    private static void addSummaries(List<Case> corpus, String name,
+                                     String[] vectors, final int format) {
+        for (int i = 0; i < vectors.length; i++) {
+            final List<String> out = lines(vectors[i]);
+            corpus.add(new Case(name + " summary " + i) {
+                    String run(boolean regex) {
+                        String[] summary_regex = IcmpPinger.OS_SPECIFIC_SUMMARY_REGEX[format];
+                        return regex ? IcmpPinger.getSummaryRegex(summary_regex, out) :
+                            IcmpPinger.getSummary(summary_regex, out);
+                    }
+                });
+        }
+    }
+
+    private static void addTraces(List<Case> corpus, String name,
+                                  String[][] vectors, final int format) {
+        for (int i = 0; i < vectors.length; i++) {
+            final List<String> out =
+                lines(Arrays.copyOfRange(vectors[i], 0, vectors[i].length - 1));
+            corpus.add(new Case(name + " traceroute " + i) {
+                    String run(boolean regex) {
+                        String reject = TraceRouter.OS_SPECIFIC_REJECT_REGEX[0];
+                        String[] translator = TraceRouter.OS_SPECIFIC_TRANSLATOR[format];
+                        return regex ? TraceRouter.getTimesRegex(reject, translator, 0, out) :
+                            TraceRouter.getTimes(reject, translator, 0, out);
+                    }
+                });
+        }
+    }
+
+    static List<Case> getCorpus() {
+        List<Case> corpus = new ArrayList<Case>();
+        addSummaries(corpus, "Windows", IcmpPinger.TEST_WINDOWS_SUMMARIES,
+                     ProbeOutputParser.SUMMARY_WINDOWS);
+        addSummaries(corpus, "Linux", IcmpPinger.TEST_LINUX_SUMMARIES,
+                     ProbeOutputParser.SUMMARY_UNIX);
+        addSummaries(corpus, "OSX", IcmpPinger.TEST_OSX_SUMMARIES,
+                     ProbeOutputParser.SUMMARY_OSX);
+        for (int i = 0; i < IcmpPinger.TEST_TIMES.length; i++) {
+            final List<String> out = lines(IcmpPinger.TEST_TIMES[i]);
+            corpus.add(new Case("times " + i) {
+                    String run(boolean regex) {
+                        return regex ? IcmpPinger.getTimesRegex(out) : IcmpPinger.getTimes(out);
+                    }
+                });
+        }
+        addTraces(corpus, "OSX", TraceRouter.TEST_OSX, ProbeOutputParser.HOPS_UNIX);
+        addTraces(corpus, "Linux", TraceRouter.TEST_LINUX, ProbeOutputParser.HOPS_UNIX);
+        addTraces(corpus, "Windows", TraceRouter.TEST_WINDOWS, ProbeOutputParser.HOPS_WINDOWS);
+        return corpus;
+    }
+
+    /** @return the best time of one pass over the corpus, in nanoseconds */
+    private static long time(List<Case> corpus, boolean regex, int passes) {
+        long best = Long.MAX_VALUE;
+        int sink = 0;
+        for (int round = 0; round < 10; round++) {
+            long start = System.nanoTime();
+            for (int p = 0; p < passes; p++)
+                for (Case c : corpus)
+                    sink += c.run(regex).length();
+            best = Math.min(best, (System.nanoTime() - start) / passes);
+        }
+        if (sink == 42)
+            System.out.println();
+        return best;
+    }
+
+    public static void main(String args[]) {
+        int passes = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+        List<Case> corpus = getCorpus();
+
+        int differences = 0;
+        for (Case c : corpus) {
+            String expected = c.run(true);
+            String actual = c.run(false);
+            if (!Arrays.equals(expected.getBytes(), actual.getBytes())) {
+                System.out.println("DIFFERENT OUTPUT for " + c.m_name +
+                                   "\n  regex:  " + expected + "\n  parser: " + actual);
+                differences++;
+            }
+        }
+        System.out.println(corpus.size() + " cases, " + differences + " different outputs");
+        if (differences != 0)
+            System.exit(1);
+
+        // Warm up both versions before timing them.
+        time(corpus, true, passes / 10 + 1);
+        time(corpus, false, passes / 10 + 1);
+        long regex_ns = time(corpus, true, passes);
+        long parser_ns = time(corpus, false, passes);
+        System.out.println("regex:  " + regex_ns / 1000.0 + "us per corpus pass");
+        System.out.println("parser: " + parser_ns / 1000.0 + "us per corpus pass");
+        System.out.println("speedup: " + (double)regex_ns / parser_ns + "x");
+    }
+}
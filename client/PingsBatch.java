@@ -0,0 +1,200 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+   The addresses of a ServerProxy.Pings being probed, shared by the
+   probing threads without locks.
+
+   <p>An address is claimed by moving a cursor over the address array,
+   or over an order of its indexes (claim()), so each one goes to
+   exactly one thread. That thread is the
+   only one to write the result slot of the address (complete()). A
+   count of the addresses not done yet is decremented as results are
+   stored: the thread of the last decrement sees all the results and is
+   the one to submit the Pings.
+
+   <p>So that a few slow destinations do not hold the whole Pings, the
+   results done so far can be cut off (cut()) and submitted while the
+   stragglers still run; those are submitted by themselves at the end
+   (finish()).
+
+   <p>A claimed address that cannot be probed yet (see
+   PolitenessScheduler) is put aside (defer()) for a thread to take back
+   later (undefer()). The threads draining the batch count themselves
+   (enter(), leave()), so that the last one knows to wait for the
+   addresses put aside instead of leaving them.
+*/
+public class PingsBatch {
+    private final ServerProxy.Pings m_pings;
+    private final int m_size;
+    /** The next address to claim; may go past m_size */
+    private final AtomicInteger m_cursor = new AtomicInteger();
+    /** The indexes of the addresses in the order they are claimed, null for 0, 1, ... */
+    private final int[] m_order;
+    private final long m_start = System.currentTimeMillis();
+    /** The time the probes should take, in milliseconds, -1 if unknown */
+    private volatile long m_predicted_makespan = -1;
+    /** The addresses whose result is not stored yet */
+    private final AtomicInteger m_remaining;
+    /** The results submitted at the cutoff, null if not cut */
+    private ProbeResult[] m_first = null;
+    private boolean m_finished = false;
+    /** The claimed addresses put aside */
+    private final ConcurrentLinkedQueue<Integer> m_deferred = new ConcurrentLinkedQueue<Integer>();
+    private final AtomicInteger m_nb_deferred = new AtomicInteger();
+    /** The threads draining the batch */
+    private final AtomicInteger m_drainers = new AtomicInteger();
+
+    public PingsBatch(ServerProxy.Pings pings) {
+        this(pings, null);
+    }
+
+    /** @param order the indexes of the addresses, in the order to claim them */
+    public PingsBatch(ServerProxy.Pings pings, int[] order) {
+        m_pings = pings;
+        m_order = order;
+        m_size = pings.size();
+        m_remaining = new AtomicInteger(m_size);
+    }
+
+    public ServerProxy.Pings getPings() { return m_pings; }
+
+    /** @return the number of addresses of the batch */
+    public int size() { return m_size; }
+
+    /**
+       Claims an address to probe.
+
+       @return the index of an address no other thread got, -1 if all
+       were claimed
+    */
+    public int claim() {
+        if (m_cursor.get() >= m_size)
+            return -1;
+        int i = m_cursor.getAndIncrement();
+        if (i >= m_size)
+            return -1;
+        return (m_order == null) ? i : m_order[i];
+    }
+
+    /** Puts aside a claimed address, to be probed later. */
+    public void defer(int i) {
+        m_deferred.add(Integer.valueOf(i));
+        m_nb_deferred.incrementAndGet();
+    }
+
+    /** @return the index of an address put aside, -1 if none is */
+    public int undefer() {
+        Integer i = m_deferred.poll();
+        if (i == null)
+            return -1;
+        m_nb_deferred.decrementAndGet();
+        return i.intValue();
+    }
+
+    /** @return the number of addresses put aside */
+    public int getDeferred() {
+        return m_nb_deferred.get();
+    }
+
+    /** Counts a thread that starts draining the batch. */
+    public void enter() {
+        m_drainers.incrementAndGet();
+    }
+
+    /** @return the number of threads still draining the batch, once this one left */
+    public int leave() {
+        return m_drainers.decrementAndGet();
+    }
+
+    /** @return the time since the batch was made, in milliseconds */
+    public long getAge() {
+        return System.currentTimeMillis() - m_start;
+    }
+
+    public void setPredictedMakespan(long ms) {
+        m_predicted_makespan = ms;
+    }
+
+    /** @return the time the probes should take, in milliseconds, -1 if unknown */
+    public long getPredictedMakespan() {
+        return m_predicted_makespan;
+    }
+
+    /** @return the number of addresses not claimed yet */
+    public int getUnclaimed() {
+        return Math.max(0, m_size - m_cursor.get());
+    }
+
+    /** @return the number of addresses whose result is not stored yet */
+    public int getRemaining() {
+        return m_remaining.get();
+    }
+
+    /** @return the number of addresses whose result is stored */
+    public int getDone() {
+        return m_size - m_remaining.get();
+    }
+
+    /** @return a copy of the Pings with other results, as part part */
+    private ServerProxy.Pings copy(ProbeResult[] results, String part) {
+        ServerProxy.Pings copy = new ServerProxy.Pings();
+        copy.columns = m_pings.columns;
+        copy.results = results;
+        copy.token = m_pings.token;
+        copy.time_fetched = m_pings.time_fetched;
+        copy.min_round_time = m_pings.min_round_time;
+        copy.probe_plan = m_pings.probe_plan;
+        copy.part = part;
+        return copy;
+    }
+
+    /**
+       Cuts off the results done so far, once.
+
+       @return the Pings with the results done so far, the others null,
+       as the "first" part; null if the batch was already cut or all
+       its results are done
+    */
+    public synchronized ServerProxy.Pings cut() {
+        if (m_first != null || m_finished || m_remaining.get() == 0)
+            return null;
+        m_first = m_pings.results.clone();
+        return copy(m_first, "first");
+    }
+
+    /** @return true if the results were cut off */
+    public synchronized boolean isCut() {
+        return m_first != null;
+    }
+
+    /**
+       Ends the batch, after complete() returned true.
+
+       @return null if the batch was not cut, else the Pings with only
+       the results that were not in the first part, as the "rest" part
+    */
+    public synchronized ServerProxy.Pings finish() {
+        m_finished = true;
+        if (m_first == null)
+            return null;
+        ProbeResult[] rest = new ProbeResult[m_size];
+        for (int i = 0; i < m_size; i++)
+            if (m_first[i] == null)
+                rest[i] = m_pings.results[i];
+        return copy(rest, "rest");
+    }
+
+    /**
+       Stores the result of an address. Must be called once for each
+       claimed address, by the thread that claimed it.
+
+       @param result the result, null if the probe failed
+       @return true for the last result of the batch: the Pings is
+       complete and can be submitted
+    */
+    public boolean complete(int i, ProbeResult result) {
+        m_pings.results[i] = result;
+        return m_remaining.decrementAndGet() == 0;
+    }
+}
@@ -1,15 +1,25 @@
-import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.logging.Logger;
 import java.util.logging.Level;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Observable;
 import java.util.Observer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.Random;
 
 import javax.swing.SwingUtilities;
@@ -23,6 +33,12 @@ import netscape.javascript.JSObject;
  * to be notified when the source geoip info or ping destination change, you
  * can register yourself with addNotifier().
  *
+ * The addresses of a Pings are probed by the tasks of an executor, whose
+ * number of threads (the number of probes at once) can be changed with
+ * setConcurrency(). The tasks claim the addresses one by one from a
+ * PingsBatch, without locks, and the one storing the last result submits
+ * the Pings.
+ *
  * We give up (and stop the thread) after a total of MAX_ERROR_COUNT errors
  * has occurred. We also do exponential backoff on consecutive errors,
  * to avoid overloading the servers if they have a problem. There is a
@@ -30,8 +46,12 @@ import netscape.javascript.JSObject;
  * stopping to work without user intervention if we need to reboot the server.
  *
  * We will wait at least MIN_ROUND_TIME seconds in average before contacting
- * the server to get new ip to pings. As we have a queue of pings address to
- * get, each pings slot in the queue need to wait MIN_ROUND_TIME*pings_queue_size.
+ * the server to get new ip to pings: each fetch of a Pings waits until that
+ * time (or the min_round_time of the server) has passed since the last one.
+ * With a queue depth of 2 or more (setQueueDepth()), the next Pings is fetched
+ * ahead, while the current one is still probed, once no more than a low-water
+ * mark of addresses wait for a probe (setLowWaterMark()); this way the probes
+ * don't wait for the server between two Pings.
  * We also add a random number of up to 10% of the server MIN_ROUND_TIME to
  * help spread the users in case they all start at the same time.
  * We also multiple the wait_time by WAIT_TIME_BOOST to help load testing
@@ -49,6 +69,10 @@ public class PingsClient extends Observable implements Runnable {
     // only accessed by the subClients thread. No need for locking, etc.
     private ClientInfo m_client_info;
     private ServerProxy m_server_proxy;
+    //The client whose network detection, probes and server connections are
+    //used: this one, or the first identity of an agent (see the
+    //PingsClient(PingsClient, String, String) constructor)
+    private final PingsClient engine;
     private final static Logger LOGGER = Logger.getLogger(PingsClient.class.getName());
     
     // These variables are accessed both by the PingsClient thread and
@@ -68,34 +92,79 @@ public class PingsClient extends Observable implements Runnable {
     String measurements = "";
     boolean shown_analysis = false;
 
-    //The number of subClient(s) to run simultaneously
+    //The number of subClient(s), the probes shown by the GUI, and the default
+    //number of probes to run simultaneously
     static final protected int subClient_number = 6;
     //The maximum number of subClient with TCP prober
-    //This is to help the too small translation table size in some routers
+    //This is to help the too small translation table size in some routers;
+    //the sockets themselves are limited by TcpSocketBudget
     protected int max_tcp_subClient_number = 2;
 
+    //The ProbePlans of the subClients with and without TCP prober: icmp
+    //and tcp start at once (the plans run in parallel mode), and only the
+    //destinations that answered them are traced
+    static final protected String tcp_probe_plan = "icmp, tcp, troute if icmp.reached | tcp.answered";
+    static final protected String probe_plan = "icmp, troute if icmp.reached";
+
     //The subClients
     protected subClient[] subClients_pool;
-    protected Thread[] subClients_threads_pool;
+    //The subClients that are not showing a probe
+    private ConcurrentLinkedQueue<subClient> free_subClients =
+        new ConcurrentLinkedQueue<subClient>();
+    
+    //Does the requests to the server
+    private ServerSync server_sync;
+    
+    //Runs the probes, ProbeTasks draining the batches
+    private ThreadPoolExecutor probe_executor;
+    //The probers not in use, by plan
+    private ConcurrentHashMap<String, ConcurrentLinkedQueue<Prober>> idle_probers =
+        new ConcurrentHashMap<String, ConcurrentLinkedQueue<Prober>>();
+    //How long the probes of each prefix took, to predict the next ones
+    private ProbeTimeHistory probe_times = new ProbeTimeHistory();
+    //Limits the probes running at once toward one network
+    private PolitenessScheduler politeness = new PolitenessScheduler();
+    //True to send the requests to the server with HttpClientTransport
+    private volatile boolean http2 = false;
+    //Resizes the concurrency to the load of the host, null if fixed
+    private volatile LoadController load_controller = null;
+    //True to probe the addresses of a Pings longest expected first
+    private volatile boolean longest_first = false;
+    //The last plan of the server that could not be parsed
+    private volatile String rejected_plan = null;
+    //The number of consecutive probes that ended with an exception
+    private AtomicInteger consecutive_probe_errors = new AtomicInteger();
+    //The probes wait on it while the client is paused
+    private final Object pause_lock = new Object();
+    //Set by destroy(); the probes of an identity don't stop the executor
+    private volatile boolean destroyed = false;
     
-    //The queue of ServerProxy.Pings
+    //When set, each Pings is pinged in one pass by this sweeper instead
+    //of being handed out to the subClients
+    private IcmpSweeper icmp_sweeper = null;
+
+    //The queue of ServerProxy.Pings. With 2 or more, the Pings are pipelined:
+    //the next one is fetched while the current one is still probed
     private int pings_queue_size = 1;
     private ServerProxy.Pings[] pings_queue;
+    //In pipelined mode, the slots of the queue being fetched, probed or submitted
+    private AtomicBoolean[] pings_slot_busy;
+    //In pipelined mode, true while a Pings is being fetched ahead
+    private AtomicBoolean prefetching = new AtomicBoolean(false);
+    //In pipelined mode, the next Pings is fetched once no more than this
+    //number of addresses wait for a probe. -1 for the concurrency.
+    private int low_water_mark = -1;
+    //The straggler cutoff: the results done are submitted once this fraction
+    //of the addresses of a Pings is done, or this many milliseconds after its
+    //probes started (0 for no deadline). The stragglers are submitted later.
+    private volatile double cutoff_fraction = 1;
+    private volatile long cutoff_deadline = 0;
+    //When the last Pings was fetched and its min_round_time, to space the fetches
+    private volatile long last_fetch_time = 0;
+    private volatile long last_min_round_time = 0;
     
-    //The index in the queue of the next Pings to look into to find new addresses
-    //to be pinged. This is only used as an indication to allow pings to be
-    //filled one after an other so that there are as much free addresses as 
-    //possible
-    private int next_pings_with_addresses = 0;
-    
-    //The number of addresses we didn't store result about for each Pings in the 
-    //queue
-    private int remaining_addresses[];
-    //The index of the next available address for each Pings, please note that 
-    //there is a difference between available/free addresses -which were not 
-    //given to a subClient yet- and remaining addresses which might have been 
-    //given to a subClient but didn't return result yet
-    private int next_available_address[];
+    //The batch of addresses being probed for each Pings in the queue
+    private volatile PingsBatch batches[];
 
     //Variables used to notify the applet that there was a connection problem with
     //the server. The error_reason is also set when there is a problem,
@@ -117,6 +186,7 @@ public class PingsClient extends Observable implements Runnable {
 
     public PingsClient(String server_hostname, int server_port, PingsApplet applet,
 		       String uuid, String nick, int nb_submited_pings) {
+        engine = this;
         m_client_info = new ClientInfo(uuid, nick);
 	this.applet = applet;
 
@@ -130,39 +200,78 @@ public class PingsClient extends Observable implements Runnable {
         m_is_running = new AtomicBoolean(false);
         
         //Initialize the pings_queue
-        pings_queue = new ServerProxy.Pings[pings_queue_size];
-        next_available_address = new int[pings_queue_size];
-        remaining_addresses= new int[pings_queue_size];
-        for (int pings_index = 0; pings_index < pings_queue_size; pings_index++) {
-            pings_queue[pings_index] = null;
-            next_available_address[pings_index] = -1;
-            remaining_addresses[pings_index] = 0;
-        }
+        setQueueDepth(pings_queue_size);
         
         //Initialize the subClients pool
         subClients_pool = new subClient[subClient_number];
-        subClients_threads_pool = new Thread[subClient_number];
         for (int i = 0; i < subClient_number; i++) {
-	    subClient s;
-	    if (i < max_tcp_subClient_number) {
-		s = new subClient();
-	    } else {
-		Prober[] ps = {new IcmpPinger(m_client_info),
-			       new TraceRouter(m_client_info)};
-		s = new subClient(new CompositeProber(ps, "first"));
-	    }
-	    subClients_pool[i] = s;
-            subClients_threads_pool[i] = new Thread(subClients_pool[i]);
-            subClients_threads_pool[i].setName("SubClient "+ i);
+	    subClients_pool[i] = new subClient();
+	    free_subClients.add(subClients_pool[i]);
         }
         
+        //The probes run in parallel, but no more TCP probes at once than
+        //the max_tcp_subClient_number subClients had
+        CompositeProber.setConcurrencyLimit("TCP", max_tcp_subClient_number);
+        probe_executor = new ThreadPoolExecutor(subClient_number, subClient_number,
+                                                60, TimeUnit.SECONDS,
+                                                new LinkedBlockingQueue<Runnable>(),
+                                                new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "Probe " + count.getAndIncrement());
+            }
+        });
+        probe_executor.allowCoreThreadTimeOut(true);
+        server_sync = new ServerSync();
+        
         resetErrorCount();
     }
     
+    /**
+     * Makes another identity (UUID, nickname and Pings queue) on the engine
+     * of a client, for load tests or to run several vantage identities on
+     * one host. It shares the network detection, probe threads, probers,
+     * subClients and server connections of the engine, so its own state is a
+     * few KB besides the Pings being probed. The settings of the engine
+     * (queue depth, straggler cutoff...) are copied; the concurrency is
+     * shared.
+     * 
+     * @param uuid the UUID of the identity; if empty, one is generated
+     */
+    public PingsClient(PingsClient engine, String uuid, String nick) {
+        this.engine = engine;
+        m_client_info = new ClientInfo(engine.m_client_info, uuid, nick);
+        m_server_proxy = engine.m_server_proxy;
+        
+        m_nick = new AtomicReference<String>(m_client_info.getNickname());
+        m_source_geoip = new AtomicReference<GeoipInfo>();
+        m_total_error_count = new AtomicInteger();
+        m_total_submited_pings = new AtomicInteger();
+        m_measurements_failed = new AtomicInteger();
+        m_is_running = new AtomicBoolean(false);
+        
+        WAIT_TIME_BOOST = engine.WAIT_TIME_BOOST;
+        max_tcp_subClient_number = engine.max_tcp_subClient_number;
+        low_water_mark = engine.low_water_mark;
+        cutoff_fraction = engine.cutoff_fraction;
+        cutoff_deadline = engine.cutoff_deadline;
+        setQueueDepth(engine.pings_queue_size);
+        
+        subClients_pool = engine.subClients_pool;
+        free_subClients = engine.free_subClients;
+        probe_executor = engine.probe_executor;
+        idle_probers = engine.idle_probers;
+        probe_times = engine.probe_times;
+        politeness = engine.politeness;
+        longest_first = engine.longest_first;
+        server_sync = new ServerSync(engine.server_sync);
+    }
+    
     /**
      * This constructor in only for simulation and test purpose
      */
     public PingsClient() {
+        engine = this;
         m_client_info = new ClientInfo("", "");
         m_nick = new AtomicReference<String>("");
         m_source_geoip = new AtomicReference<GeoipInfo>();
@@ -179,121 +288,157 @@ public class PingsClient extends Observable implements Runnable {
         m_is_running.set(true);
 	this.start_time = System.currentTimeMillis();
         
+        if (pings_queue_size > 1) {
+            //The other slots are filled as the probes go
+            prefetch();
+            return;
+        }
         for (int pings_index = 0; pings_index < pings_queue_size; pings_index++) {
-            sendResultsGetNewAddress(pings_index);
+            server_sync.fetch(pings_index);
         }
         
-        for (int pings_index = 0; pings_index < subClient_number; pings_index++) {
-            subClients_threads_pool[pings_index].start();
+    }
+
+    /**
+     * Sets how many Pings can be held at once, 1 by default. With 2 or more,
+     * the next Pings is fetched while the current one is still probed (see
+     * setLowWaterMark()). Must be called before run().
+     */
+    public void setQueueDepth(int depth) {
+        pings_queue_size = Math.max(1, depth);
+        pings_queue = new ServerProxy.Pings[pings_queue_size];
+        batches = new PingsBatch[pings_queue_size];
+        pings_slot_busy = new AtomicBoolean[pings_queue_size];
+        for (int pings_index = 0; pings_index < pings_queue_size; pings_index++) {
+            pings_queue[pings_index] = null;
+            pings_slot_busy[pings_index] = new AtomicBoolean(false);
         }
     }
     
+    public int getQueueDepth() {
+        return pings_queue_size;
+    }
+    
     /**
-     * Launched as a thread this class get new addresses using setNewAddress and
-     * pings them (the same method report them to the server) .
-     * Used as an Observable it provides an interface for the GUI.
+     * Sets how few addresses must wait for a probe before the next Pings is
+     * fetched, when the queue depth is 2 or more. It should cover the probes
+     * done while the server answers. -1, the default, uses the concurrency.
      */
-    class subClient extends Observable implements Runnable {
-        //The class that actually do the pings
-        private Prober prober;
-        
+    public void setLowWaterMark(int addresses) {
+        low_water_mark = addresses;
+    }
+    
+    public int getLowWaterMark() {
+        return (low_water_mark < 0) ? getConcurrency() : low_water_mark;
+    }
+    
+    /**
+     * Sets the straggler cutoff: instead of waiting for its slowest probe, a
+     * Pings is submitted once the given fraction of its addresses is done or
+     * deadline_ms after its probes started, whichever comes first. The
+     * Pings is then replaced as if it was done; the probes still running
+     * go on, and their results are submitted under the same token when
+     * they are all done. A fraction of 1 and a deadline of 0, the default,
+     * wait for all the probes.
+     */
+    public void setStragglerCutoff(double fraction, long deadline_ms) {
+        cutoff_fraction = fraction;
+        cutoff_deadline = deadline_ms;
+    }
+    
+    /**
+     * Selects whether the addresses of a Pings are probed in the order of
+     * the server (false, the default) or longest expected probe first, as
+     * predicted from the probes of the same prefixes (see ProbeTimeHistory),
+     * so that the short probes fill the gaps at the end of the round.
+     */
+    public void setLongestFirst(boolean longest_first) {
+        this.longest_first = longest_first;
+    }
+
+    /**
+     * Sets how many probes can run at once toward the destinations of one
+     * prefix (/24 in IPv4, /48 in IPv6) and toward the ones behind one
+     * gateway, 0 for no limit; 1 and 4 by default. The probes put off
+     * leave room for the other addresses of the Pings, so the concurrency
+     * is still used. Identities share the limits of their engine.
+     */
+    public void setPoliteness(int per_prefix, int per_gateway) {
+        politeness.setLimits(per_prefix, per_gateway);
+    }
+    
+    /**
+     * Sets how many TCP probes can run at once, 2 by default, and so how
+     * many addresses out of subClient_number get the TCP plan. The
+     * translation table of the router is spared by the socket budget (see
+     * setTcpSockets()), so it can be raised on the hosts that allow it.
+     */
+    public void setTcpConcurrency(int tcp_probes) {
+        max_tcp_subClient_number = tcp_probes;
+        CompositeProber.setConcurrencyLimit("TCP", tcp_probes);
+    }
+    
+    /**
+     * Sets how many TCP sockets the probes of this JVM can have open or in
+     * TIME_WAIT at once, and whether they are closed with a reset
+     * (SO_LINGER=0) so they never enter TIME_WAIT.
+     */
+    public static void setTcpSockets(int sockets, boolean abortive_close) {
+        TcpSocketBudget budget = TcpSocketBudget.getDefault();
+        budget.setSockets(sockets, TcpSocketBudget.DEFAULT_TIME_WAIT);
+        budget.setAbortiveClose(abortive_close);
+    }
+    
+    /** @return the politeness limits, with the count of probes put off */
+    public PolitenessScheduler getPoliteness() {
+        return politeness;
+    }
+    
+    /**
+     * Pings every new Pings in one pass with an IcmpSweeper (ICMP only)
+     * instead of the subClients. Must be called before run().
+     */
+    public void setIcmpSweeper(IcmpSweeper sweeper) {
+        icmp_sweeper = sweeper;
+    }
+    
+    /**
+     * Shows one running probe to the GUI. As an Observable, it notifies its
+     * observers when it starts showing a new address and when its result
+     * is known. There are subClient_number of them; the probes running when
+     * all are busy are not shown.
+     */
+    class subClient extends Observable {
         //The information on the current ping, they are mainly used by the GUI
         //observers
         protected InetAddress current_ping_dest = null;
         protected GeoipInfo current_dest_geoip = null;
-        protected String current_ping_result = null;
-        
-        //The position of the current address/geoip in the pings_queue
-        private int current_pings_index;
-        private int current_address_index;
-        
-        //The number of consecutive errors that occurred in this thread.
-        private int consecutive_error_count = 0;
-        
-        private boolean sucide;
+        protected ProbeResult current_ping_result = null;
         
 	protected boolean last_pings_succeded = true;
 
-        public subClient () {
-            prober = new CompositeProber(m_client_info, "first");
-        }
-
-        public subClient (Prober p) {
-            prober = p;
-        }
-        
-        public void run() {
-            while (!sucide) {
-                try {            
-                    //Get a new Address (and send the result of the previous one)
-                    setNewAddress (this, current_ping_result,
-                            current_pings_index, current_address_index);
-                    if (sucide) break;
-                    notifyObserversOfChange();
-                    
-                    //Ping this address                
-                    prober.probe(current_ping_dest);
-                    current_ping_result = prober.getLastProbe();
-                    LOGGER.log(Level.INFO, "Ping result: {0}.",current_ping_result);
-                    
-                    //Extract relevant info for analysis
-                    last_pings_succeded = addMeasurement(current_ping_result, current_ping_dest);
-
-                    notifyObserversOfChange();
-                    
-                    //In case the thread is paused here
-                    if (!m_is_running.get()) {
-                        while (!m_is_running.get()) {
-                            synchronized(pings_queue) {pings_queue.wait();}
-                        }
-                    }
-                    
-                    // Clear consecutive error count.
-                    consecutive_error_count = 0;
-                }
-                catch (InterruptedException _) {break;}
-                catch (Exception e) {
-                    final int total_error_count = m_total_error_count.incrementAndGet();
-                    consecutive_error_count++;
-                    
-                    LOGGER.log(Level.WARNING, "Exception caught in subClient thread.", e);
-		    // Exponential backoff for consecutive errors
-		    int wait_time = (int)Math.pow(2, consecutive_error_count);
-                    wait_time = Math.min(wait_time, MAX_WAIT_TIME);
-
-                    if (consecutive_error_count > MAX_ERROR_COUNT) {
-                        LOGGER.log(Level.SEVERE, "Too many errors; stopping the subClient thread.");
-			PingsClient.this.errorConnectingToServer(
-			    "Too many problem happened." +
-			    "Click try to retry or reload this page to possibly get a newer clients version."
-								 );
-                        break;
-                    }
-                    else {
-                        try {
-                            Thread.sleep(1000 * wait_time);
-                        } catch (InterruptedException _) {break;}
-                    }
-                }
-            }
-        }
-        
         /**
          * Set the parameters for a new ping, so that changes might be notified
          * to the GUI.
          * 
          * @param add the address of the new target to ping
          * @param geo the geoip of the new target to ping
-         * @param pings_index the index of the current Pings in the pings_queue
-         * @param address_index the index of the address in the current Pings
          */
-        public void setCurrentAddressProperty (InetAddress add, GeoipInfo geo,
-                int pings_index, int address_index) {
+        public void setCurrentAddressProperty (InetAddress add, GeoipInfo geo) {
             current_ping_dest = add;
             current_dest_geoip = geo;
             current_ping_result = null;
-            current_pings_index = pings_index;
-            current_address_index = address_index;
+        }
+        
+        /**
+         * Set the result of the current ping.
+         * 
+         * @param result the result of the probe
+         * @param succeeded true if the ICMP ping gave a measurement
+         */
+        public void setResult (ProbeResult result, boolean succeeded) {
+            current_ping_result = result;
+            last_pings_succeded = succeeded;
         }
         
         /**
@@ -313,7 +458,7 @@ public class PingsClient extends Observable implements Runnable {
             return current_dest_geoip;
         }
         
-        public String getCurrentPingResult() {
+        public ProbeResult getCurrentPingResult() {
             return current_ping_result;
         }
         
@@ -328,256 +473,841 @@ public class PingsClient extends Observable implements Runnable {
 	public InetAddress getSourceExternalAddress() {
 	    return PingsClient.this.getSourceExternalAddress();
 	}
-
-        public void destroy() {
-            sucide = true;
-        }
-    
     }
     
     /**
-     * Invoked by a subClient this method store its last result and give him a 
-     * new address to ping.
+     * Probes the addresses of a batch, run by the probe_executor. As many
+     * tasks as the concurrency are started per batch; each claims addresses
+     * until there are none left.
      * <p>
-     * If there are no more addresses available on the current Pings it calls 
-     * sendResultGetNewAddress to get new ones and proceed to the next Pings in 
-     * the queue. If there are no more address anywhere it waits to be wake up by
-     * the thread receiving new address.
-     * 
+     * The task that stores the last result of the batch sends the Pings to
+     * the server and gets a new one. When the concurrency was lowered, a task
+     * goes back in the queue of the executor between two addresses, to let
+     * its thread end. After a probe failed, it comes back after the backoff,
+     * scheduled by the ServerSync, so no thread sleeps.
      */
-    protected void setNewAddress (subClient sub, String last_result,
-        int current_pings_index, int current_address_index) {
+    private class ProbeTask implements Runnable {
+        private final PingsBatch batch;
+        private final int pings_index;
+        //The backoff set by the last probe that failed, in milliseconds
+        private long backoff_ms = 0;
         
-        synchronized(pings_queue) {
+        ProbeTask(PingsBatch batch, int pings_index) {
+            this.batch = batch;
+            this.pings_index = pings_index;
+            batch.enter();
+        }
         
-            //Store the result of the subClient in the corresponding Pings
-            if (last_result != null) {
-                ServerProxy.Pings pings = pings_queue[current_pings_index];
-                pings.results[current_address_index] = last_result;
-                
-                remaining_addresses[current_pings_index] -= 1;
-                //If it was the last address to get result from on the current Pings then
-                //send the results an get a new address list
-                if (remaining_addresses[current_pings_index] == 0 ) {
-                    sendResultsGetNewAddress(current_pings_index);
+        public void run() {
+            while (!destroyed) {
+                int address_index = next();
+                if (address_index < 0) {
+                    //Only addresses put off by the politeness limits are
+                    //left, if any: wait for them, unless tasks of the next
+                    //Pings wait for a thread; the last task of the batch
+                    //always stays for them
+                    if (batch.getDeferred() == 0 || !probe_executor.getQueue().isEmpty()) {
+                        if (batch.leave() > 0 || batch.getDeferred() == 0)
+                            return;
+                        batch.enter();
+                    }
+                    try {
+                        politeness.awaitRelease(100);
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
                 }
-            }        
-            
-            //Get a new address to ping
-            int pings_index = next_pings_with_addresses;
+                //One address less waits: maybe time to fetch the next Pings
+                prefetch();
+                ProbeResult result;
+                InetAddress dest = batch.getPings().getAddress(address_index);
+                try {
+                    result = probe(address_index, dest);
+                }
+                catch (InterruptedException e) {
+                    //The client is being destroyed
+                    return;
+                }
+                finally {
+                    politeness.release(dest);
+                }
+                if (batch.complete(address_index, result)) {
+                    LOGGER.info("Round makespan for pings_index=" + pings_index +
+                                ": predicted " + batch.getPredictedMakespan() +
+                                "ms, actual " + batch.getAge() + "ms; probes put off so far: " +
+                                politeness.getDeferredByPrefix() + " by prefix, " +
+                                politeness.getDeferredByGateway() + " by gateway.");
+                    ServerProxy.Pings rest = batch.finish();
+                    if (rest == null)
+                        server_sync.submit(pings_index);
+                    else
+                        server_sync.submitRest(rest);
+                    return;
+                }
+                if (batch.getDone() >= cutoff_fraction * batch.size())
+                    cutOff(batch, pings_index);
+                if (backoff_ms > 0) {
+                    //Come back after the backoff, still counted as draining
+                    //the batch, without holding a thread
+                    long delay_ms = backoff_ms;
+                    backoff_ms = 0;
+                    server_sync.schedule(new Runnable() {
+                        public void run() {
+                            try {
+                                probe_executor.execute(ProbeTask.this);
+                            }
+                            catch (RejectedExecutionException e) {
+                                //The client is being destroyed
+                            }
+                        }
+                    }, delay_ms);
+                    return;
+                }
+                if (probe_executor.getPoolSize() > probe_executor.getMaximumPoolSize()) {
+                    //Too many threads: come back on one of the others,
+                    //still counted as draining the batch
+                    try {
+                        probe_executor.execute(this);
+                    }
+                    catch (RejectedExecutionException e) {
+                        //The client is being destroyed
+                    }
+                    return;
+                }
+            }
+        }
+        
+        /**
+         * Takes the next address to probe: one put off earlier if the
+         * politeness limits now allow it, else the next one claimed that
+         * they allow, putting off the others.
+         * 
+         * @return the index of the address, -1 if none is allowed
+         */
+        private int next() {
+            ServerProxy.Pings pings = batch.getPings();
+            for (int n = batch.getDeferred(); n > 0; n--) {
+                int i = batch.undefer();
+                if (i < 0)
+                    break;
+                if (politeness.acquire(pings.getAddress(i)))
+                    return i;
+                batch.defer(i);
+            }
+            int i;
+            while ((i = batch.claim()) >= 0) {
+                if (politeness.acquire(pings.getAddress(i)))
+                    return i;
+                batch.defer(i);
+            }
+            return -1;
+        }
+        
+        /** @return the result of the probe, null if it failed */
+        private ProbeResult probe(int address_index, InetAddress dest) throws InterruptedException {
+            //In case the client is paused
+            synchronized(pause_lock) {
+                while (!m_is_running.get()) {
+                    if (destroyed)
+                        throw new InterruptedException();
+                    pause_lock.wait();
+                }
+            }
             
-            //Loop thought pings_queue to find a free address and give it to sub
-            // index_to_wait allow to decide if we have cycle or not
-            int index_to_wait = next_pings_with_addresses;
-            while (true) {
+            ServerProxy.Pings pings = batch.getPings();
+            String plan = getPlan(pings.probe_plan, address_index);
+            Prober prober = takeProber(plan);
+            subClient display = free_subClients.poll();
+            try {
+                if (display != null) {
+                    display.setCurrentAddressProperty(dest, pings.getGeoipInfo(address_index));
+                    display.notifyObserversOfChange();
+                }
                 
-                ServerProxy.Pings local_pings = pings_queue[pings_index];
+                long start = System.nanoTime();
+                prober.probe(dest);
+                probe_times.record(dest, (System.nanoTime() - start) / 1.0e6f);
+                ProbeResult result = prober.getLastResult();
+                LOGGER.log(Level.INFO, "Ping result: {0}.", result);
+                politeness.learn(dest, result);
+                LoadController controller = engine.load_controller;
+                if (controller != null)
+                    controller.learn(dest, result);
                 
-                if (next_available_address[pings_index] != -1 && local_pings != null) {
-                    //If the Pings at address pings_index have some free address we
-                    //take one
-                    int address_index = next_available_address[pings_index];
-                    next_available_address[pings_index]++;
-                    
-                    if (next_available_address[pings_index] == local_pings.addresses.length) {
-                        next_available_address[pings_index] = -1;
-                        next_pings_with_addresses = (next_pings_with_addresses +1) % pings_queue_size;
-                    }
-                    sub.setCurrentAddressProperty(local_pings.addresses[address_index],
-                        local_pings.geoip_info[address_index],
-                        pings_index,
-                        address_index);
-                    break;
+                //Extract relevant info for analysis
+                boolean succeeded = addMeasurement(result, dest);
+                
+                if (display != null) {
+                    display.setResult(result, succeeded);
+                    display.notifyObserversOfChange();
                 }
+                consecutive_probe_errors.set(0);
+                return result;
+            }
+            catch (InterruptedException e) {
+                throw e;
+            }
+            catch (Exception e) {
+                m_total_error_count.incrementAndGet();
+                int consecutive = consecutive_probe_errors.incrementAndGet();
+                LOGGER.log(Level.WARNING, "Exception caught while probing " + dest + ".", e);
                 
-                //Otherwise we change next_pings_with_addresses and proceed to the 
-                //next ping if we didn't loop 
-                next_pings_with_addresses = (next_pings_with_addresses +1) % pings_queue_size;
-                pings_index = (pings_index +1) % pings_queue_size;
-                if (pings_index == index_to_wait && next_available_address[index_to_wait] == -1 ) {
-                    try {
-                        pings_queue.wait(100);
-                    } catch (InterruptedException e) {
-                        sub.destroy();
-                        break;
-                    }
+                if (consecutive > MAX_ERROR_COUNT) {
+                    LOGGER.log(Level.SEVERE, "Too many errors; stopping the probes.");
+                    PingsClient.this.errorConnectingToServer(
+                        "Too many problem happened." +
+                        "Click try to retry or reload this page to possibly get a newer clients version."
+                        );
+                    destroy();
+                    throw new InterruptedException();
                 }
+                // Exponential backoff for consecutive errors, taken by run()
+                // once the address is released
+                int wait_time = (int)Math.pow(2, Math.min(consecutive, 30));
+                wait_time = Math.min(wait_time, MAX_WAIT_TIME);
+                backoff_ms = 1000L * wait_time;
+                return null;
+            }
+            finally {
+                idle_probers.get(plan).add(prober);
+                if (display != null)
+                    free_subClients.add(display);
             }
         }
     }
     
     /**
-     * Send the results of a Pings to the server and get a new list of addresses
-     * to ping.
-     * <p>
-     * When the list is obtained it set the index and next_address parameters 
-     * correctly then wake up the methods potentially waiting for new addresses lists.
+     * Returns the plan to probe an address with: the plan of the server if
+     * it sent a valid one, otherwise the TCP plan for max_tcp_subClient_number
+     * addresses out of subClient_number and the other plan for the rest.
+     */
+    private String getPlan(String server_plan, int address_index) {
+        if (server_plan != null && !server_plan.equals(rejected_plan)) {
+            if (idle_probers.containsKey(server_plan))
+                return server_plan;
+            try {
+                Prober p = engine.newProber(server_plan);
+                idle_probers.putIfAbsent(server_plan, new ConcurrentLinkedQueue<Prober>());
+                idle_probers.get(server_plan).add(p);
+                return server_plan;
+            }
+            catch (IllegalArgumentException e) {
+                LOGGER.log(Level.WARNING, "Ignoring the probe plan of the server.", e);
+                rejected_plan = server_plan;
+            }
+        }
+        if (address_index % subClient_number < max_tcp_subClient_number)
+            return tcp_probe_plan;
+        return probe_plan;
+    }
+    
+    /** Returns an idle prober for the plan, or a new one. */
+    private Prober takeProber(String plan) {
+        ConcurrentLinkedQueue<Prober> idle = idle_probers.get(plan);
+        if (idle == null) {
+            idle_probers.putIfAbsent(plan, new ConcurrentLinkedQueue<Prober>());
+            idle = idle_probers.get(plan);
+        }
+        Prober p = idle.poll();
+        return (p != null) ? p : engine.newProber(plan);
+    }
+    
+    /**
+     * Creates a prober for a plan (see ProbePlan). Overridden to probe
+     * with something else; the identities use the one of their engine.
+     * 
+     * @throws IllegalArgumentException if the plan is not valid
+     */
+    protected Prober newProber(String plan) {
+        ProbePlan p = new ProbePlan(plan, m_client_info);
+        p.setParallel(true);
+        return p;
+    }
+    
+    /**
+     * Sets how many addresses are probed at once. It can be changed while
+     * the client runs; a lower value takes effect as running probes end.
+     */
+    public void setConcurrency(int concurrency) {
+        concurrency = Math.max(1, concurrency);
+        synchronized(probe_executor) {
+            int more = concurrency - probe_executor.getMaximumPoolSize();
+            if (more > 0) {
+                probe_executor.setMaximumPoolSize(concurrency);
+                probe_executor.setCorePoolSize(concurrency);
+                //The batches being probed get the new threads
+                PingsBatch[] current = batches;
+                for (int i = 0; current != null && i < current.length; i++) {
+                    PingsBatch batch = current[i];
+                    for (int j = 0; batch != null && j < Math.min(more, batch.getUnclaimed()); j++)
+                        probe_executor.execute(new ProbeTask(batch, i));
+                }
+            }
+            else {
+                probe_executor.setCorePoolSize(concurrency);
+                probe_executor.setMaximumPoolSize(concurrency);
+            }
+        }
+    }
+    
+    public int getConcurrency() {
+        return probe_executor.getMaximumPoolSize();
+    }
+    
+    /**
+     * Lets a LoadController resize the concurrency between min and max as
+     * the load of the host goes, from now on; a max of 0 keeps the
+     * concurrency where it is. The identities made on this client follow,
+     * as they share its probing threads.
+     */
+    public void setAdaptiveConcurrency(int min, int max) {
+        if (engine != this) {
+            engine.setAdaptiveConcurrency(min, max);
+            return;
+        }
+        synchronized(probe_executor) {
+            if (load_controller != null)
+                load_controller.stop();
+            load_controller = null;
+            if (max > 0) {
+                load_controller = new LoadController(this, min, max);
+                load_controller.start();
+            }
+        }
+    }
+    
+    /** @return the controller of the concurrency, null if it is fixed */
+    public LoadController getLoadController() {
+        return engine.load_controller;
+    }
+    
+    /**
+     * Sets how many requests to the server can run at once for this client
+     * and the identities on it, 1 by default.
+     */
+    public void setServerConnections(int connections) {
+        engine.server_sync.setConnections(connections);
+        engine.updateTransport();
+    }
+    
+    /**
+     * Selects whether the requests to the server go through HttpClient,
+     * over HTTP/2 when the server has it (true, if HttpClientTransport was
+     * built and Java is 11 or later), or through HttpURLConnection (false,
+     * the default). Both keep their connections open between requests.
+     */
+    public void setHttp2(boolean http2) {
+        engine.http2 = http2;
+        engine.updateTransport();
+    }
+    
+    /**
+     * Selects whether the results are submitted in the binary format of
+     * ResultCodec, when the server advertises it (true), or as text (false,
+     * the default), for this client and the identities on it.
+     */
+    public void setBinaryResults(boolean binary) {
+        m_server_proxy.setBinaryResults(binary);
+    }
+    
+    /** Gives the server proxy a transport for the connections and http2 settings. */
+    private void updateTransport() {
+        int connections = Math.max(ServerProxy.DEFAULT_CONNECTIONS, server_sync.getConnections());
+        m_server_proxy.setTransport(m_server_proxy.newTransport(http2, connections));
+    }
+    
+    /** @return the requests to the server, for their pending count and times */
+    public ServerSync getServerSync() {
+        return server_sync;
+    }
+    
+    /**
+     * Starts probing a new Pings: as many tasks as the concurrency (or the
+     * addresses) drain its batch.
+     */
+    private void startProbing(int pings_index) {
+        ServerProxy.Pings pings = pings_queue[pings_index];
+        final float[] times = new float[pings.size()];
+        Integer[] sorted = new Integer[times.length];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = probe_times.predict(pings.getAddress(i));
+            sorted[i] = Integer.valueOf(i);
+        }
+        if (longest_first) {
+            Arrays.sort(sorted, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return Float.compare(times[b.intValue()], times[a.intValue()]);
+                }
+            });
+        }
+        int[] order = new int[times.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = sorted[i].intValue();
+        
+        PingsBatch batch = new PingsBatch(pings, longest_first ? order : null);
+        batch.setPredictedMakespan((long)ProbeTimeHistory.makespan(times, order, getConcurrency()));
+        batches[pings_index] = batch;
+        int n = batch.size();
+        if (n == 0) {
+            server_sync.submit(pings_index);
+            return;
+        }
+        for (int i = 0; i < Math.min(n, getConcurrency()); i++) {
+            probe_executor.execute(new ProbeTask(batch, pings_index));
+        }
+        if (cutoff_deadline > 0)
+            server_sync.cutOffAt(batch, pings_index, cutoff_deadline);
+    }
+    
+    /**
+     * Submits the results of a batch done so far, if it wasn't already, and
+     * frees its slot of the queue for the next Pings.
+     */
+    private void cutOff(PingsBatch batch, int pings_index) {
+        ServerProxy.Pings first = batch.cut();
+        if (first != null) {
+            LOGGER.info("Cutting off pings_index=" + pings_index + " with " +
+                        batch.getRemaining() + " of " + batch.size() + " probes running.");
+            server_sync.submit(pings_index, first);
+        }
+    }
+    
+    /** @return the addresses of the queue no task has claimed yet */
+    private int getUnclaimedAddresses() {
+        int unclaimed = 0;
+        PingsBatch[] current = batches;
+        for (int i = 0; i < current.length; i++) {
+            PingsBatch batch = current[i];
+            if (batch != null)
+                unclaimed += batch.getUnclaimed();
+        }
+        return unclaimed;
+    }
+    
+    /**
+     * In pipelined mode, fetches a Pings into a free slot of the queue if
+     * no more than the low-water mark of addresses wait for a probe. Only
+     * one Pings is fetched ahead at a time.
+     */
+    private void prefetch() {
+        if (pings_queue_size < 2 || !m_is_running.get() || probe_executor.isShutdown())
+            return;
+        if (getUnclaimedAddresses() > getLowWaterMark())
+            return;
+        if (!prefetching.compareAndSet(false, true))
+            return;
+        for (int pings_index = 0; pings_index < pings_queue_size; pings_index++) {
+            if (pings_slot_busy[pings_index].compareAndSet(false, true)) {
+                //prefetching is cleared once the Pings is fetched
+                server_sync.fetch(pings_index);
+                return;
+            }
+        }
+        prefetching.set(false);
+        //A slot freed while we looked could have been missed
+        for (int pings_index = 0; pings_index < pings_queue_size; pings_index++) {
+            if (!pings_slot_busy[pings_index].get()) {
+                prefetch();
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Does all the requests to the server, /submit_ping_results and
+     * /get_pings, on one long-lived thread. The requests are tasks of a
+     * ScheduledExecutorService: a fetch is scheduled at the time the pacing
+     * allows it (see fetch()), and a request that failed is scheduled again
+     * after the backoff, so no thread sleeps and destroy() cancels everything
+     * pending.
      * <p>
-     * Doesn't need to be synchronized as only one instance can execute at a time
-     * over a given pings_index.
+     * The identities made on an engine have their own ServerSync, but their
+     * requests run on the executor of the engine, which can be given more
+     * threads with setServerConnections().
      * <p>
-     * If the Pings at the current index is null then it get replaced by a fresh
-     * Pings
-     * It die after having submited/fetch new results once.
+     * The backoff is shared by all the requests: consecutive errors double
+     * the wait, up to MAX_WAIT_TIME, whatever the Pings, and we give up
+     * after MAX_ERROR_COUNT of them. The number of requests pending and
+     * the time the server took to answer are kept for monitoring.
      */
-    private class SendResultsGetNewAddress extends Thread {
+    class ServerSync {
+        private final ScheduledThreadPoolExecutor executor;
+        //False for the ServerSync of an identity, which shares the executor
+        private final boolean owns_executor;
+        //Set when the client is destroyed, for the requests still scheduled
+        private volatile boolean stopped = false;
+        private AtomicInteger consecutive_error_count = new AtomicInteger();
+        private Random rand = new Random();
         
-        private int pings_index;
-        private int consecutive_error_count = 0;
-	private Random rand = new Random();
+        //Times the server took to answer, in milliseconds
+        private volatile long last_submit_ms = -1;
+        private volatile long last_fetch_ms = -1;
+        private AtomicLong total_submit_ms = new AtomicLong();
+        private AtomicLong total_fetch_ms = new AtomicLong();
+        private AtomicInteger nb_submits = new AtomicInteger();
+        private AtomicInteger nb_fetches = new AtomicInteger();
+        //The submits that also got the next Pings
+        private AtomicInteger nb_exchanges = new AtomicInteger();
         
-        public SendResultsGetNewAddress(int pings_index) {
-            this.pings_index = pings_index;
-            this.setName("SendResultsGetNewAddress " + pings_index);
+        ServerSync() {
+            executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    //Not a daemon: it keeps the command line client alive
+                    return new Thread(r, "Server sync");
+                }
+            });
+            executor.setRemoveOnCancelPolicy(true);
+            owns_executor = true;
         }
         
-        public void run() {
-            while (true) {
-		String catched = "";
-		String err_msg = "";
+        /** Makes a ServerSync that runs its requests on the executor of shared */
+        ServerSync(ServerSync shared) {
+            executor = shared.executor;
+            owns_executor = false;
+        }
+        
+        /** Sets how many requests to the server can run at once. */
+        void setConnections(int connections) {
+            executor.setCorePoolSize(Math.max(1, connections));
+        }
+        
+        int getConnections() {
+            return executor.getCorePoolSize();
+        }
+        
+        /** Sends the results of the Pings of a slot as soon as possible. */
+        void submit(int pings_index) {
+            submit(pings_index, pings_queue[pings_index]);
+        }
+        
+        /**
+         * Sends pings for a slot as soon as possible; it is the Pings of
+         * the slot or its first part.
+         */
+        void submit(int pings_index, ServerProxy.Pings pings) {
+            schedule(new Submit(pings_index, pings), 0);
+        }
+        
+        /** Sends the rest of a Pings that was cut off, as soon as possible. */
+        void submitRest(ServerProxy.Pings rest) {
+            schedule(new Submit(-1, rest), 0);
+        }
+        
+        /** Cuts off a batch delay_ms from now, if it isn't done by then. */
+        void cutOffAt(final PingsBatch batch, final int pings_index, long delay_ms) {
+            schedule(new Runnable() {
+                public void run() {
+                    cutOff(batch, pings_index);
+                }
+            }, delay_ms);
+        }
+        
+        /**
+         * Gets a new Pings for a slot once the min_round_time of the last
+         * Pings fetched (at least MIN_ROUND_TIME, plus up to 10% at random)
+         * has passed since it was fetched, whatever its slot in the queue.
+         * The first Pings is fetched at once.
+         */
+        void fetch(int pings_index) {
+            schedule(new Fetch(pings_index), getWaitTime(pings_index));
+        }
+        
+        /**
+         * @return the time to wait before the next round in milliseconds,
+         * as fetch() does, 0 for the first one
+         */
+        private long getWaitTime(int pings_index) {
+            long wait_time = 0;
+            if (last_fetch_time != 0) {
+                long min_round_time = Math.max(MIN_ROUND_TIME, last_min_round_time);
+                min_round_time += 0.1 * rand.nextInt((int)min_round_time);
+                //elapsed_time and wait_time are in mili-seconds.
+                long elapsed_time = System.currentTimeMillis() - last_fetch_time;
+                wait_time = (long)(((min_round_time * 1000) - elapsed_time) * WAIT_TIME_BOOST);
+                if (wait_time > 0) {
+                    LOGGER.info("\nWaiting before the next round for pings_index=" + pings_index +
+                                " elapsed_time(ms)=" + elapsed_time +
+                                " min_round_time(s)=" + min_round_time +
+                                " pings_queue_size=" + pings_queue_size +
+                                " wait_time(ms)=" + wait_time);
+                }
+            }
+            return Math.max(0, wait_time);
+        }
+        
+        private void schedule(final Runnable request, long delay_ms) {
+            try {
+                executor.schedule(new Runnable() {
+                    public void run() {
+                        if (!stopped)
+                            request.run();
+                    }
+                }, delay_ms, TimeUnit.MILLISECONDS);
+            }
+            catch (RejectedExecutionException e) {
+                //The client is being destroyed
+            }
+        }
+        
+        /**
+         * Cancels the pending requests; the one running is interrupted,
+         * unless the executor is shared.
+         */
+        void shutdown() {
+            stopped = true;
+            if (owns_executor)
+                executor.shutdownNow();
+        }
+        
+        /** @return the number of requests waiting to be done */
+        public int getPendingRequests() {
+            return executor.getQueue().size();
+        }
+        
+        /** @return the time of the last submit, in milliseconds, -1 if none */
+        public long getLastSubmitTime() {
+            return last_submit_ms;
+        }
+        
+        /** @return the mean time of the submits, in milliseconds, -1 if none */
+        public long getMeanSubmitTime() {
+            int n = nb_submits.get();
+            return (n == 0) ? -1 : total_submit_ms.get() / n;
+        }
+        
+        /** @return the time of the last fetch, in milliseconds, -1 if none */
+        public long getLastFetchTime() {
+            return last_fetch_ms;
+        }
+        
+        /** @return the mean time of the fetches, in milliseconds, -1 if none */
+        public long getMeanFetchTime() {
+            int n = nb_fetches.get();
+            return (n == 0) ? -1 : total_fetch_ms.get() / n;
+        }
+        
+        /** @return the number of requests that failed in a row */
+        public int getConsecutiveErrorCount() {
+            return consecutive_error_count.get();
+        }
+        
+        private void succeeded() {
+            if (consecutive_error_count.getAndSet(0) >= 6)
+                PingsClient.this.displayProblem("");
+        }
+        
+        /**
+         * Sends the results of a Pings, then frees its slot of the queue or
+         * gets the next one. The rest of a Pings that was cut off has no
+         * slot anymore.
+         */
+        private class Submit implements Runnable {
+            private final int pings_index;
+            private final ServerProxy.Pings pings;
+            
+            /** @param pings_index the slot of pings, -1 for a rest */
+            Submit(int pings_index, ServerProxy.Pings pings) {
+                this.pings_index = pings_index;
+                this.pings = pings;
+            }
+            
+            public void run() {
+                // Without pipelining, the next Pings comes with the answer
+                // when the server has /exchange, to start after the wait
+                boolean exchange = pings_index >= 0 && pings_queue_size == 1 &&
+                    m_server_proxy.hasExchange();
+                ServerProxy.Pings next = null;
+                long wait_time = 0;
                 try {
-                    // Submit results to server.
-                    if (pings_queue[pings_index] != null) {
-			//elapsed_time are in mili-seconds.
-			long elapsed_time = System.currentTimeMillis() - pings_queue[pings_index].time_fetched;
-                        LOGGER.info("Submitting results to server for pings_index=" +
-				    pings_index +
-				    ". Round took " + elapsed_time/1000 + "s.");
-                        m_server_proxy.submitResults(m_client_info,
-						     pings_queue[pings_index]);
-
-			// Save the number of submitted ip in a cookie:
-			synchronized(m_total_submited_pings) {
-			    int n = m_total_submited_pings.addAndGet(pings_queue[pings_index].addresses.length);
-			    setCookieNbPings(n);
-			}
-
-			//Wait if needed
-			long min_round_time = Math.max(MIN_ROUND_TIME, pings_queue[pings_index].min_round_time);
-			min_round_time += 0.1 * this.rand.nextInt((int)min_round_time);
-			//wait_time are in mili-seconds.
-			long wait_time = (min_round_time * pings_queue_size * 1000) - elapsed_time ;
-			wait_time = (long)(wait_time * WAIT_TIME_BOOST);
-
-			// In case the submit succeed, but the get fail, if we don't null it, it will get resubmitted.
-			pings_queue[pings_index] = null;
-
-			if (wait_time > 0){
-			    LOGGER.info("\nWaiting before the next round for pings_index=" + pings_index +
-					" elapsed_time(ms)=" + elapsed_time +
-					" min_round_time(s)=" + min_round_time +
-					" pings_queue_size=" + pings_queue_size +
-					" wait_time(ms)=" + wait_time);
-			    try {
-				Thread.sleep(wait_time);
-			    } catch (InterruptedException e1) {}
-			}
-			if(consecutive_error_count >= 6)
-			    PingsClient.this.displayProblem("");
-		    }
-
-                    // Get source geoip data and list of addresses to ping.
-                    pings_queue[pings_index] = m_server_proxy.getPings(m_client_info);
-                    m_source_geoip.set(m_client_info.getGeoipInfo());
-                    
-                    //Setting the remaining_address and next
-                    remaining_addresses[pings_index] = pings_queue[pings_index].addresses.length;
-                    next_available_address[pings_index] = 0;
-                    
-                    //Wake up threads that might wait for new addresses
-                    synchronized(pings_queue){
-                            pings_queue.notify();
-		    }
+                    //elapsed_time are in mili-seconds.
+                    long elapsed_time = System.currentTimeMillis() - pings.time_fetched;
+                    LOGGER.info((exchange ? "Exchanging " : "Submitting ") +
+                                ((pings.part == null) ? "" : pings.part + " part of ") +
+                                "results to server for pings_index=" +
+                                pings_index +
+                                ". Round took " + elapsed_time/1000 + "s.");
+                    long start = System.currentTimeMillis();
+                    if (exchange) {
+                        wait_time = getWaitTime(pings_index);
+                        next = m_server_proxy.exchange(m_client_info, pings, 0);
+                        // The round starts after the wait, not now
+                        next.time_fetched += wait_time;
+                        nb_exchanges.incrementAndGet();
+                    }
+                    else {
+                        m_server_proxy.submitResults(m_client_info, pings);
+                    }
+                    last_submit_ms = System.currentTimeMillis() - start;
+                    total_submit_ms.addAndGet(last_submit_ms);
+                    nb_submits.incrementAndGet();
                     
-		    if(consecutive_error_count >= 6)
-			PingsClient.this.displayProblem("");
-		    //consecutive_error_count = 0; useless as a new thread will be created for the next fetch.
-                    break;
+                    // Save the number of submitted ip in a cookie:
+                    int nb_submited = pings.size();
+                    if (pings.part != null) {
+                        nb_submited = 0;
+                        for (ProbeResult r : pings.results)
+                            if (r != null)
+                                nb_submited++;
+                    }
+                    else {
+                        // All its tasks are done: its results array can
+                        // take the results of a next Pings
+                        m_server_proxy.recycle(pings);
+                    }
+                    synchronized(m_total_submited_pings) {
+                        int n = m_total_submited_pings.addAndGet(nb_submited);
+                        setCookieNbPings(n);
+                    }
+                    succeeded();
                 }
-                catch (UnknownHostException _) {
-		    catched = "UnknownHostException";
-		    err_msg =  "A problem happened while trying to connect to the server. The most probable causes are :\n" +
-			"_ you are not connected to the internet\n" +
-			"_ you have a DNS problem\n" +
-			"_ the server you are trying to join is not correctly configured";
+                catch (Exception e) {
+                    failed(this, e);
+                    return;
                 }
-                catch (ConnectException e) {
-		    catched = "ConnectException";
-		    err_msg = "A problem happened while trying to connect to the server. The most probable causes are :\n" +
-			"_ a firewall is blocking the connection\n" +
-			"_ you lost your connection to internet\n"+
-			"_ the server you are trying to join reject the connection";
+                
+                if (pings_index < 0)
+                    return;
+                pings_queue[pings_index] = null;
+                
+                if (next != null) {
+                    final ServerProxy.Pings fetched = next;
+                    schedule(new Runnable() {
+                        public void run() {
+                            fetched(pings_index, fetched);
+                        }
+                    }, wait_time);
                 }
-                catch(SocketTimeoutException e) {
-		    catched = "SocketTimeoutException";
-		    err_msg = "A problem happened while trying to connect to the server . The most probable causes are :\n" +
-			"_ a firewall is blocking the connection\n" +
-			"_ the server is overloaded\n" +
-			"_ the connection is taking too long";
+                else if (pings_queue_size > 1) {
+                    // Pipelined: the next Pings is fetched by prefetch()
+                    pings_slot_busy[pings_index].set(false);
+                    prefetch();
                 }
-                catch (IOException e) {
-		    catched = "IOException";
-		    err_msg =  "Exception caught in PingsClient thread " + pings_index +
-			" when contacting the server.\n" + e;
+                else {
+                    fetch(pings_index);
                 }
-		catch (Exception e) {
-		    // We catch all Exception to make automatic
-		    // retry. This make the system more robust to some
-		    // other possible temporary problem with the
-		    // server.
-		    catched = "Exception";
-		    err_msg =  "Exception caught in PingsClient thread " + pings_index +
-			" when contacting the server.\n" + e;
-		}
-		if (catched != ""){
-                    consecutive_error_count++;
-                    int wait_time = (int)Math.pow(2, consecutive_error_count);
-		    wait_time = Math.min(wait_time, MAX_WAIT_TIME);
-		    err_msg += "\n This is the " + consecutive_error_count +
-			       " consecutive error count. We will wait " + wait_time +
-			       " seconds before recontacting it again.";
-                    LOGGER.log(Level.WARNING, err_msg);
-
-                    if (consecutive_error_count > MAX_ERROR_COUNT) {
-                        LOGGER.log(Level.SEVERE,
-				   "Too many errors; stopping PingsClient thread " + pings_index);
-			PingsClient.this.errorConnectingToServer(
-			    "Too many problem happened while trying to connect to the server." +
-			    "Click try to retry or reload this page to possibly get a newer clients version."
-								 );
-                        break;
-                    }
-                    else {
-			//If we wait for more then 1 minutes, display the error messages.
-			//subClient thread will remove this when fixed.
-			if (wait_time >= 60)
-			    PingsClient.this.displayProblem(err_msg);
-
-                        // Exponential backoff for consecutive errors. Also
-                        // avoid thread busy-loop if IOException keeps getting
-                        // raised in call to getPings.
+            }
+        }
+        
+        /** Gets a new Pings and starts probing it */
+        private class Fetch implements Runnable {
+            private final int pings_index;
+            
+            Fetch(int pings_index) {
+                this.pings_index = pings_index;
+            }
+            
+            public void run() {
+                ServerProxy.Pings pings;
+                try {
+                    // Get source geoip data and list of addresses to ping.
+                    long start = System.currentTimeMillis();
+                    pings = m_server_proxy.getPings(m_client_info);
+                    last_fetch_ms = System.currentTimeMillis() - start;
+                    total_fetch_ms.addAndGet(last_fetch_ms);
+                    nb_fetches.incrementAndGet();
+                    succeeded();
+                }
+                catch (Exception e) {
+                    failed(this, e);
+                    return;
+                }
+                fetched(pings_index, pings);
+            }
+        }
+        
+        /** Starts probing a Pings got from the server in a slot */
+        private void fetched(final int pings_index, final ServerProxy.Pings pings) {
+            pings_queue[pings_index] = pings;
+            m_source_geoip.set(m_client_info.getGeoipInfo());
+            last_min_round_time = pings.min_round_time;
+            last_fetch_time = pings.time_fetched;
+            LOGGER.info("Server sync: " + getPendingRequests() + " requests pending, " +
+                        "mean submit " + getMeanSubmitTime() + "ms, " +
+                        "mean fetch " + getMeanFetchTime() + "ms, " +
+                        nb_exchanges.get() + " exchanges.");
+            prefetching.set(false);
+            
+            if (icmp_sweeper != null) {
+                // Ping the whole list at once, off the server thread,
+                // then submit it as the probes would have done.
+                probe_executor.execute(new Runnable() {
+                    public void run() {
                         try {
-                            Thread.sleep(1000 * wait_time);
-                        } catch (InterruptedException e1) {
-			    LOGGER.log(Level.SEVERE,
-				       "SendResultsGetNewAddress got interrupted while waiting after an errors. pings_index=" +
-				       pings_index, e1);
-			    PingsClient.this.errorConnectingToServer(
-			        "Interupted while a thread was sleeping.");
-                            break;
+                            icmp_sweeper.sweep(pings);
+                        }
+                        catch (InterruptedException e) {
+                            //The client is being destroyed
+                            return;
                         }
+                        submit(pings_index);
                     }
-		}
+                });
+                return;
             }
+            
+            startProbing(pings_index);
+            // A small Pings may already be under the low-water mark
+            prefetch();
+        }
+        
+        /**
+         * Counts the error of a request and schedules it again after the
+         * backoff, or gives up after too many errors.
+         */
+        private void failed(Runnable request, Exception error) {
+            String err_msg;
+            if (error instanceof UnknownHostException) {
+                err_msg =  "A problem happened while trying to connect to the server. The most probable causes are :\n" +
+                    "_ you are not connected to the internet\n" +
+                    "_ you have a DNS problem\n" +
+                    "_ the server you are trying to join is not correctly configured";
+            }
+            else if (error instanceof ConnectException) {
+                err_msg = "A problem happened while trying to connect to the server. The most probable causes are :\n" +
+                    "_ a firewall is blocking the connection\n" +
+                    "_ you lost your connection to internet\n"+
+                    "_ the server you are trying to join reject the connection";
+            }
+            else if (error instanceof SocketTimeoutException) {
+                err_msg = "A problem happened while trying to connect to the server . The most probable causes are :\n" +
+                    "_ a firewall is blocking the connection\n" +
+                    "_ the server is overloaded\n" +
+                    "_ the connection is taking too long";
+            }
+            else {
+                // We catch all Exception to make automatic
+                // retry. This make the system more robust to some
+                // other possible temporary problem with the
+                // server.
+                err_msg =  "Exception caught in the server sync when contacting the server.\n" + error;
+            }
+            
+            int consecutive = consecutive_error_count.incrementAndGet();
+            int wait_time = (int)Math.pow(2, Math.min(consecutive, 30));
+            wait_time = Math.min(wait_time, MAX_WAIT_TIME);
+            err_msg += "\n This is the " + consecutive +
+                " consecutive error count. We will wait " + wait_time +
+                " seconds before recontacting it again.";
+            LOGGER.log(Level.WARNING, err_msg);
+            
+            if (consecutive > MAX_ERROR_COUNT) {
+                LOGGER.log(Level.SEVERE, "Too many errors; stopping the server sync.");
+                PingsClient.this.errorConnectingToServer(
+                    "Too many problem happened while trying to connect to the server." +
+                    "Click try to retry or reload this page to possibly get a newer clients version."
+                    );
+                return;
+            }
+            //If we wait for more then 1 minutes, display the error messages.
+            //It is removed when a request succeeds.
+            if (wait_time >= 60)
+                PingsClient.this.displayProblem(err_msg);
+            
+            // Exponential backoff for consecutive errors.
+            schedule(request, 1000L * wait_time);
         }
-    }
-    
-    /**
-     * A function that launch the thread class sendResultsGetNewAddress
-     * @see SendResultsGetNewAddress
-     */
-    private void sendResultsGetNewAddress(int pings_index) {
-        new SendResultsGetNewAddress(pings_index).start();
     }
     
     public void errorConnectingToServer(String reason) {
@@ -644,26 +1374,32 @@ public class PingsClient extends Observable implements Runnable {
     }
     
     public void pause() {
-        synchronized(pings_queue) {
+        synchronized(pause_lock) {
            m_is_running.set(false);
         }
     }
     
     public void resume() {
 	this.setCookie();
-        m_is_running.set(true);
-        for (int i = 0; i < subClient_number; i++) {
-            synchronized(pings_queue) {
-                pings_queue.notify();
-            }
+        synchronized(pause_lock) {
+            m_is_running.set(true);
+            pause_lock.notifyAll();
         }
+        prefetch();
     }
     
     public void destroy() {
-        for (int i = 0; i < subClient_number; i++) {
-            subClients_threads_pool[i].interrupt();
+        destroyed = true;
+        if (probe_executor != null && engine == this)
+            probe_executor.shutdownNow();
+        if (load_controller != null && engine == this)
+            load_controller.stop();
+        if (server_sync != null)
+            server_sync.shutdown();
+        synchronized(pause_lock) {
+            this.m_is_running.set(false);
+            pause_lock.notifyAll();
         }
-        this.m_is_running.set(false);
     }
     public boolean isRunning() {
         return m_is_running.get();
@@ -671,37 +1407,27 @@ public class PingsClient extends Observable implements Runnable {
 
     // Return if the last ICMP pings succeded of not
     // This add the measurement to the list for the feedback as show it when needed.
-    public boolean addMeasurement(String current_ping_result, InetAddress current_ping_dest) {
-        String[] icmp_result = current_ping_result.split(";")[0].split(" ");
-        String last = icmp_result[icmp_result.length - 1];
-        boolean ok = current_ping_result.indexOf("ICMP") != -1 &&
-	    last.length() > 2 &&
-	    last.substring(last.length() - 2).equals("ms");
+    public boolean addMeasurement(ProbeResult current_ping_result, InetAddress current_ping_dest) {
+        ProbeResult icmp_result = current_ping_result.getFirst();
+        long[] rtts = icmp_result.getRtts();
+        boolean ok = icmp_result.getProtocol().equals("ICMP") && rtts.length > 0;
 	float value = -999f;
 
-	if(shown_analysis)
+	//The identities made on an engine don't keep measurements for the analysis
+	if(shown_analysis || engine != this)
 	    return ok;
 
 	if(!ok){
-	    LOGGER.log(Level.INFO, "Bad measurements: " + current_ping_result);
+	    LOGGER.log(Level.INFO, "Bad measurements: {0}", current_ping_result);
 	}else{
-	    try{
-		last = last.substring(0, last.length() - 2);
-		if (last.equals("?"))
-		    ok = false;
-		else{
-		    value = Float.parseFloat(last);
-		    ok &= value >= 10 && value < 1900;
-		}
-	    }catch(NumberFormatException e){
-		ok = false;
-		LOGGER.log(Level.INFO, "addMeasurement: Bad parsing of new ICMP ping: " + current_ping_result);
-	    }
+	    // The last round trip time, in milliseconds
+	    value = rtts[rtts.length - 1] / 1.0e6f;
+	    ok &= value >= 10 && value < 1900;
 	}
 
 	synchronized(measurements) {
 	    if (ok) {
-		String measurement = current_ping_dest.getHostAddress() + "," + last;
+		String measurement = current_ping_dest.getHostAddress() + "," + value;
 		if (num_measurements > 0) measurements += "-";
 		measurements += measurement;
 		num_measurements++;
@@ -720,6 +1446,9 @@ public class PingsClient extends Observable implements Runnable {
     }
         
     private void setOneCookie(String name, String value){
+	//The identities made on an engine have no cookies
+	if (engine != this)
+	    return;
 	System.out.println("setCookie " + name + " " + value);
 	// The try..catch work around some browser bugs. This could make some cookie not saved
 	// but having something working without cookie is better then nothing working!
@@ -755,7 +1484,23 @@ public class PingsClient extends Observable implements Runnable {
         int port = 6543;
 	boolean null_prober = false;
 	boolean icmp_prober = false;
+	boolean icmp_sweep = false;
 	int nb_clients = 1;
+	int nb_identities = 1;
+	int concurrency = subClient_number;
+	int queue_depth = 1;
+	double cutoff_fraction = 1;
+	boolean longest_first = false;
+	long cutoff_deadline = 0;
+	int per_prefix = PolitenessScheduler.DEFAULT_PER_PREFIX;
+	int per_gateway = PolitenessScheduler.DEFAULT_PER_GATEWAY;
+	int tcp_probes = 2;
+	int tcp_sockets = TcpSocketBudget.DEFAULT_SOCKETS;
+	boolean tcp_reset = false;
+	boolean http2 = false;
+	boolean binary_results = false;
+	int adaptive_min = 1;
+	int adaptive_max = 0;
 
 	//Parse input
 	for (int i = 0 ; i < args.length ; i++) {
@@ -763,6 +1508,84 @@ public class PingsClient extends Observable implements Runnable {
 		null_prober = true;
 	    } else if (args[i].equals("--icmp")) {
 		icmp_prober = true;
+	    } else if (args[i].equals("--sweep")) {
+		icmp_sweep = true;
+	    } else if (args[i].equals("--http2")) {
+		http2 = true;
+	    } else if (args[i].equals("--binary")) {
+		binary_results = true;
+	    } else if (args[i].equals("--rst")) {
+		tcp_reset = true;
+	    } else if (args[i].equals("--longest-first")) {
+		longest_first = true;
+	    } else if (args[i].startsWith("-c=")) {
+		try {
+		    concurrency = Integer.parseInt(args[i].substring(3));
+		}
+		catch (NumberFormatException e) {
+		    System.err.println("Error: concurrency argument must be an integer.");
+		    System.exit(2);
+		}
+	    } else if (args[i].startsWith("-q=")) {
+		try {
+		    queue_depth = Integer.parseInt(args[i].substring(3));
+		}
+		catch (NumberFormatException e) {
+		    System.err.println("Error: queue depth argument must be an integer.");
+		    System.exit(2);
+		}
+	    } else if (args[i].startsWith("--cutoff=")) {
+		try {
+		    String[] cutoff = args[i].substring(9).split(",");
+		    cutoff_fraction = Double.parseDouble(cutoff[0]);
+		    if (cutoff.length > 1)
+			cutoff_deadline = 1000 * Long.parseLong(cutoff[1]);
+		}
+		catch (NumberFormatException e) {
+		    System.err.println("Error: cutoff argument must be a fraction, optionally followed by ',' and seconds.");
+		    System.exit(2);
+		}
+	    } else if (args[i].startsWith("-i=")) {
+		try {
+		    nb_identities = Integer.parseInt(args[i].substring(3));
+		}
+		catch (NumberFormatException e) {
+		    System.err.println("Error: identities argument must be an integer.");
+		    System.exit(2);
+		}
+	    } else if (args[i].startsWith("--tcp=")) {
+		try {
+		    String[] tcp = args[i].substring(6).split(",");
+		    tcp_probes = Integer.parseInt(tcp[0]);
+		    if (tcp.length > 1)
+			tcp_sockets = Integer.parseInt(tcp[1]);
+		}
+		catch (NumberFormatException e) {
+		    System.err.println("Error: tcp argument must be the TCP probes at once, optionally followed by ',' and the sockets.");
+		    System.exit(2);
+		}
+	    } else if (args[i].startsWith("--adaptive=")) {
+		try {
+		    String[] bounds = args[i].substring(11).split(",");
+		    adaptive_max = Integer.parseInt(bounds[bounds.length - 1]);
+		    if (bounds.length > 1)
+			adaptive_min = Integer.parseInt(bounds[0]);
+		}
+		catch (NumberFormatException e) {
+		    System.err.println("Error: adaptive argument must be the maximum concurrency, optionally preceded by the minimum and ','.");
+		    System.exit(2);
+		}
+	    } else if (args[i].startsWith("--polite=")) {
+		try {
+		    String[] limits = args[i].substring(9).split(",");
+		    per_prefix = Integer.parseInt(limits[0]);
+		    if (limits.length > 1)
+			per_gateway = Integer.parseInt(limits[1]);
+		}
+		catch (NumberFormatException e) {
+		    System.err.println("Error: polite argument must be the probes per prefix, optionally followed by ',' and the probes per gateway.");
+		    System.exit(2);
+		}
 	    } else if (args[i].startsWith("-n=")) {
 		try {
 		    nb_clients = Integer.parseInt(args[i].substring(3));
@@ -773,7 +1596,7 @@ public class PingsClient extends Observable implements Runnable {
 		}
 
 	    } else if ((args.length - i) > 2) {
-		System.err.println("Usage: PingsClient [-n=N] [--{null,icmp}] [hostname [port]]");
+		System.err.println("Usage: PingsClient [-n=N] [-i=N] [-c=N] [-q=N] [--cutoff=F[,S]] [--polite=P[,G]] [--tcp=N[,S]] [--rst] [--http2] [--binary] [--adaptive=[MIN,]MAX] [--longest-first] [--{null,icmp,sweep}] [hostname [port]]");
 		System.exit(1);
 	    } else {
 		hostname = args[i];
@@ -792,8 +1615,9 @@ public class PingsClient extends Observable implements Runnable {
 	System.out.println("Hostname: " + hostname);
 	System.out.println("Port:" + port);
 	System.out.println("Nb clients:" + nb_clients);
-	if (null_prober && icmp_prober) {
-		System.err.println("Can only use one of --null and --icmp parameter");
+	System.out.println("Nb identities per client:" + nb_identities);
+	if ((null_prober ? 1 : 0) + (icmp_prober ? 1 : 0) + (icmp_sweep ? 1 : 0) > 1) {
+		System.err.println("Can only use one of --null, --icmp and --sweep parameter");
 		System.exit(1);
 	}
         // 1 clients 4587M virtual 34M real
@@ -802,20 +1626,47 @@ public class PingsClient extends Observable implements Runnable {
 	// 20 clients 6800M virtual 146M real
 	// 50 clients 6993M virtual 124M real
 	// 50 clients Out of memory on 8G computers. even with ulimit -v unlimited
+	// The identities (-i) share the threads, probers and network
+	// detection of their client: a few KB each.
+
+	//A server connection per 200 identities, kept alive between requests
+	int server_connections = Math.min(16, 1 + nb_identities / 200);
+	if (server_connections > 5)
+	    System.setProperty("http.maxConnections", Integer.toString(server_connections));
 
+	setTcpSockets(tcp_sockets, tcp_reset);
         PingsClient[] clients = new PingsClient[nb_clients];
+	final boolean use_null_prober = null_prober;
+	final boolean use_icmp_prober = icmp_prober;
 	for (int i = 0 ; i < nb_clients ; i++) {
-	    clients[i] = new PingsClient(hostname, port, null, "", "", 0);
-	    //Do only the ICMP ping as this is faster
-	    for(int j = 0 ; j < clients[i].subClients_pool.length ; j++){
-		PingsClient c = clients[i];
-		if (null_prober)
-		    c.subClients_pool[j].prober = new NullProber();
-		if (icmp_prober)
-		    c.subClients_pool[j].prober = new IcmpPinger(c.m_client_info);
-	    }
+	    clients[i] = new PingsClient(hostname, port, null, "", "", 0) {
+		    protected Prober newProber(String plan) {
+			if (use_null_prober)
+			    return new NullProber();
+			//Do only the ICMP ping as this is faster
+			if (use_icmp_prober) {
+			    PingsClient c = this;
+			    return new NativeIcmpPinger(c.m_client_info);
+			}
+			return super.newProber(plan);
+		    }
+		};
+	    clients[i].setConcurrency(concurrency);
+	    clients[i].setQueueDepth(queue_depth);
+	    clients[i].setStragglerCutoff(cutoff_fraction, cutoff_deadline);
+	    clients[i].setLongestFirst(longest_first);
+	    clients[i].setPoliteness(per_prefix, per_gateway);
+	    clients[i].setTcpConcurrency(tcp_probes);
+	    clients[i].setAdaptiveConcurrency(adaptive_min, adaptive_max);
+	    if (icmp_sweep)
+		clients[i].setIcmpSweeper(new IcmpSweeper(clients[i].m_client_info));
 	    clients[i].setNickname("yoda");
+	    clients[i].setServerConnections(server_connections);
+	    clients[i].setHttp2(http2);
+	    clients[i].setBinaryResults(binary_results);
 	    clients[i].run();
+	    for (int j = 1 ; j < nb_identities ; j++)
+		new PingsClient(clients[i], "", "yoda").run();
 	}
         if (false)
 	    for (int idx_client = 0 ; idx_client < nb_clients ; idx_client++) {
@@ -26,6 +26,9 @@ public class PingsClientSimulation extends PingsClient{
     double connection_refused_fraction = 0.3;
     
     private Random prg;
+    
+    //The threads of the simulated subClients
+    private Thread[] subClients_threads_pool;
     private static GeoipInfo server_location = new GeoipInfo("Montreal","Québec","Canada",-73.55f,45.5f);
     private static GeoipInfo client_geoip = server_location;
     
@@ -40,8 +43,9 @@ public class PingsClientSimulation extends PingsClient{
         subClients_pool = new subClient[subClient_number];
         subClients_threads_pool = new Thread[subClient_number];
         for (int i = 0; i < subClient_number; i++) {
-            subClients_pool[i] = new subClientSimulation();
-            subClients_threads_pool[i] = new Thread(subClients_pool[i]);
+            subClientSimulation s = new subClientSimulation();
+            subClients_pool[i] = s;
+            subClients_threads_pool[i] = new Thread(s);
             subClients_threads_pool[i].setName("SubClient "+ i);
         }
     }
@@ -155,7 +159,7 @@ public class PingsClientSimulation extends PingsClient{
     /**
      * Simulate the subClient run thread
      */
-    public class subClientSimulation extends subClient {
+    public class subClientSimulation extends subClient implements Runnable {
         public void run () {
             while (true) {
                 //Take the next address in the list received from the server
@@ -170,7 +174,7 @@ public class PingsClientSimulation extends PingsClient{
                 notifyObserversOfChange();
                 
                 //Ping this address
-                current_ping_result = ping(current_dest_geoip);
+                current_ping_result = new ProbeResult.Text(ping(current_dest_geoip));
                 notifyObserversOfChange();
                 
                 //In case the thread is paused here
@@ -0,0 +1,314 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+   The addresses of a ServerProxy.Pings and their geoip information, in
+   columns of primitives rather than an InetAddress and a GeoipInfo per
+   address: IPv4 addresses in an int[], IPv6 ones in pairs of a long[],
+   the coordinates in double[] and the city, region and country as ids
+   of strings shared by all the Pings of the JVM (so the identities of
+   an agent, and its successive Pings, hold each name once).
+
+   <p>InetAddress objects are made from the bytes, without a name
+   lookup, the first time an address is asked for (by the probes, the
+   politeness limits and the predictions of probe times), then kept so
+   they all share one: only the Pings being probed pay for them.
+   GeoipInfo objects, only wanted by the GUI for what it shows, are made
+   on each call and not kept.
+
+   <p>Filled as the answer of the server is parsed (PingsJsonReader),
+   then only read, by any thread.
+*/
+public class PingsColumns {
+    /** The ids of the strings of the geoip information */
+    private static final Map<String, Integer> s_ids = new HashMap<String, Integer>();
+    /** The strings by id, replaced by a longer copy when full (under s_ids) */
+    private static volatile String[] s_strings = new String[256];
+
+    private int m_size = 0;
+    private int[] m_ipv4;
+    /** For each address, the index of its pair in m_ipv6, -1 for IPv4; null without IPv6 */
+    private int[] m_ipv6_index = null;
+    private long[] m_ipv6 = null;
+    private int m_nb_ipv6 = 0;
+
+    /** The addresses that have geoip information, up to m_geoip_size */
+    private final BitSet m_has_geoip = new BitSet();
+    private int m_geoip_size = 0;
+    private double[] m_longitude = null;
+    private double[] m_latitude = null;
+    /** String ids, -1 for null */
+    private int[] m_city = null;
+    private int[] m_region = null;
+    private int[] m_country = null;
+
+    /** The addresses asked for by getAddress(), null before the first */
+    private volatile AtomicReferenceArray<InetAddress> m_addresses = null;
+
+    public PingsColumns() {
+        this(16);
+    }
+
+    /** @param capacity the number of addresses expected */
+    public PingsColumns(int capacity) {
+        m_ipv4 = new int[Math.max(1, capacity)];
+    }
+
+    /** @return the id of a string, -1 for null */
+    private static int intern(String s) {
+        if (s == null)
+            return -1;
+        synchronized (s_ids) {
+            Integer id = s_ids.get(s);
+            if (id == null) {
+                id = Integer.valueOf(s_ids.size());
+                String[] strings = s_strings;
+                if (id.intValue() == strings.length)
+                    strings = Arrays.copyOf(strings, 2 * strings.length);
+                strings[id.intValue()] = s;
+                // Published before the id is stored in any column
+                s_strings = strings;
+                s_ids.put(s, id);
+            }
+            return id.intValue();
+        }
+    }
+
+    /** Without lock: the ids in the columns were made before they were handed to the reader */
+    private static String getString(int id) {
+        return (id < 0) ? null : s_strings[id];
+    }
+
+    /** @return the number of addresses */
+    public int size() {
+        return m_size;
+    }
+
+    /**
+       Adds an address, given as text.
+
+       @return its index
+       @throws UnknownHostException if it is neither an IPv4 literal nor
+       resolves (as InetAddress.getByName())
+    */
+    public int add(String address) throws UnknownHostException {
+        int ipv4 = parseIpv4(address);
+        if (ipv4 != -1 || address.equals("255.255.255.255"))
+            return addIpv4(ipv4);
+        return add(InetAddress.getByName(address));
+    }
+
+    /** Adds an address. @return its index */
+    public int add(InetAddress address) {
+        byte[] b = address.getAddress();
+        if (b.length == 4)
+            return addIpv4((b[0] & 0xff) << 24 | (b[1] & 0xff) << 16 | (b[2] & 0xff) << 8 | (b[3] & 0xff));
+        int i = addIpv4(0);
+        if (m_ipv6_index == null) {
+            m_ipv6_index = new int[m_ipv4.length];
+            Arrays.fill(m_ipv6_index, -1);
+            m_ipv6 = new long[8];
+        }
+        if (2 * m_nb_ipv6 + 2 > m_ipv6.length)
+            m_ipv6 = Arrays.copyOf(m_ipv6, 2 * m_ipv6.length);
+        long high = 0;
+        long low = 0;
+        for (int k = 0; k < 8; k++) {
+            high = high << 8 | (b[k] & 0xff);
+            low = low << 8 | (b[k + 8] & 0xff);
+        }
+        m_ipv6[2 * m_nb_ipv6] = high;
+        m_ipv6[2 * m_nb_ipv6 + 1] = low;
+        m_ipv6_index[i] = m_nb_ipv6++;
+        return i;
+    }
+
+    /** Adds an IPv4 address, given as an int (see getIpv4()). @return its index */
+    public int addIpv4(int ipv4) {
+        if (m_size == m_ipv4.length) {
+            m_ipv4 = Arrays.copyOf(m_ipv4, 2 * m_size);
+            if (m_ipv6_index != null) {
+                m_ipv6_index = Arrays.copyOf(m_ipv6_index, 2 * m_size);
+                Arrays.fill(m_ipv6_index, m_size, 2 * m_size, -1);
+            }
+        }
+        m_ipv4[m_size] = ipv4;
+        return m_size++;
+    }
+
+    /** @return a dotted IPv4 address as an int, -1 if it is not one (or is 255.255.255.255) */
+    static int parseIpv4(String s) {
+        int n = s.length();
+        int value = 0;
+        int part = -1;
+        int dots = 0;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                part = (part < 0) ? c - '0' : 10 * part + (c - '0');
+                if (part > 255)
+                    return -1;
+            }
+            else if (c == '.' && part >= 0 && dots < 3) {
+                value = value << 8 | part;
+                part = -1;
+                dots++;
+            }
+            else
+                return -1;
+        }
+        if (dots != 3 || part < 0)
+            return -1;
+        return value << 8 | part;
+    }
+
+    /**
+       Sets the geoip information of the address of an index, which may
+       be added later (the server sends the two lists in any order).
+    */
+    public void setGeoip(int i, String city, String region, String country,
+                         double longitude, double latitude) {
+        if (m_longitude == null || i >= m_longitude.length) {
+            int capacity = Math.max(i + 1, Math.max(m_ipv4.length, 2 * m_geoip_size));
+            m_longitude = grow(m_longitude, capacity);
+            m_latitude = grow(m_latitude, capacity);
+            m_city = grow(m_city, capacity);
+            m_region = grow(m_region, capacity);
+            m_country = grow(m_country, capacity);
+        }
+        m_longitude[i] = longitude;
+        m_latitude[i] = latitude;
+        m_city[i] = intern(city);
+        m_region[i] = intern(region);
+        m_country[i] = intern(country);
+        m_has_geoip.set(i);
+        m_geoip_size = Math.max(m_geoip_size, i + 1);
+    }
+
+    private static double[] grow(double[] a, int capacity) {
+        return (a == null) ? new double[capacity] : Arrays.copyOf(a, capacity);
+    }
+
+    private static int[] grow(int[] a, int capacity) {
+        return (a == null) ? new int[capacity] : Arrays.copyOf(a, capacity);
+    }
+
+    /** Frees the room left for more addresses, once all are added. */
+    public void trim() {
+        if (m_ipv4.length > m_size)
+            m_ipv4 = Arrays.copyOf(m_ipv4, Math.max(1, m_size));
+        if (m_ipv6_index != null) {
+            m_ipv6_index = Arrays.copyOf(m_ipv6_index, m_ipv4.length);
+            m_ipv6 = Arrays.copyOf(m_ipv6, 2 * m_nb_ipv6);
+        }
+        // Geoip information past the addresses is for none of them
+        m_geoip_size = Math.min(m_geoip_size, m_size);
+        if (m_geoip_size == 0) {
+            m_longitude = m_latitude = null;
+            m_city = m_region = m_country = null;
+        }
+        else if (m_longitude.length > m_geoip_size) {
+            m_longitude = Arrays.copyOf(m_longitude, m_geoip_size);
+            m_latitude = Arrays.copyOf(m_latitude, m_geoip_size);
+            m_city = Arrays.copyOf(m_city, m_geoip_size);
+            m_region = Arrays.copyOf(m_region, m_geoip_size);
+            m_country = Arrays.copyOf(m_country, m_geoip_size);
+        }
+    }
+
+    /** @return true if the address of index i is an IPv4 one */
+    public boolean isIpv4(int i) {
+        return m_ipv6_index == null || m_ipv6_index[i] < 0;
+    }
+
+    /** @return the IPv4 address of index i as an int (see isIpv4()) */
+    public int getIpv4(int i) {
+        return m_ipv4[i];
+    }
+
+    /** @return the address of index i in network byte order */
+    public byte[] getBytes(int i) {
+        if (isIpv4(i)) {
+            int a = m_ipv4[i];
+            return new byte[] {(byte)(a >>> 24), (byte)(a >>> 16), (byte)(a >>> 8), (byte)a};
+        }
+        int k = m_ipv6_index[i];
+        byte[] b = new byte[16];
+        for (int j = 0; j < 8; j++) {
+            b[j] = (byte)(m_ipv6[2 * k] >>> (56 - 8 * j));
+            b[j + 8] = (byte)(m_ipv6[2 * k + 1] >>> (56 - 8 * j));
+        }
+        return b;
+    }
+
+    /**
+       @return the InetAddress of the address of index i, the same one
+       on each call once all the addresses are added
+    */
+    public InetAddress getAddress(int i) {
+        AtomicReferenceArray<InetAddress> addresses = m_addresses;
+        if (addresses == null) {
+            synchronized (this) {
+                if (m_addresses == null)
+                    m_addresses = new AtomicReferenceArray<InetAddress>(m_size);
+                addresses = m_addresses;
+            }
+        }
+        if (i >= addresses.length())
+            // Added after the first call
+            return newAddress(i);
+        InetAddress address = addresses.get(i);
+        if (address == null) {
+            addresses.compareAndSet(i, null, newAddress(i));
+            address = addresses.get(i);
+        }
+        return address;
+    }
+
+    /** @return a new InetAddress of the address of index i */
+    private InetAddress newAddress(int i) {
+        try {
+            return InetAddress.getByAddress(getBytes(i));
+        }
+        catch (UnknownHostException e) {
+            // Only for a wrong length
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** @return the InetAddresses of all the addresses (see getAddress()) */
+    public InetAddress[] getAddresses() {
+        InetAddress[] addresses = new InetAddress[m_size];
+        for (int i = 0; i < m_size; i++)
+            addresses[i] = getAddress(i);
+        return addresses;
+    }
+
+    /** @return true if the address of index i has geoip information */
+    public boolean hasGeoip(int i) {
+        return i < m_geoip_size && m_has_geoip.get(i);
+    }
+
+    /** @return the longitude of the address of index i, NaN if unknown */
+    public double getLongitude(int i) {
+        return hasGeoip(i) ? m_longitude[i] : Double.NaN;
+    }
+
+    /** @return the latitude of the address of index i, NaN if unknown */
+    public double getLatitude(int i) {
+        return hasGeoip(i) ? m_latitude[i] : Double.NaN;
+    }
+
+    /** @return a new GeoipInfo of the address of index i, null if it has none */
+    public GeoipInfo getGeoipInfo(int i) {
+        if (!hasGeoip(i))
+            return null;
+        return new GeoipInfo(getString(m_city[i]), getString(m_region[i]), getString(m_country[i]),
+                             m_longitude[i], m_latitude[i]);
+    }
+}
@@ -462,9 +462,9 @@ public class PingsGUI implements ActionListener {
             //new one.
             else {
                 if (gui_effect != null) gui_effect.Error();
-                String value = client.getCurrentPingResult();
+                ProbeResult value = client.getCurrentPingResult();
                 gui_effect = ping_globe.addPing(current_ping_geoip);
-                if (value!= null && !value.equals("")) {
+                if (value!= null && value.getProtocol().length() != 0) {
                     gui_effect.updatePingGUIValue(client.getCurrentPingResult());
                     gui_effect = null;
                 }
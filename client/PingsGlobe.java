@@ -200,34 +200,27 @@ public class PingsGlobe extends Globe {
             
         }
 
-        public void updatePingGUIValue(String value) {
-	    // Format of value : ICMP ip nb_try nb_worked total_timems[ first_timems]*[;...]
+        public void updatePingGUIValue(ProbeResult value) {
 	    // We can't use the total time as on linux it isn't the sum of all the pings.
-	    // So we will display the first time.
-            //final String regex = "\\S+\\s\\S+\\s(\\d+)\\s(\\d+)\\s(\\d+)\\s(\\d+).+";
-            try {
+	    // So we will display the first time of the first method.
+            ProbeResult first = value.getFirst();
+            int nb_try = first.getSent();
+            int nb_worked = first.getReceived();
+            long[] times = first.getRtts();
 
-                String[] groups = value.split(";")[0].split(" |ms", 8);
-                int nb_try = Integer.parseInt(groups[2]);
-                int nb_worked = Integer.parseInt(groups[3]);
-                //float totaltime = Float.parseFloat(groups[4]) / 1000f;
-
-                if (nb_worked == 0) {
-                    this.NoAnswer();
-                }
-                else if (nb_try > 0 && nb_worked != nb_try) {
-                    this.Error();
-                }
-                else 
-                {
-		    float firsttime = Float.parseFloat(groups[6]) / 1000f;
-                    this.setValue(firsttime);
-                }
+            if (nb_worked == 0) {
+                this.NoAnswer();
             }
-            catch (Exception e) {
-		//There is a parsing error. This probably mean their was an error during the ping.
+            else if (nb_worked < 0 || times.length == 0 ||
+                     (nb_try > 0 && nb_worked != nb_try)) {
+                //There is no count or time. This probably mean their was an error during the ping.
                 this.Error();
             }
+            else
+            {
+                float firsttime = times[0] / 1.0e9f;
+                this.setValue(firsttime);
+            }
         }
         
     }
@@ -0,0 +1,133 @@
+import java.io.IOException;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.ParseException;
+
+/**
+   Reads the answer of the server to /get_pings as it is parsed
+   (JSONParser.parse(Reader, ContentHandler)), without building the
+   JSON tree of the whole answer: the addresses and their geoip
+   information go straight to the columns of a PingsColumns, and only
+   the object of one geoip entry at a time is built.
+
+   <p>The answer is an object with the keys "token", "pings" (the
+   addresses), "geoip" (an object or null per address),
+   "client_geoip", "client_ip", "min_round_time" and, from newer
+   servers, "probe_plan" and "exchange". Other keys are skipped.
+*/
+public class PingsJsonReader implements ContentHandler {
+    String token = null;
+    String client_ip = null;
+    String probe_plan = null;
+    /** null if the answer had none */
+    Long min_round_time = null;
+    GeoipInfo client_geoip = null;
+    /** null if the answer had no "pings"; has the "geoip" too */
+    PingsColumns columns = null;
+    /** True if the server has /exchange */
+    boolean exchange = false;
+
+    /** The containers open, 1 inside the answer object */
+    private int m_depth = 0;
+    /** The key of the answer being read, null between two */
+    private String m_key = null;
+    /** The geoip entry being read, at m_object_depth */
+    private JSONObject m_object = null;
+    private int m_object_depth = 0;
+    private String m_entry = null;
+    /** The index of the next entry of "geoip" */
+    private int m_geoip_index = 0;
+    /** The columns, made by the first of "pings" and "geoip" */
+    private PingsColumns m_columns = null;
+
+    private PingsColumns getColumns() {
+        if (m_columns == null)
+            m_columns = new PingsColumns();
+        return m_columns;
+    }
+
+    public void startJSON() {
+    }
+
+    public void endJSON() {
+        if (columns != null)
+            columns.trim();
+    }
+
+    public boolean startObject() {
+        m_depth++;
+        if ((m_depth == 2 && "client_geoip".equals(m_key)) ||
+            (m_depth == 3 && "geoip".equals(m_key))) {
+            m_object = new JSONObject();
+            m_object_depth = m_depth;
+        }
+        return true;
+    }
+
+    public boolean endObject() {
+        if (m_object != null && m_depth == m_object_depth) {
+            if ("geoip".equals(m_key))
+                getColumns().setGeoip(m_geoip_index++,
+                                      (String)m_object.get("city"),
+                                      (String)m_object.get("region_name"),
+                                      (String)m_object.get("country_name"),
+                                      ((Number)m_object.get("longitude")).doubleValue(),
+                                      ((Number)m_object.get("latitude")).doubleValue());
+            else
+                client_geoip = new GeoipInfo(m_object);
+            m_object = null;
+        }
+        m_depth--;
+        return true;
+    }
+
+    public boolean startObjectEntry(String key) {
+        if (m_depth == 1)
+            m_key = key;
+        else if (m_object != null && m_depth == m_object_depth)
+            m_entry = key;
+        return true;
+    }
+
+    public boolean endObjectEntry() {
+        if (m_depth == 1)
+            m_key = null;
+        return true;
+    }
+
+    public boolean startArray() {
+        m_depth++;
+        if (m_depth == 2 && "pings".equals(m_key))
+            columns = getColumns();
+        return true;
+    }
+
+    public boolean endArray() {
+        m_depth--;
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    public boolean primitive(Object value) throws ParseException, IOException {
+        if (m_depth == 1) {
+            if ("token".equals(m_key))
+                token = (String)value;
+            else if ("client_ip".equals(m_key))
+                client_ip = (String)value;
+            else if ("probe_plan".equals(m_key))
+                probe_plan = (String)value;
+            else if ("min_round_time".equals(m_key) && value instanceof Number)
+                min_round_time = Long.valueOf(((Number)value).longValue());
+            else if ("exchange".equals(m_key))
+                exchange = Boolean.TRUE.equals(value);
+        }
+        else if (m_depth == 2 && "pings".equals(m_key))
+            columns.add((String)value);
+        else if (m_depth == 2 && "geoip".equals(m_key))
+            m_geoip_index++;
+        else if (m_object != null && m_depth == m_object_depth)
+            m_object.put(m_entry, value);
+        return true;
+    }
+}
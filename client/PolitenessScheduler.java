@@ -0,0 +1,209 @@
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+   Limits the probes running at the same time toward one network, so
+   that the destinations of a Pings that share a prefix (/24 in IPv4,
+   /48 in IPv6) or the gateway in front of it are not probed all at
+   once, which looks like a scan and gets the ICMP answers rate
+   limited.
+
+   <p>A probe of an address starts only if acquire() accepts it, and
+   release() is called when it ends. The probing threads put aside the
+   addresses refused (see PingsBatch.defer()) and probe others in the
+   mean time, so the concurrency stays used as long as the batches have
+   addresses of other networks.
+
+   <p>The gateway of a prefix is the last router before the
+   destination in the last trace to the prefix (learn()); the addresses
+   of prefixes not traced yet are limited by their prefix only.
+
+   <p>Thread-safe.
+*/
+public class PolitenessScheduler {
+    /** The number of prefixes whose gateway is kept */
+    public static final int GATEWAY_CAPACITY = 65536;
+
+    /** The default limits of probes at once per prefix and per gateway */
+    public static final int DEFAULT_PER_PREFIX = 1;
+    public static final int DEFAULT_PER_GATEWAY = 4;
+
+    private volatile int m_per_prefix;
+    private volatile int m_per_gateway;
+
+    /** The probes running by prefix, then by gateway; no entry for 0 */
+    private final HashMap<Long, int[]> m_prefix_probes = new HashMap<Long, int[]>();
+    private final HashMap<InetAddress, int[]> m_gateway_probes = new HashMap<InetAddress, int[]>();
+    private final LinkedHashMap<Long, InetAddress> m_gateways;
+
+    private long m_acquired = 0;
+    private long m_deferred_prefix = 0;
+    private long m_deferred_gateway = 0;
+    private long m_waits = 0;
+
+    public PolitenessScheduler() {
+        this(DEFAULT_PER_PREFIX, DEFAULT_PER_GATEWAY);
+    }
+
+    /** @param per_prefix, per_gateway the limits, 0 for none */
+    public PolitenessScheduler(int per_prefix, int per_gateway) {
+        setLimits(per_prefix, per_gateway);
+        m_gateways = new LinkedHashMap<Long, InetAddress>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Long, InetAddress> eldest) {
+                if (size() <= GATEWAY_CAPACITY)
+                    return false;
+                // Its probes running no longer count for the gateway
+                int running = count(m_prefix_probes, eldest.getKey());
+                if (running > 0)
+                    add(m_gateway_probes, eldest.getValue(), -running);
+                return true;
+            }
+        };
+    }
+
+    /**
+       Sets the number of probes that can run at once toward a prefix
+       and toward a gateway, 0 for no limit. The probes already running
+       are not affected.
+    */
+    public void setLimits(int per_prefix, int per_gateway) {
+        m_per_prefix = per_prefix;
+        m_per_gateway = per_gateway;
+    }
+
+    public int getPerPrefix() { return m_per_prefix; }
+    public int getPerGateway() { return m_per_gateway; }
+
+    /** @return the number of probes running in map under key */
+    private static <K> int count(HashMap<K, int[]> map, K key) {
+        int[] n = map.get(key);
+        return (n == null) ? 0 : n[0];
+    }
+
+    /** Adds delta to the number of probes running in map under key */
+    private static <K> void add(HashMap<K, int[]> map, K key, int delta) {
+        int[] n = map.get(key);
+        if (n == null)
+            map.put(key, n = new int[1]);
+        n[0] += delta;
+        if (n[0] <= 0)
+            map.remove(key);
+    }
+
+    /**
+       Counts a probe of addr as running, if its prefix and its gateway
+       are below their limits.
+
+       @return false if the probe must wait
+    */
+    public synchronized boolean acquire(InetAddress addr) {
+        Long prefix = ProbeTimeHistory.prefix(addr);
+        if (m_per_prefix > 0 && count(m_prefix_probes, prefix) >= m_per_prefix) {
+            m_deferred_prefix++;
+            return false;
+        }
+        InetAddress gateway = m_gateways.get(prefix);
+        if (gateway != null && m_per_gateway > 0 &&
+            count(m_gateway_probes, gateway) >= m_per_gateway) {
+            m_deferred_gateway++;
+            return false;
+        }
+        add(m_prefix_probes, prefix, 1);
+        if (gateway != null)
+            add(m_gateway_probes, gateway, 1);
+        m_acquired++;
+        return true;
+    }
+
+    /**
+       Ends a probe of addr accepted by acquire(), and wakes up the
+       threads waiting for one to end.
+    */
+    public synchronized void release(InetAddress addr) {
+        Long prefix = ProbeTimeHistory.prefix(addr);
+        add(m_prefix_probes, prefix, -1);
+        InetAddress gateway = m_gateways.get(prefix);
+        if (gateway != null)
+            add(m_gateway_probes, gateway, -1);
+        notifyAll();
+    }
+
+    /**
+       Waits for a probe to end, or for timeout_ms at most, when all the
+       addresses left are refused.
+    */
+    public synchronized void awaitRelease(long timeout_ms) throws InterruptedException {
+        m_waits++;
+        wait(timeout_ms);
+    }
+
+    /**
+       Learns the gateway of the prefix of dest from a trace to it,
+       among the parts of result.
+    */
+    public void learn(InetAddress dest, ProbeResult result) {
+        ProbeResult[] parts = (result instanceof ProbeResult.Composite) ?
+            ((ProbeResult.Composite)result).getParts() : new ProbeResult[] {result};
+        for (ProbeResult part : parts) {
+            if (!(part instanceof ProbeResult.Trace))
+                continue;
+            InetAddress gateway = getGateway((ProbeResult.Trace)part, dest);
+            if (gateway != null)
+                setGateway(ProbeTimeHistory.prefix(dest), gateway);
+        }
+    }
+
+    /**
+       Sets the gateway of a prefix. The probes of the prefix already
+       running move to the new gateway, so that each gateway counts the
+       probes of the prefixes it has now.
+    */
+    private synchronized void setGateway(Long prefix, InetAddress gateway) {
+        InetAddress old = m_gateways.put(prefix, gateway);
+        int running = count(m_prefix_probes, prefix);
+        if (running > 0 && !gateway.equals(old)) {
+            if (old != null)
+                add(m_gateway_probes, old, -running);
+            add(m_gateway_probes, gateway, running);
+        }
+    }
+
+    /** @return the last address before dest that answered the trace, null if none */
+    private static InetAddress getGateway(ProbeResult.Trace trace, InetAddress dest) {
+        for (int hop = trace.getNbHops() - 1; hop >= 0; hop--) {
+            long[] rtts = trace.getRtts(hop);
+            InetAddress[] from = trace.getFrom(hop);
+            for (int q = 0; q < rtts.length; q++)
+                if (rtts[q] != 0 && from[q] != null && !from[q].equals(dest))
+                    return from[q];
+        }
+        return null;
+    }
+
+    /** @return the number of probes accepted */
+    public synchronized long getAcquired() { return m_acquired; }
+
+    /** @return the number of times a probe was put off for its prefix */
+    public synchronized long getDeferredByPrefix() { return m_deferred_prefix; }
+
+    /** @return the number of times a probe was put off for its gateway */
+    public synchronized long getDeferredByGateway() { return m_deferred_gateway; }
+
+    /** @return the number of times a thread waited for a probe to end */
+    public synchronized long getWaits() { return m_waits; }
+
+    /** @return the number of probes running */
+    public synchronized int getRunning() {
+        int running = 0;
+        for (int[] n : m_prefix_probes.values())
+            running += n[0];
+        return running;
+    }
+
+    /** @return the number of prefixes whose gateway is known */
+    public synchronized int getGatewayCount() {
+        return m_gateways.size();
+    }
+}
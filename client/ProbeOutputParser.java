@@ -0,0 +1,523 @@
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+   Hand-written parsers for the output of the ping and traceroute
+   commands. They give exactly the strings of the regular expressions of
+   IcmpPinger and TraceRouter (see IcmpPinger.getSummaryRegex(),
+   IcmpPinger.getTimesRegex() and TraceRouter.getTimesRegex()), without
+   compiling patterns or building intermediate strings: each line is
+   scanned once, by hand, and the result is built in a StringBuilder
+   reused from call to call.
+
+   <p>Every method follows the backtracking order of the regex it
+   replaces, so the first match found, and its groups, are the same.
+   Lines holding a line terminator (where '.' and '$' behave differently)
+   are left to the regexes by the callers, see hasLineTerminator().
+
+   <p>An instance is not thread-safe; get() returns one per thread.
+
+   @see ParserBenchmark
+*/
+public class ProbeOutputParser {
+    /** Summary formats, in the order of IcmpPinger's OS_SPECIFIC_SUMMARY_REGEX */
+    static final int SUMMARY_UNIX = 0;
+    static final int SUMMARY_OSX = 1;
+    static final int SUMMARY_WINDOWS = 2;
+
+    /** Hop formats, in the order of TraceRouter's OS_SPECIFIC_TRANSLATOR */
+    static final int HOPS_UNIX = 0;
+    static final int HOPS_WINDOWS = 1;
+
+    /** The words that introduce a time, in the order of IcmpPinger's regex */
+    private static final String[] TIME_KEYWORDS = {
+        "tiempo", "tempo", "durata", "time", "temps", "Zeit", "时间"
+    };
+
+    /** Digit runs longer than this are left to the regex (see isIpLine()) */
+    private static final int MAX_DIGIT_RUN = 32;
+    private static final Pattern IP_LINE =
+        Pattern.compile("\\s+[0-9]+.[0-9]+.[0-9]+.[0-9]+\\s+.*");
+
+    private static final ThreadLocal<ProbeOutputParser> s_parsers =
+        new ThreadLocal<ProbeOutputParser>() {
+            protected ProbeOutputParser initialValue() {
+                return new ProbeOutputParser();
+            }
+        };
+
+    /** The result being built */
+    private final StringBuilder m_out = new StringBuilder(512);
+    /** The traceroute line being normalized */
+    private final StringBuilder m_line = new StringBuilder(128);
+
+    /** @return the parser of the calling thread */
+    public static ProbeOutputParser get() {
+        return s_parsers.get();
+    }
+
+    /**
+       @return true if one of the lines holds a character that ends a
+       line for java.util.regex, in which case the hand-written parsers
+       must not be used
+    */
+    public static boolean hasLineTerminator(List<String> lines) {
+        for (String s : lines) {
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029')
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /** \s */
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /** [0-9] */
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /** [\w|\s] */
+    private static boolean isWordBarSpace(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || isDigit(c) ||
+            c == '_' || c == '|' || isSpace(c);
+    }
+
+    /** [,，﹐] */
+    private static boolean isComma(char c) {
+        return c == ',' || c == '\uFF0C' || c == '\uFE50';
+    }
+
+    /** @return the end of the digits starting at i */
+    private static int skipDigits(CharSequence s, int i) {
+        while (i < s.length() && isDigit(s.charAt(i)))
+            i++;
+        return i;
+    }
+
+    /** @return the end of the whitespace starting at i */
+    private static int skipSpaces(CharSequence s, int i) {
+        while (i < s.length() && isSpace(s.charAt(i)))
+            i++;
+        return i;
+    }
+
+    /** @return true if s holds word at i */
+    private static boolean startsWith(CharSequence s, int i, String word) {
+        if (i + word.length() > s.length())
+            return false;
+        for (int k = 0; k < word.length(); k++)
+            if (s.charAt(i + k) != word.charAt(k))
+                return false;
+        return true;
+    }
+
+    /**
+       Returns the ping summary, as IcmpPinger.getSummary().
+
+       @param format SUMMARY_UNIX, SUMMARY_OSX or SUMMARY_WINDOWS
+    */
+    public String getSummary(int format, List<String> stdout_lines) {
+        for (String s : stdout_lines) {
+            m_out.setLength(0);
+            if (format == SUMMARY_WINDOWS ? matchWindowsSummary(s) : matchUnixSummary(format, s))
+                return m_out.toString();
+        }
+
+        if (stdout_lines.size() == 0)
+            return "ping have no output";
+
+        String str = stdout_lines.get(0);
+        for (String s : stdout_lines) {
+            if (s.length() > 0 && s.charAt(0) == ' ' && s.indexOf('=') >= 0) {
+                str = s;
+                break;
+            }
+        }
+        return "ping summary not found. The closest output line is : '" + str + "'";
+    }
+
+    /**
+       "(([0-9]+)\s[\w|\s]+),\s(([0-9]+)\s[\w|\s]+),.*(time)\s(.*)" -> "$2 $4 $6"
+       or, for OSX, "(([0-9]+)\s[\w|\s]+),\s(([0-9]+)\s[\w|\s]+).*" -> "$2 $4 ?ms".
+    */
+    private boolean matchUnixSummary(int format, String s) {
+        int n = s.length();
+        int d1 = skipDigits(s, 0);
+        if (d1 == 0 || d1 >= n || !isSpace(s.charAt(d1)))
+            return false;
+        int i = d1 + 1;
+        int start = i;
+        while (i < n && isWordBarSpace(s.charAt(i)))
+            i++;
+        if (i == start || i >= n || s.charAt(i) != ',')
+            return false;
+        i++;
+        if (i >= n || !isSpace(s.charAt(i)))
+            return false;
+        int d2_start = i + 1;
+        int d2 = skipDigits(s, d2_start);
+        if (d2 == d2_start || d2 >= n || !isSpace(s.charAt(d2)))
+            return false;
+        i = d2 + 1;
+        start = i;
+        while (i < n && isWordBarSpace(s.charAt(i)))
+            i++;
+        if (i == start)
+            return false;
+
+        if (format == SUMMARY_OSX) {
+            m_out.append(s, 0, d1).append(' ').append(s, d2_start, d2).append(" ?ms");
+            return true;
+        }
+
+        if (i >= n || s.charAt(i) != ',')
+            return false;
+        // ".*(time)\s": the last "time" followed by a space.
+        for (int p = n - 5; p > i; p--) {
+            if (startsWith(s, p, "time") && isSpace(s.charAt(p + 4))) {
+                m_out.append(s, 0, d1).append(' ').append(s, d2_start, d2).append(' ')
+                    .append(s, p + 5, n);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+       "[^=]+=\s*(\d+)[,，﹐][^=]+=\s*(\d+)[,，﹐][^=]*=.*" -> "$1 $2 ?ms"
+    */
+    private boolean matchWindowsSummary(String s) {
+        int i = s.indexOf('=');
+        if (i <= 0)
+            return false;
+        int d1_start = skipSpaces(s, i + 1);
+        int d1 = skipDigits(s, d1_start);
+        if (d1 == d1_start || d1 >= s.length() || !isComma(s.charAt(d1)))
+            return false;
+        i = s.indexOf('=', d1 + 1);
+        if (i <= d1 + 1)
+            return false;
+        int d2_start = skipSpaces(s, i + 1);
+        int d2 = skipDigits(s, d2_start);
+        if (d2 == d2_start || d2 >= s.length() || !isComma(s.charAt(d2)))
+            return false;
+        if (s.indexOf('=', d2 + 1) < 0)
+            return false;
+        m_out.append(s, d1_start, d1).append(' ').append(s, d2_start, d2).append(" ?ms");
+        return true;
+    }
+
+    /**
+       Returns the ping times, as IcmpPinger.getTimes().
+    */
+    public String getTimes(List<String> stdout_lines) {
+        m_out.setLength(0);
+        for (String s : stdout_lines) {
+            if (isTimeLine(s)) {
+                m_out.append(' ');
+                appendTime(s);
+            }
+            else if (s.contains("TTL")) {
+                // All known(French, English, Espagnol
+                if (!appendTokenInMs(s))
+                    m_out.append(" '").append(s).append('\'');
+            }
+        }
+        if (m_out.length() == 0) {
+            System.out.println("Pings outputs not parsed: ");
+            for (String s : stdout_lines)
+                System.out.println(s);
+        }
+        return m_out.toString();
+    }
+
+    /**
+       @return the end of the time keyword at i, or -1
+    */
+    private static int keywordEnd(String s, int i) {
+        if (i >= s.length())
+            return -1;
+        char c = s.charAt(i);
+        if (c != 't' && c != 'd' && c != 'Z' && c != '时')
+            return -1;
+        for (String k : TIME_KEYWORDS)
+            if (startsWith(s, i, k))
+                return i + k.length();
+        return -1;
+    }
+
+    /** ".*\s(time|temps|tiempo|tempo|durata|Zeit|时间)(=|<)[0-9]+.*" */
+    private static boolean isTimeLine(String s) {
+        int n = s.length();
+        for (int i = 0; i + 1 < n; i++) {
+            if (!isSpace(s.charAt(i)))
+                continue;
+            int e = keywordEnd(s, i + 1);
+            if (e >= 0 && e + 1 < n && (s.charAt(e) == '=' || s.charAt(e) == '<') &&
+                isDigit(s.charAt(e + 1)))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+       "(.*(tiempo|tempo|durata|time|temps|Zeit|时间)=?)(<?[0-9]+(\.[0-9]+)?)(\ ?)(\S+).*"
+       -> "$3$6". The greedy ".*" tries the last keyword first; the number
+       gives back digits when nothing follows it.
+    */
+    private void appendTime(String s) {
+        for (int p = s.length(); p >= 0; p--) {
+            int e = keywordEnd(s, p);
+            if (e >= 0 && appendNumber(s, e))
+                return;
+        }
+        // No match: replaceAll() leaves the line as it is.
+        m_out.append(s);
+    }
+
+    private boolean appendNumber(String s, int i) {
+        int n = s.length();
+        if (i < n && s.charAt(i) == '=')
+            i++;
+        int number_start = i;
+        if (i < n && s.charAt(i) == '<')
+            i++;
+        int digits_end = skipDigits(s, i);
+        for (int d = digits_end; d > i; d--) {
+            if (d == digits_end && d < n && s.charAt(d) == '.') {
+                int fraction_end = skipDigits(s, d + 1);
+                for (int f = fraction_end; f > d + 1; f--)
+                    if (appendUnit(s, number_start, f))
+                        return true;
+            }
+            if (appendUnit(s, number_start, d))
+                return true;
+        }
+        return false;
+    }
+
+    /** "(\ ?)(\S+)" after the number [number_start, number_end) */
+    private boolean appendUnit(String s, int number_start, int number_end) {
+        int n = s.length();
+        int unit = number_end;
+        if (unit < n && s.charAt(unit) == ' ' && unit + 1 < n && !isSpace(s.charAt(unit + 1)))
+            unit++;
+        else if (unit >= n || isSpace(s.charAt(unit)))
+            return false;
+        int unit_end = unit;
+        while (unit_end < n && !isSpace(s.charAt(unit_end)))
+            unit_end++;
+        m_out.append(s, number_start, number_end).append(s, unit, unit_end);
+        return true;
+    }
+
+    /**
+       Appends " " and the first space-separated token longer than 2
+       ending in "ms".
+
+       @return false if there is none
+    */
+    private boolean appendTokenInMs(String s) {
+        int start = 0;
+        while (true) {
+            int space = s.indexOf(' ', start);
+            int end = (space < 0) ? s.length() : space;
+            if (end - start > 2 && s.charAt(end - 2) == 'm' && s.charAt(end - 1) == 's') {
+                m_out.append(' ').append(s, start, end);
+                return true;
+            }
+            if (space < 0)
+                return false;
+            start = space + 1;
+        }
+    }
+
+    /**
+       Returns the hops of a traceroute output, as TraceRouter.getTimes()
+       with TraceRouter's reject regex.
+
+       @param format HOPS_UNIX or HOPS_WINDOWS
+    */
+    public String getHops(int format, int retval, List<String> stdout_lines) {
+        if (retval != 0)
+            return "failed " + String.valueOf(retval);
+
+        m_out.setLength(0);
+        boolean first = true;
+        for (String s : stdout_lines) {
+            if (isRejected(s))
+                continue;
+            if (isHopLine(s)) {
+                if (!first)
+                    m_out.append(',');
+                appendHop(format, s);
+                first = false;
+            }
+            else if (isIpLine(s)) {
+                // On OSX, this is the same hop as the previous line.
+                m_out.append(' ');
+                appendHop(format, s);
+                first = false;
+            }
+        }
+        if (first)
+            m_out.append("TIMEOUT");
+        return m_out.toString();
+    }
+
+    /** "\s*[0-9]+\s.*": a line beginning with a number */
+    private static boolean isHopLine(String s) {
+        int i = skipSpaces(s, 0);
+        int d = skipDigits(s, i);
+        return d > i && d < s.length() && isSpace(s.charAt(d));
+    }
+
+    /** "\s*[0-9]+(\s+\*){3}.*": a line filled with stars */
+    private static boolean isRejected(String s) {
+        int i = skipSpaces(s, 0);
+        int d = skipDigits(s, i);
+        if (d == i)
+            return false;
+        for (int k = 0; k < 3; k++) {
+            int star = skipSpaces(s, d);
+            if (star == d || star >= s.length() || s.charAt(star) != '*')
+                return false;
+            d = star + 1;
+        }
+        return true;
+    }
+
+    /** "\s+[0-9]+.[0-9]+.[0-9]+.[0-9]+\s+.*": a line beginning with an ip */
+    private static boolean isIpLine(String s) {
+        int i = skipSpaces(s, 0);
+        if (i == 0)
+            return false;
+        for (int k = i; k < s.length(); k++) {
+            if (isDigit(s.charAt(k)) && skipDigits(s, k) - k > MAX_DIGIT_RUN)
+                return IP_LINE.matcher(s).matches();
+        }
+        return matchDottedQuad(s, i, 4);
+    }
+
+    /** "[0-9]+" then, groups times, "." and "[0-9]+", then "\s" */
+    private static boolean matchDottedQuad(String s, int i, int groups) {
+        int n = s.length();
+        int digits_end = skipDigits(s, i);
+        for (int d = digits_end; d > i; d--) {
+            if (groups == 1) {
+                if (d < n && isSpace(s.charAt(d)))
+                    return true;
+            }
+            else if (d < n && matchDottedQuad(s, d + 1, groups - 1))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+       Normalizes the spaces of a hop line as TraceRouter does (leading
+       spaces, one trailing space, strings of spaces, space before "ms")
+       and appends it, translated for Windows.
+    */
+    private void appendHop(int format, String s) {
+        int start = skipSpaces(s, 0);
+        int end = s.length();
+        if (end > start && isSpace(s.charAt(end - 1)))
+            end--;
+
+        StringBuilder t = (format == HOPS_WINDOWS) ? m_line : m_out;
+        if (t == m_line)
+            m_line.setLength(0);
+        int i = start;
+        while (i < end) {
+            char c = s.charAt(i);
+            if (!isSpace(c)) {
+                t.append(c);
+                i++;
+                continue;
+            }
+            int j = i;
+            while (j < end && isSpace(s.charAt(j)))
+                j++;
+            // "\s+ms" -> "ms". The last space of the line may have
+            // been trimmed, so look in s only up to end.
+            if (!(j + 1 < end && s.charAt(j) == 'm' && s.charAt(j + 1) == 's'))
+                t.append(' ');
+            i = j;
+        }
+
+        if (format == HOPS_WINDOWS)
+            appendWindowsHop(m_line);
+    }
+
+    /**
+       "\s*([0-9]+)\s(<?(\*|[0-9]+)m?s?)\s(<?(\*|[0-9]+)m?s?)\s(<?(\*|[0-9]+)m?s?)\s([0-9\.]+).*"
+       -> "$1 $8 $2 $4 $6": tracert prints the times before the address.
+    */
+    private void appendWindowsHop(StringBuilder t) {
+        int n = t.length();
+        for (int k = 0; k < n; k++) {
+            int g1 = skipSpaces(t, k);
+            int g1_end = skipDigits(t, g1);
+            if (g1_end == g1 || g1_end >= n || !isSpace(t.charAt(g1_end)))
+                continue;
+            int g2 = g1_end + 1;
+            int g2_end = matchTime(t, g2);
+            if (g2_end < 0)
+                continue;
+            int g4 = g2_end + 1;
+            int g4_end = matchTime(t, g4);
+            if (g4_end < 0)
+                continue;
+            int g6 = g4_end + 1;
+            int g6_end = matchTime(t, g6);
+            if (g6_end < 0)
+                continue;
+            int g8 = g6_end + 1;
+            int g8_end = g8;
+            while (g8_end < n && (isDigit(t.charAt(g8_end)) || t.charAt(g8_end) == '.'))
+                g8_end++;
+            if (g8_end == g8)
+                continue;
+            m_out.append(t, 0, k)
+                .append(t, g1, g1_end).append(' ')
+                .append(t, g8, g8_end).append(' ')
+                .append(t, g2, g2_end).append(' ')
+                .append(t, g4, g4_end).append(' ')
+                .append(t, g6, g6_end);
+            return;
+        }
+        // No match: the line is left as it is.
+        m_out.append(t);
+    }
+
+    /**
+       "<?(\*|[0-9]+)m?s?\s"
+
+       @return the end of the time (the position of the space), or -1
+    */
+    private static int matchTime(CharSequence t, int i) {
+        int n = t.length();
+        if (i < n && t.charAt(i) == '<')
+            i++;
+        if (i < n && t.charAt(i) == '*')
+            i++;
+        else {
+            int d = skipDigits(t, i);
+            if (d == i)
+                return -1;
+            i = d;
+        }
+        if (i < n && t.charAt(i) == 'm')
+            i++;
+        if (i < n && t.charAt(i) == 's')
+            i++;
+        return (i < n && isSpace(t.charAt(i))) ? i : -1;
+    }
+}
@@ -0,0 +1,282 @@
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+   A Prober that runs its probes following a plan: each step may depend
+   on the results of earlier steps, so expensive probes can be skipped
+   when a cheap one already tells the destination is dead. A plan is
+   written as a list of steps separated by ',':
+
+   <p><tt>icmp, tcp, troute if icmp.reached | tcp.answered &amp; sample(4)</tt>
+
+   <p>A step is one of <tt>icmp</tt> (NativeIcmpPinger), <tt>tcp</tt>
+   (NioTcpPinger) or <tt>troute</tt> (ParallelTraceRouter), optionally
+   followed by <tt>if</tt> and a condition on the results of the steps
+   before it. A condition is an "or" ('|') of "and"s ('&amp;') of:
+
+   <ul>
+   <li><tt>step.reached</tt>: the step ran and got at least one answer
+   (echo reply, accepted connection).</li>
+   <li><tt>step.answered</tt>: the step ran and the destination
+   responded at all; for tcp, a refused connection counts.</li>
+   <li><tt>sample(k)</tt>: true for one destination in k, at random.</li>
+   <li><tt>!</tt> followed by one of the above, to negate it.</li>
+   </ul>
+
+   <p>The steps form a DAG: a step runs once all the steps its
+   condition names are done, and the steps ready together run at the
+   same time in parallel mode (see setParallel()). The results are
+   joined as by CompositeProber, in the order of the plan, without the
+   skipped steps. The return code is the first step's, as in the
+   "first" mode of CompositeProber.
+*/
+public class ProbePlan implements Prober {
+    /** A predicate on the results of the steps already done */
+    private interface Condition {
+        /** @param results the result of each step, null if skipped */
+        boolean holds(ProbeResult[] results);
+    }
+
+    private static class Reached implements Condition {
+        private final int m_step;
+        private final boolean m_answered;
+
+        Reached(int step, boolean answered) {
+            m_step = step;
+            m_answered = answered;
+        }
+
+        public boolean holds(ProbeResult[] results) {
+            ProbeResult r = results[m_step];
+            if (r == null)
+                return false;
+            if (m_answered && r instanceof ProbeResult.Tcp) {
+                for (byte status : ((ProbeResult.Tcp)r).getStatus())
+                    if (status == ProbeResult.Tcp.OK || status == ProbeResult.Tcp.REFUSED)
+                        return true;
+                return false;
+            }
+            return r.getReceived() > 0;
+        }
+    }
+
+    private class Sample implements Condition {
+        private final int m_k;
+
+        Sample(int k) {
+            m_k = k;
+        }
+
+        public boolean holds(ProbeResult[] results) {
+            return m_random.nextInt(m_k) == 0;
+        }
+    }
+
+    private static class Not implements Condition {
+        private final Condition m_c;
+
+        Not(Condition c) {
+            m_c = c;
+        }
+
+        public boolean holds(ProbeResult[] results) {
+            return !m_c.holds(results);
+        }
+    }
+
+    /** An "or" of "and"s */
+    private static class Any implements Condition {
+        private final Condition[][] m_terms;
+
+        Any(Condition[][] terms) {
+            m_terms = terms;
+        }
+
+        public boolean holds(ProbeResult[] results) {
+            for (Condition[] term : m_terms) {
+                boolean all = true;
+                for (int i = 0; i < term.length && all; i++)
+                    all = term[i].holds(results);
+                if (all)
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    private final String m_spec;
+    private final String[] m_names;
+    private final Prober[] m_probers;
+    /** The condition of each step, null if it always runs */
+    private final Condition[] m_conditions;
+    /** Steps of the same level only depend on steps of lower levels */
+    private final int[] m_levels;
+    private int m_nb_levels = 0;
+
+    private final ProbeResult[] m_results;
+    private final Random m_random = new Random();
+    private boolean m_parallel = false;
+
+    /**
+       Parses a plan.
+
+       @param spec the plan, as described above
+       @param info the configuration of the probers
+       @throws IllegalArgumentException if the plan is not valid
+    */
+    public ProbePlan(String spec, ClientInfo info) {
+        m_spec = spec;
+        String[] steps = spec.split(",");
+        m_names = new String[steps.length];
+        m_probers = new Prober[steps.length];
+        m_conditions = new Condition[steps.length];
+        m_levels = new int[steps.length];
+        m_results = new ProbeResult[steps.length];
+
+        for (int i = 0; i < steps.length; i++) {
+            String step = steps[i].trim();
+            String condition = null;
+            int split = step.indexOf(" if ");
+            if (split >= 0) {
+                condition = step.substring(split + 4).trim();
+                step = step.substring(0, split).trim();
+            }
+            if (indexOf(step, i) >= 0)
+                throw new IllegalArgumentException("Step " + step + " appears twice in plan: " + spec);
+            m_names[i] = step;
+            m_probers[i] = newProber(step, info);
+            if (condition != null) {
+                List<Integer> depends = new ArrayList<Integer>();
+                m_conditions[i] = parseCondition(condition, i, depends);
+                for (Integer d : depends)
+                    m_levels[i] = Math.max(m_levels[i], m_levels[d.intValue()] + 1);
+            }
+            m_nb_levels = Math.max(m_nb_levels, m_levels[i] + 1);
+        }
+        clearProbe();
+    }
+
+    private static Prober newProber(String name, ClientInfo info) {
+        if (name.equals("icmp"))
+            return new NativeIcmpPinger(info);
+        if (name.equals("tcp"))
+            return new NioTcpPinger(info);
+        if (name.equals("troute"))
+            return new ParallelTraceRouter(info);
+        throw new IllegalArgumentException("Unknown probe: " + name);
+    }
+
+    /** @return the index of the step named name before step end, -1 if none */
+    private int indexOf(String name, int end) {
+        for (int i = 0; i < end; i++)
+            if (m_names[i].equals(name))
+                return i;
+        return -1;
+    }
+
+    /**
+       @param step the index of the step the condition is for
+       @param depends receives the steps the condition names
+    */
+    private Condition parseCondition(String condition, int step, List<Integer> depends) {
+        String[] terms = condition.split("\\|");
+        Condition[][] any = new Condition[terms.length][];
+        for (int t = 0; t < terms.length; t++) {
+            String[] atoms = terms[t].split("&");
+            any[t] = new Condition[atoms.length];
+            for (int a = 0; a < atoms.length; a++)
+                any[t][a] = parseAtom(atoms[a].trim(), step, depends);
+        }
+        return new Any(any);
+    }
+
+    private Condition parseAtom(String atom, int step, List<Integer> depends) {
+        if (atom.startsWith("!"))
+            return new Not(parseAtom(atom.substring(1).trim(), step, depends));
+        if (atom.startsWith("sample(") && atom.endsWith(")")) {
+            try {
+                int k = Integer.parseInt(atom.substring(7, atom.length() - 1).trim());
+                if (k > 0)
+                    return new Sample(k);
+            }
+            catch (NumberFormatException e) {
+            }
+            throw new IllegalArgumentException("Bad sample rate: " + atom);
+        }
+        int dot = atom.indexOf('.');
+        if (dot > 0) {
+            int d = indexOf(atom.substring(0, dot), step);
+            String test = atom.substring(dot + 1);
+            if (d >= 0 && (test.equals("reached") || test.equals("answered"))) {
+                depends.add(Integer.valueOf(d));
+                return new Reached(d, test.equals("answered"));
+            }
+        }
+        throw new IllegalArgumentException("Bad condition for " + m_names[step] + ": " + atom +
+                                           " (only earlier steps can be tested)");
+    }
+
+    /** @return the plan, as parsed */
+    public String getSpec() { return m_spec; }
+
+    /**
+       Selects whether the steps ready at the same time run in parallel
+       (true) or one after the other (false, the default).
+    */
+    public void setParallel(boolean parallel) {
+        m_parallel = parallel;
+    }
+
+    public String getLastProbe() {
+        return getLastResult().toString();
+    }
+
+    public ProbeResult getLastResult() {
+        List<ProbeResult> parts = new ArrayList<ProbeResult>();
+        for (ProbeResult r : m_results) {
+            if (r != null)
+                parts.add(r);
+        }
+        return new ProbeResult.Composite(parts.toArray(new ProbeResult[parts.size()]));
+    }
+
+    public void clearProbe() {
+        for (int i = 0; i < m_probers.length; i++) {
+            m_probers[i].clearProbe();
+            m_results[i] = null;
+        }
+    }
+
+    /**
+       Runs the steps of the plan, level by level, skipping the steps
+       whose condition does not hold.
+
+       @return the return code of the first step, 1 if it was skipped
+    */
+    public int probe(InetAddress addr) throws InterruptedException {
+        for (int i = 0; i < m_results.length; i++)
+            m_results[i] = null;
+        int retval = 1;
+        Prober[] ready = new Prober[m_probers.length];
+        for (int level = 0; level < m_nb_levels; level++) {
+            for (int i = 0; i < m_probers.length; i++) {
+                boolean run = m_levels[i] == level &&
+                    (m_conditions[i] == null || m_conditions[i].holds(m_results));
+                ready[i] = run ? m_probers[i] : null;
+            }
+            int[] retvals = CompositeProber.probeAll(ready, addr, m_parallel);
+            for (int i = 0; i < m_probers.length; i++) {
+                if (ready[i] == null)
+                    continue;
+                m_results[i] = m_probers[i].getLastResult();
+                if (i == 0)
+                    retval = retvals[i];
+            }
+        }
+        return retval;
+    }
+
+    public String toString() { return m_spec; }
+}
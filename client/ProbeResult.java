@@ -0,0 +1,358 @@
+import java.net.InetAddress;
+import java.text.DecimalFormat;
+
+/**
+   The result of one probe, as collected: counts, round trip times in
+   nanoseconds and error codes in primitive arrays. The probers in the
+   JVM fill these directly, so nothing is formatted or parsed while
+   probing.
+
+   <p>The text format of Prober.getLastProbe(), which the server
+   stores, is only produced by appendTo() (or toString()), when the
+   results are submitted. Results of the external commands (ping,
+   traceroute) are already text: they are kept as Text results and
+   parsed only if their fields are asked for.
+
+   @see Prober#getLastResult()
+*/
+public abstract class ProbeResult {
+    /** The result of a prober that collected nothing */
+    public static final ProbeResult EMPTY = new Text("");
+
+    private static final long[] NO_TIMES = new long[0];
+
+    /** @return "ICMP", "TCP", "TROUTE", or the first word of a Text result */
+    public abstract String getProtocol();
+
+    /** @return the probed address, or null if unknown */
+    public InetAddress getTarget() { return null; }
+
+    /** @return the number of probes sent, -1 if it does not apply */
+    public int getSent() { return -1; }
+
+    /** @return the number of probes answered, -1 if it does not apply */
+    public int getReceived() { return -1; }
+
+    /**
+       @return the round trip times of the answered probes in
+       nanoseconds, in the order the probes were sent
+    */
+    public long[] getRtts() { return NO_TIMES; }
+
+    /**
+       @return the result of the first method of a composite result,
+       this result otherwise
+    */
+    public ProbeResult getFirst() { return this; }
+
+    /** Appends the result in the Prober.getLastProbe() format. */
+    public abstract void appendTo(StringBuilder sb);
+
+    /** @return the result in the Prober.getLastProbe() format */
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        appendTo(sb);
+        return sb.toString();
+    }
+
+    /** Keeps the non-zero times of rtt, in order. */
+    private static long[] answered(long[] rtt) {
+        int n = 0;
+        for (int i = 0; i < rtt.length; i++)
+            if (rtt[i] != 0)
+                n++;
+        long[] times = new long[n];
+        n = 0;
+        for (int i = 0; i < rtt.length; i++)
+            if (rtt[i] != 0)
+                times[n++] = rtt[i];
+        return times;
+    }
+
+    /**
+       An ICMP ping:
+
+       <p><tt>ICMP 132.204.24.179 5 5 4005ms 3.660ms 7.140ms 2.390ms 11.600ms 3.590ms</tt>
+    */
+    public static class Icmp extends ProbeResult {
+        private final InetAddress m_target;
+        private final int m_sent;
+        private final int m_received;
+        private final long m_total_ms;
+        private final long[] m_rtt;
+
+        /**
+           @param rtt round trip time of each echo request in
+           nanoseconds, 0 for lost requests
+        */
+        public Icmp(InetAddress target, int sent, int received, long total_ms, long[] rtt) {
+            m_target = target;
+            m_sent = sent;
+            m_received = received;
+            m_total_ms = total_ms;
+            m_rtt = rtt;
+        }
+
+        public String getProtocol() { return "ICMP"; }
+        public InetAddress getTarget() { return m_target; }
+        public int getSent() { return m_sent; }
+        public int getReceived() { return m_received; }
+        public long[] getRtts() { return answered(m_rtt); }
+
+        /** @return the time from the first request to the end, in milliseconds */
+        public long getTotalMs() { return m_total_ms; }
+
+        public void appendTo(StringBuilder sb) {
+            DecimalFormat format = new DecimalFormat("0.000");
+            sb.append("ICMP ").append(m_target.getHostAddress()).append(' ')
+                .append(m_sent).append(' ')
+                .append(m_received).append(' ')
+                .append(m_total_ms).append("ms");
+            for (int i = 0; i < m_rtt.length; i++) {
+                if (m_rtt[i] != 0)
+                    sb.append(' ').append(format.format(m_rtt[i] / 1.0e6)).append("ms");
+            }
+        }
+    }
+
+    /**
+       TCP connections to a port, one status per attempt:
+
+       <p><tt>TCP 132.204.24.179:80 5 3 1000 3.770ms !4.588ms *</tt>
+    */
+    public static class Tcp extends ProbeResult {
+        /** The connection was accepted */
+        public static final byte OK = 0;
+        /** The connection was refused (shown as "!") */
+        public static final byte REFUSED = 1;
+        /** The connection timed out (shown as "*") */
+        public static final byte TIMEOUT = 2;
+        /** Any other error (shown as "?") */
+        public static final byte ERROR = 3;
+
+        private static final String[] PREFIXES = {" ", " !", " *", " ?"};
+
+        private final InetAddress m_target;
+        private final int m_port;
+        private final int m_sent;
+        private final int m_received;
+        private final int m_timeout_ms;
+        private final byte[] m_status;
+        private final long[] m_rtt;
+
+        /**
+           @param sent the number of pings reported, getNumberOfPings()
+           @param received the number reported as answered
+           @param status the status of each attempt made
+           @param rtt the time of each attempt in nanoseconds (unused
+           for timeouts)
+        */
+        public Tcp(InetAddress target, int port, int sent, int received, int timeout_ms,
+                   byte[] status, long[] rtt) {
+            m_target = target;
+            m_port = port;
+            m_sent = sent;
+            m_received = received;
+            m_timeout_ms = timeout_ms;
+            m_status = status;
+            m_rtt = rtt;
+        }
+
+        public String getProtocol() { return "TCP"; }
+        public InetAddress getTarget() { return m_target; }
+        public int getPort() { return m_port; }
+        public int getSent() { return m_sent; }
+        public int getReceived() { return m_received; }
+
+        public int getTimeoutMs() { return m_timeout_ms; }
+
+        /** @return the status of each attempt made, OK, REFUSED, TIMEOUT or ERROR */
+        public byte[] getStatus() { return m_status; }
+
+        /** @return the time of each attempt made in nanoseconds, whatever its status */
+        public long[] getAttemptRtts() { return m_rtt; }
+
+        public long[] getRtts() {
+            long[] ok = new long[m_rtt.length];
+            for (int i = 0; i < m_rtt.length; i++)
+                if (m_status[i] == OK)
+                    ok[i] = Math.max(1, m_rtt[i]);
+            return answered(ok);
+        }
+
+        public void appendTo(StringBuilder sb) {
+            DecimalFormat format = new DecimalFormat("0.000");
+            sb.append("TCP ").append(m_target.getHostAddress()).append(':').append(m_port)
+                .append(' ').append(m_sent)
+                .append(' ').append(m_received)
+                .append(' ').append(m_timeout_ms);
+            for (int i = 0; i < m_status.length; i++) {
+                sb.append(PREFIXES[m_status[i]]);
+                if (m_status[i] != TIMEOUT)
+                    sb.append(format.format(m_rtt[i] / 1.0e6f)).append("ms");
+            }
+        }
+    }
+
+    /**
+       A traceroute. Only the hops where at least one probe was
+       answered are kept; for each, the address, time and flag
+       ("!N", "!H", ... or null) of each probe, null addresses and 0
+       times for the lost ones:
+
+       <p><tt>TROUTE 8.8.8.8 1 192.0.2.1 0.512ms * 0.430ms,2 21.4.17.199 9.810ms !N</tt>
+    */
+    public static class Trace extends ProbeResult {
+        private final InetAddress m_target;
+        private final int[] m_ttl;
+        private final InetAddress[][] m_from;
+        private final long[][] m_rtt;
+        private final String[][] m_flag;
+
+        /** The arrays are indexed by hop, then by probe. */
+        public Trace(InetAddress target, int[] ttl, InetAddress[][] from,
+                     long[][] rtt, String[][] flag) {
+            m_target = target;
+            m_ttl = ttl;
+            m_from = from;
+            m_rtt = rtt;
+            m_flag = flag;
+        }
+
+        public String getProtocol() { return "TROUTE"; }
+        public InetAddress getTarget() { return m_target; }
+
+        /** @return the number of hops that answered */
+        public int getNbHops() { return m_ttl.length; }
+        public int getTtl(int hop) { return m_ttl[hop]; }
+        public InetAddress[] getFrom(int hop) { return m_from[hop]; }
+        public long[] getRtts(int hop) { return m_rtt[hop]; }
+        public String[] getFlags(int hop) { return m_flag[hop]; }
+
+        /**
+           Appends the hops as TraceRouter does with traceroute's output:
+           "hop ip time [ip] time ...", hops separated by ',', "TIMEOUT"
+           if none answered.
+        */
+        public void appendTo(StringBuilder sb) {
+            sb.append("TROUTE ").append(m_target.getHostAddress()).append(' ');
+            if (m_ttl.length == 0) {
+                sb.append("TIMEOUT");
+                return;
+            }
+            DecimalFormat format = new DecimalFormat("0.000");
+            for (int h = 0; h < m_ttl.length; h++) {
+                if (h > 0)
+                    sb.append(',');
+                sb.append(m_ttl[h]);
+                InetAddress last_from = null;
+                for (int q = 0; q < m_rtt[h].length; q++) {
+                    if (m_rtt[h][q] == 0) {
+                        sb.append(" *");
+                        continue;
+                    }
+                    if (!m_from[h][q].equals(last_from)) {
+                        sb.append(' ').append(m_from[h][q].getHostAddress());
+                        last_from = m_from[h][q];
+                    }
+                    sb.append(' ').append(format.format(m_rtt[h][q] / 1.0e6)).append("ms");
+                    if (m_flag[h][q] != null)
+                        sb.append(' ').append(m_flag[h][q]);
+                }
+            }
+        }
+    }
+
+    /**
+       The results of several methods on one address, separated by
+       "; " (see CompositeProber).
+    */
+    public static class Composite extends ProbeResult {
+        private final ProbeResult[] m_parts;
+
+        public Composite(ProbeResult[] parts) {
+            m_parts = parts;
+        }
+
+        public String getProtocol() { return getFirst().getProtocol(); }
+        public InetAddress getTarget() { return getFirst().getTarget(); }
+        public int getSent() { return getFirst().getSent(); }
+        public int getReceived() { return getFirst().getReceived(); }
+        public long[] getRtts() { return getFirst().getRtts(); }
+
+        public ProbeResult getFirst() {
+            return (m_parts.length == 0) ? EMPTY : m_parts[0].getFirst();
+        }
+
+        public ProbeResult[] getParts() { return m_parts; }
+
+        public void appendTo(StringBuilder sb) {
+            for (int i = 0; i < m_parts.length; i++) {
+                if (i > 0)
+                    sb.append("; ");
+                m_parts[i].appendTo(sb);
+            }
+        }
+    }
+
+    /**
+       A result that is already text: the output of the external
+       commands, as summarized by IcmpPinger, TcpPinger and
+       TraceRouter. The counts and times are parsed from the text (up
+       to the first ';') when asked for.
+    */
+    public static class Text extends ProbeResult {
+        private final String m_text;
+        private String[] m_fields = null;
+
+        public Text(String text) {
+            m_text = (text == null) ? "" : text;
+        }
+
+        /** @return the words of the text up to the first ';' */
+        private synchronized String[] fields() {
+            if (m_fields == null)
+                m_fields = m_text.split(";", 2)[0].split(" ");
+            return m_fields;
+        }
+
+        public String getProtocol() { return fields()[0]; }
+
+        private int getInt(int i) {
+            String[] f = fields();
+            try {
+                return (f.length > i) ? Integer.parseInt(f[i]) : -1;
+            }
+            catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        public int getSent() { return getInt(2); }
+        public int getReceived() { return getInt(3); }
+
+        /** The ICMP and TCP times, "3.660ms", after the counts and total or timeout */
+        public long[] getRtts() {
+            String[] f = fields();
+            if (f.length <= 5 || f[0].equals("TROUTE"))
+                return NO_TIMES;
+            long[] rtt = new long[f.length - 5];
+            for (int i = 5; i < f.length; i++) {
+                if (!f[i].endsWith("ms"))
+                    continue;
+                try {
+                    rtt[i - 5] = Math.max(1, (long)(Double.parseDouble(
+                        f[i].substring(0, f[i].length() - 2)) * 1.0e6));
+                }
+                catch (NumberFormatException e) {
+                    // "!4.588ms", "?ms": not an answer.
+                }
+            }
+            return answered(rtt);
+        }
+
+        public void appendTo(StringBuilder sb) { sb.append(m_text); }
+
+        public String toString() { return m_text; }
+    }
+}
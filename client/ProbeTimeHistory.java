@@ -0,0 +1,95 @@
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+   How long the probes of the destinations of each prefix (/24 in IPv4,
+   /48 in IPv6) took lately, to predict how long the next probe of a
+   destination will take.
+
+   <p>The time of a probe is what the RTT, the losses and the timeouts
+   of the traceroute of its destination add up to, so it is the time
+   itself that is kept: an average in which the last probe weighs a
+   quarter, as a prefix often has several destinations in a Pings.
+   Destinations of unknown prefixes get the average of all the
+   probes. The table is bounded: the prefixes not probed for the
+   longest time are forgotten first.
+
+   <p>Thread-safe.
+*/
+public class ProbeTimeHistory {
+    /** The number of prefixes kept by default, about 5 MB */
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    /** The weight of a new time in the averages */
+    private static final float WEIGHT = 0.25f;
+
+    private final LinkedHashMap<Long, Float> m_times;
+    private float m_default_ms = 0;
+
+    public ProbeTimeHistory() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ProbeTimeHistory(final int capacity) {
+        m_times = new LinkedHashMap<Long, Float>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Long, Float> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /** @return the prefix of addr, tagged with its family */
+    static Long prefix(InetAddress addr) {
+        byte[] b = addr.getAddress();
+        int length = (addr instanceof Inet4Address) ? 3 : 6;
+        long key = (length == 3) ? 4 : 6;
+        for (int i = 0; i < length; i++)
+            key = (key << 8) | (b[i] & 0xff);
+        return Long.valueOf(key);
+    }
+
+    /** Adds the time a probe of addr took, in milliseconds. */
+    public synchronized void record(InetAddress addr, float time_ms) {
+        Long key = prefix(addr);
+        Float last = m_times.get(key);
+        m_times.put(key, (last == null) ? time_ms :
+                    WEIGHT * time_ms + (1 - WEIGHT) * last.floatValue());
+        m_default_ms = (m_default_ms == 0) ? time_ms :
+            WEIGHT * time_ms + (1 - WEIGHT) * m_default_ms;
+    }
+
+    /** @return the time a probe of addr should take, in milliseconds, 0 if nothing is known */
+    public synchronized float predict(InetAddress addr) {
+        Float time = m_times.get(prefix(addr));
+        return (time == null) ? m_default_ms : time.floatValue();
+    }
+
+    /** @return the number of prefixes known */
+    public synchronized int size() {
+        return m_times.size();
+    }
+
+    /**
+       Predicts how long the probes of a batch will take, when workers
+       probe them in the given order, each taking the next one as it is
+       free.
+
+       @param times the predicted time of each probe, in milliseconds
+       @param order the indexes of times, in the order they are probed
+    */
+    public static float makespan(float[] times, int[] order, int workers) {
+        PriorityQueue<Float> free_at = new PriorityQueue<Float>();
+        for (int w = 0; w < Math.min(workers, times.length); w++)
+            free_at.add(Float.valueOf(0));
+        float makespan = 0;
+        for (int i : order) {
+            float end = free_at.poll().floatValue() + times[i];
+            makespan = Math.max(makespan, end);
+            free_at.add(Float.valueOf(end));
+        }
+        return makespan;
+    }
+}
@@ -21,6 +21,15 @@ public interface Prober {
     */
     public String getLastProbe();
 
+    /**
+       Returns the last collected times as a ProbeResult, which keeps
+       the counts and times as numbers. Its toString() is
+       getLastProbe().
+
+       @return The last collected result, ProbeResult.EMPTY if none
+    */
+    public ProbeResult getLastResult();
+
     /**
        Clears the last collected times
     */
@@ -0,0 +1,479 @@
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+   The binary format of a submission of results, a compact alternative
+   to the text of Prober.getLastProbe() in JSON. ServerProxy sends it
+   when the server advertised it (RESULTS_FORMAT_HEADER); the server
+   decodes it back to the text (pings/results_codec.py), so what it
+   stores does not change.
+
+   <p>A submission is the magic "PR" and VERSION, the fields of the
+   request (token, userid, ...) as pairs of strings, then the results
+   as records. Integers are varints (7 bits a byte, low bits first),
+   signed ones zigzag-coded. Each record starts with its type:
+   <ul>
+   <li>NULL: no result;</li>
+   <li>TEXT: a string, for the results of the external commands and
+   the first entries of the list (client address, interface, OS);</li>
+   <li>ICMP: target, sent, received, total ms, then the times of the
+   answered requests;</li>
+   <li>TCP: target, port, sent, received, timeout ms, then per attempt
+   the time and status in one varint;</li>
+   <li>TROUTE: target, then per hop the TTL and per probe whether it was
+   answered, from the same address as the one before or a new one, and
+   with a flag, then the time;</li>
+   <li>COMPOSITE: the number of parts, then the parts.</li>
+   </ul>
+   The times are in microseconds, as rounded by the text, each coded as
+   the difference with the time before in the record. Addresses are
+   coded once per submission: the first time as 0, the length and the
+   bytes, then as their index plus 1. Strings are their length plus 1
+   and their UTF-8 bytes, 0 for null.
+
+   <p>Decoding gives results whose text is the text of the results
+   encoded (see ResultCodecBenchmark). The scope of IPv6 addresses is
+   not kept.
+
+   <p><tt>java ResultCodec file...</tt> prints the fields and the text of
+   the results of submissions saved to files.
+*/
+public class ResultCodec {
+    /** The header of the request to /get_pings and its answer that agree on the format */
+    public static final String RESULTS_FORMAT_HEADER = "X-Pings-Results-Format";
+    /** The value of RESULTS_FORMAT_HEADER for this format */
+    public static final String FORMAT = "pr1";
+    /** The Content-Type of a submission in this format */
+    public static final String CONTENT_TYPE = "application/x-pings-results";
+
+    public static final int VERSION = 1;
+
+    /** Record types */
+    public static final int NULL = 0;
+    public static final int TEXT = 1;
+    public static final int ICMP = 2;
+    public static final int TCP = 3;
+    public static final int TROUTE = 4;
+    public static final int COMPOSITE = 5;
+
+    /** TROUTE probe kinds, plus FLAGGED when a flag follows */
+    private static final int LOST = 0;
+    private static final int SAME_FROM = 1;
+    private static final int NEW_FROM = 2;
+    private static final int FLAGGED = 4;
+
+    private static final String CHARSET = "UTF-8";
+
+    /** Writes a submission to a stream; not thread safe. */
+    public static class Encoder {
+        private final OutputStream m_out;
+        private final Map<InetAddress, Integer> m_addresses = new HashMap<InetAddress, Integer>();
+        private final DecimalFormat m_format = new DecimalFormat("0.000");
+        private long m_last_us;
+
+        /** Writes the header and the fields of the request. */
+        public Encoder(OutputStream out, Map<String, String> fields) throws IOException {
+            m_out = out;
+            m_out.write('P');
+            m_out.write('R');
+            m_out.write(VERSION);
+            writeVarint(fields.size());
+            for (Map.Entry<String, String> f : fields.entrySet()) {
+                writeString(f.getKey());
+                writeString(f.getValue());
+            }
+        }
+
+        /** Starts the list of results, of count entries. */
+        public void startResults(int count) throws IOException {
+            writeVarint(count);
+        }
+
+        /** Writes a string entry of the list of results, null included. */
+        public void writeText(String text) throws IOException {
+            if (text == null) {
+                m_out.write(NULL);
+                return;
+            }
+            m_out.write(TEXT);
+            writeString(text);
+        }
+
+        /** Writes a result, null included. */
+        public void write(ProbeResult r) throws IOException {
+            m_last_us = 0;
+            if (r == null)
+                m_out.write(NULL);
+            else if (r instanceof ProbeResult.Icmp)
+                writeIcmp((ProbeResult.Icmp)r);
+            else if (r instanceof ProbeResult.Tcp)
+                writeTcp((ProbeResult.Tcp)r);
+            else if (r instanceof ProbeResult.Trace)
+                writeTrace((ProbeResult.Trace)r);
+            else if (r instanceof ProbeResult.Composite) {
+                ProbeResult[] parts = ((ProbeResult.Composite)r).getParts();
+                m_out.write(COMPOSITE);
+                writeVarint(parts.length);
+                for (ProbeResult part : parts)
+                    write(part);
+            }
+            else
+                writeText(r.toString());
+        }
+
+        private void writeIcmp(ProbeResult.Icmp r) throws IOException {
+            m_out.write(ICMP);
+            writeAddress(r.getTarget());
+            writeSigned(r.getSent());
+            writeSigned(r.getReceived());
+            writeSigned(r.getTotalMs());
+            long[] rtt = r.getRtts();
+            writeVarint(rtt.length);
+            for (long ns : rtt)
+                writeTime(micros(ns));
+        }
+
+        private void writeTcp(ProbeResult.Tcp r) throws IOException {
+            m_out.write(TCP);
+            writeAddress(r.getTarget());
+            writeVarint(r.getPort());
+            writeSigned(r.getSent());
+            writeSigned(r.getReceived());
+            writeSigned(r.getTimeoutMs());
+            byte[] status = r.getStatus();
+            long[] rtt = r.getAttemptRtts();
+            writeVarint(status.length);
+            for (int i = 0; i < status.length; i++) {
+                long delta = 0;
+                if (status[i] != ProbeResult.Tcp.TIMEOUT) {
+                    long us = microsOfFloat(rtt[i]);
+                    delta = us - m_last_us;
+                    m_last_us = us;
+                }
+                writeVarint(zigzag(delta) << 2 | status[i]);
+            }
+        }
+
+        private void writeTrace(ProbeResult.Trace r) throws IOException {
+            m_out.write(TROUTE);
+            writeAddress(r.getTarget());
+            writeVarint(r.getNbHops());
+            for (int h = 0; h < r.getNbHops(); h++) {
+                InetAddress[] from = r.getFrom(h);
+                long[] rtt = r.getRtts(h);
+                String[] flag = r.getFlags(h);
+                writeVarint(r.getTtl(h));
+                writeVarint(rtt.length);
+                InetAddress last_from = null;
+                for (int q = 0; q < rtt.length; q++) {
+                    if (rtt[q] == 0 || from[q] == null) {
+                        m_out.write(LOST);
+                        continue;
+                    }
+                    int kind = from[q].equals(last_from) ? SAME_FROM : NEW_FROM;
+                    m_out.write(kind | (flag[q] != null ? FLAGGED : 0));
+                    if (kind == NEW_FROM)
+                        writeAddress(from[q]);
+                    if (flag[q] != null)
+                        writeString(flag[q]);
+                    writeTime(micros(rtt[q]));
+                    last_from = from[q];
+                }
+            }
+        }
+
+        /**
+           @return rtt_ns in microseconds as the text shows it, with
+           DecimalFormat("0.000") of the time in ms as a double
+        */
+        private long micros(long rtt_ns) {
+            long us = rtt_ns / 1000;
+            long rest = rtt_ns % 1000;
+            // Only the ties depend on how DecimalFormat rounds
+            if (rest != 500)
+                return (rest > 500) ? us + 1 : us;
+            return parseMicros(m_format.format(rtt_ns / 1.0e6));
+        }
+
+        /** @return rtt_ns in microseconds as the text of ProbeResult.Tcp shows it, of a float */
+        private long microsOfFloat(long rtt_ns) {
+            return parseMicros(m_format.format(rtt_ns / 1.0e6f));
+        }
+
+        /** @return the microseconds of a time in ms with 3 decimals, whatever the separator */
+        private long parseMicros(String ms) {
+            long us = 0;
+            for (int i = 0; i < ms.length(); i++) {
+                char c = ms.charAt(i);
+                if (c >= '0' && c <= '9')
+                    us = 10 * us + (c - '0');
+            }
+            return us;
+        }
+
+        private void writeTime(long us) throws IOException {
+            writeSigned(us - m_last_us);
+            m_last_us = us;
+        }
+
+        private void writeAddress(InetAddress address) throws IOException {
+            Integer index = m_addresses.get(address);
+            if (index != null) {
+                writeVarint(index.intValue() + 1);
+                return;
+            }
+            m_addresses.put(address, Integer.valueOf(m_addresses.size()));
+            byte[] bytes = address.getAddress();
+            m_out.write(0);
+            m_out.write(bytes.length);
+            m_out.write(bytes);
+        }
+
+        private void writeString(String s) throws IOException {
+            if (s == null) {
+                m_out.write(0);
+                return;
+            }
+            byte[] bytes = s.getBytes(CHARSET);
+            writeVarint(bytes.length + 1);
+            m_out.write(bytes);
+        }
+
+        private void writeSigned(long n) throws IOException {
+            writeVarint(zigzag(n));
+        }
+
+        private void writeVarint(long n) throws IOException {
+            while ((n & ~0x7fL) != 0) {
+                m_out.write((int)(n & 0x7f) | 0x80);
+                n >>>= 7;
+            }
+            m_out.write((int)n);
+        }
+    }
+
+    /** A decoded submission */
+    public static class Submission {
+        /** The fields of the request, in their order */
+        public final Map<String, String> fields = new LinkedHashMap<String, String>();
+        /** The entries of the list of results: String, ProbeResult or null */
+        public final List<Object> results = new ArrayList<Object>();
+    }
+
+    /** Reads a submission, from the magic to its last result. */
+    public static Submission decode(InputStream in) throws IOException {
+        return new Decoder(in).read();
+    }
+
+    private static class Decoder {
+        private final InputStream m_in;
+        private final List<InetAddress> m_addresses = new ArrayList<InetAddress>();
+        private long m_last_us;
+
+        Decoder(InputStream in) {
+            m_in = in;
+        }
+
+        Submission read() throws IOException {
+            if (readByte() != 'P' || readByte() != 'R')
+                throw new IOException("Not a submission of results");
+            int version = readByte();
+            if (version != VERSION)
+                throw new IOException("Unknown results format version " + version);
+            Submission s = new Submission();
+            for (int n = readCount(); n > 0; n--) {
+                String key = readString();
+                s.fields.put(key, readString());
+            }
+            for (int n = readCount(); n > 0; n--) {
+                int type = readByte();
+                if (type == TEXT)
+                    s.results.add(readString());
+                else
+                    s.results.add(readRecord(type));
+            }
+            return s;
+        }
+
+        private ProbeResult readRecord(int type) throws IOException {
+            m_last_us = 0;
+            switch (type) {
+            case NULL:
+                return null;
+            case TEXT:
+                return new ProbeResult.Text(readString());
+            case ICMP: {
+                InetAddress target = readAddress();
+                int sent = (int)readSigned();
+                int received = (int)readSigned();
+                long total_ms = readSigned();
+                long[] rtt = new long[readCount()];
+                for (int i = 0; i < rtt.length; i++)
+                    rtt[i] = nanos(readTime());
+                return new ProbeResult.Icmp(target, sent, received, total_ms, rtt);
+            }
+            case TCP: {
+                InetAddress target = readAddress();
+                int port = (int)readVarint();
+                int sent = (int)readSigned();
+                int received = (int)readSigned();
+                int timeout_ms = (int)readSigned();
+                int n = readCount();
+                byte[] status = new byte[n];
+                long[] rtt = new long[n];
+                for (int i = 0; i < n; i++) {
+                    long v = readVarint();
+                    status[i] = (byte)(v & 3);
+                    if (status[i] != ProbeResult.Tcp.TIMEOUT) {
+                        m_last_us += unzigzag(v >>> 2);
+                        rtt[i] = m_last_us * 1000;
+                    }
+                }
+                return new ProbeResult.Tcp(target, port, sent, received, timeout_ms, status, rtt);
+            }
+            case TROUTE: {
+                InetAddress target = readAddress();
+                int hops = readCount();
+                int[] ttl = new int[hops];
+                InetAddress[][] from = new InetAddress[hops][];
+                long[][] rtt = new long[hops][];
+                String[][] flag = new String[hops][];
+                for (int h = 0; h < hops; h++) {
+                    ttl[h] = (int)readVarint();
+                    int probes = readCount();
+                    from[h] = new InetAddress[probes];
+                    rtt[h] = new long[probes];
+                    flag[h] = new String[probes];
+                    InetAddress last_from = null;
+                    for (int q = 0; q < probes; q++) {
+                        int kind = readByte();
+                        if ((kind & 3) == LOST)
+                            continue;
+                        if ((kind & 3) == NEW_FROM)
+                            last_from = readAddress();
+                        from[h][q] = last_from;
+                        if ((kind & FLAGGED) != 0)
+                            flag[h][q] = readString();
+                        rtt[h][q] = nanos(readTime());
+                    }
+                }
+                return new ProbeResult.Trace(target, ttl, from, rtt, flag);
+            }
+            case COMPOSITE: {
+                ProbeResult[] parts = new ProbeResult[readCount()];
+                for (int i = 0; i < parts.length; i++)
+                    parts[i] = readRecord(readByte());
+                return new ProbeResult.Composite(parts);
+            }
+            default:
+                throw new IOException("Unknown result record type " + type);
+            }
+        }
+
+        private long readTime() throws IOException {
+            m_last_us += readSigned();
+            return m_last_us;
+        }
+
+        /** @return us in ns, at least 1 as 0 is a lost probe ("0.000ms" is not) */
+        private static long nanos(long us) {
+            return Math.max(1, us * 1000);
+        }
+
+        private InetAddress readAddress() throws IOException {
+            int index = readCount();
+            if (index > 0) {
+                if (index > m_addresses.size())
+                    throw new IOException("Unknown address index " + index);
+                return m_addresses.get(index - 1);
+            }
+            byte[] bytes = new byte[readByte()];
+            readFully(bytes);
+            InetAddress address = InetAddress.getByAddress(bytes);
+            m_addresses.add(address);
+            return address;
+        }
+
+        private String readString() throws IOException {
+            int n = readCount();
+            if (n == 0)
+                return null;
+            byte[] bytes = new byte[n - 1];
+            readFully(bytes);
+            return new String(bytes, CHARSET);
+        }
+
+        private void readFully(byte[] bytes) throws IOException {
+            int done = 0;
+            while (done < bytes.length) {
+                int n = m_in.read(bytes, done, bytes.length - done);
+                if (n < 0)
+                    throw new EOFException("Truncated submission of results");
+                done += n;
+            }
+        }
+
+        private int readByte() throws IOException {
+            int b = m_in.read();
+            if (b < 0)
+                throw new EOFException("Truncated submission of results");
+            return b;
+        }
+
+        /** A varint that counts things, so fits an int */
+        private int readCount() throws IOException {
+            long n = readVarint();
+            if (n > Integer.MAX_VALUE)
+                throw new IOException("Bad count in submission of results: " + n);
+            return (int)n;
+        }
+
+        private long readSigned() throws IOException {
+            return unzigzag(readVarint());
+        }
+
+        private long readVarint() throws IOException {
+            long n = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                n |= (long)(b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    return n;
+            }
+            throw new IOException("Varint too long in submission of results");
+        }
+    }
+
+    private static long zigzag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    private static long unzigzag(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    public static void main(String args[]) throws IOException {
+        for (String name : args) {
+            InputStream in = new FileInputStream(name);
+            try {
+                Submission s = decode(in);
+                System.out.println(name + ": " + s.fields);
+                for (Object r : s.results)
+                    System.out.println(r);
+            }
+            finally {
+                in.close();
+            }
+        }
+    }
+}
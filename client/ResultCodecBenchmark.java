@@ -0,0 +1,294 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.simple.JSONValue;
+
+/**
+   Checks that ResultCodec gives back results of the same text as the
+   ones it encoded, on random results of every type (times rounded both
+   ways, ties, under a microsecond; IPv6; flags; lost probes), then
+   compares the size of a submission as text in JSON and in the binary
+   format, gzipped or not, and times both encodings.
+
+   <p>Not part of the client. Run with "make bench" or
+   <tt>java ResultCodecBenchmark [passes]</tt>; exits with 1 if a text
+   differs.
+
+   <p><tt>java ResultCodecBenchmark --fixture prefix</tt> writes instead
+   a submission of FIXTURE_RESULTS results to prefix.pr1 and its text
+   form, as the JSON of a text submission, to prefix.json: the server
+   checks its decoder against them (server/pings/test_results_codec.py).
+*/
+public class ResultCodecBenchmark {
+    private static final int RESULTS = 500;
+    private static final int FIXTURE_RESULTS = 80;
+    private static final String[] FLAGS = {"!N", "!H", "!X", "!<10>"};
+    private static final Random s_random = new Random(42);
+
+    private static InetAddress address(int bits) throws IOException {
+        byte[] bytes = new byte[(s_random.nextInt(10) == 0) ? 16 : 4];
+        s_random.nextBytes(bytes);
+        if (bits > 0 && bytes.length == 4)
+            bytes[3] = (byte)(bytes[3] & ((1 << bits) - 1));
+        return InetAddress.getByAddress(bytes);
+    }
+
+    /** @return a time in ns: some with sub-microsecond parts, some ties, some under 1us */
+    private static long rtt() {
+        long ns = 1 + (long)(s_random.nextDouble() * s_random.nextDouble() * 900e6);
+        switch (s_random.nextInt(8)) {
+        case 0:
+            return ns / 1000 * 1000 + 500;
+        case 1:
+            return 1 + s_random.nextInt(999);
+        default:
+            return ns;
+        }
+    }
+
+    private static ProbeResult icmp() throws IOException {
+        int sent = 1 + s_random.nextInt(10);
+        long[] rtt = new long[sent];
+        int received = 0;
+        for (int i = 0; i < sent; i++)
+            if (s_random.nextInt(4) != 0) {
+                rtt[i] = rtt();
+                received++;
+            }
+        return new ProbeResult.Icmp(address(0), sent, received, 1000 * sent + s_random.nextInt(20), rtt);
+    }
+
+    private static ProbeResult tcp() throws IOException {
+        int attempts = 1 + s_random.nextInt(5);
+        byte[] status = new byte[attempts];
+        long[] rtt = new long[attempts];
+        int received = 0;
+        for (int i = 0; i < attempts; i++) {
+            status[i] = (byte)s_random.nextInt(4);
+            if (status[i] == ProbeResult.Tcp.OK)
+                received++;
+            rtt[i] = (status[i] == ProbeResult.Tcp.TIMEOUT) ? 0 : rtt() % 2000000000L;
+        }
+        return new ProbeResult.Tcp(address(0), (s_random.nextInt(2) == 0) ? 80 : 443,
+                                   attempts, received, 2000, status, rtt);
+    }
+
+    private static ProbeResult trace() throws IOException {
+        int hops = s_random.nextInt(20);
+        int[] ttl = new int[hops];
+        InetAddress[][] from = new InetAddress[hops][];
+        long[][] rtt = new long[hops][];
+        String[][] flag = new String[hops][];
+        for (int h = 0; h < hops; h++) {
+            ttl[h] = h + 1 + s_random.nextInt(2);
+            from[h] = new InetAddress[3];
+            rtt[h] = new long[3];
+            flag[h] = new String[3];
+            // The first hops are the same few routers
+            InetAddress router = address((h < 4) ? 2 : 0);
+            for (int q = 0; q < 3; q++) {
+                if (s_random.nextInt(6) == 0)
+                    continue;
+                from[h][q] = (s_random.nextInt(5) == 0) ? address(0) : router;
+                rtt[h][q] = rtt();
+                if (s_random.nextInt(20) == 0)
+                    flag[h][q] = FLAGS[s_random.nextInt(FLAGS.length)];
+            }
+        }
+        return new ProbeResult.Trace(address(0), ttl, from, rtt, flag);
+    }
+
+    private static ProbeResult result() throws IOException {
+        switch (s_random.nextInt(10)) {
+        case 0:
+            return null;
+        case 1:
+            return new ProbeResult.Text("ICMP 10.0.0.1 5 5 4005ms 3.660ms 7.140ms \"é\"");
+        case 2:
+            return tcp();
+        case 3:
+        case 4:
+            return trace();
+        case 5:
+        case 6:
+            return new ProbeResult.Composite(new ProbeResult[] {icmp(), tcp(), trace()});
+        default:
+            return icmp();
+        }
+    }
+
+    /** Writes a submission as ServerProxy does, in JSON */
+    private static void writeJson(Map<String, String> fields, String[] header, ProbeResult[] results,
+                                  Writer writer) throws IOException {
+        writer.write('{');
+        for (Map.Entry<String, String> e : fields.entrySet()) {
+            writer.write(JSONValue.toJSONString(e.getKey()));
+            writer.write(':');
+            writer.write(JSONValue.toJSONString(e.getValue()));
+            writer.write(',');
+        }
+        writer.write("\"results\":[");
+        for (int i = 0; i < header.length; i++) {
+            if (i > 0)
+                writer.write(',');
+            writer.write(JSONValue.toJSONString(header[i]));
+        }
+        StringBuilder sb = new StringBuilder();
+        for (ProbeResult r : results) {
+            writer.write(',');
+            if (r == null) {
+                writer.write("null");
+                continue;
+            }
+            sb.setLength(0);
+            r.appendTo(sb);
+            writer.write('"');
+            writer.write(JSONValue.escape(sb.toString()));
+            writer.write('"');
+        }
+        writer.write("]}");
+        writer.flush();
+    }
+
+    private static byte[] json(Map<String, String> fields, String[] header, ProbeResult[] results)
+        throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeJson(fields, header, results, new OutputStreamWriter(out, "UTF-8"));
+        return out.toByteArray();
+    }
+
+    private static byte[] binary(Map<String, String> fields, String[] header, ProbeResult[] results)
+        throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ResultCodec.Encoder encoder = new ResultCodec.Encoder(out, fields);
+        encoder.startResults(header.length + results.length);
+        for (String h : header)
+            encoder.writeText(h);
+        for (ProbeResult r : results)
+            encoder.write(r);
+        return out.toByteArray();
+    }
+
+    private static int gzipped(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(bytes);
+        gzip.close();
+        return out.size();
+    }
+
+    /** Writes the fixture of the server's test of its decoder */
+    @SuppressWarnings("unchecked")
+    private static void writeFixture(Map<String, String> fields, String[] header, String prefix)
+        throws IOException {
+        ProbeResult[] results = new ProbeResult[FIXTURE_RESULTS];
+        for (int i = 0; i < FIXTURE_RESULTS; i++)
+            results[i] = result();
+        FileOutputStream out = new FileOutputStream(prefix + ".pr1");
+        try {
+            out.write(binary(fields, header, results));
+        }
+        finally {
+            out.close();
+        }
+
+        Map<String, Object> text = new LinkedHashMap<String, Object>(fields);
+        List<String> texts = new ArrayList<String>();
+        for (String h : header)
+            texts.add(h);
+        for (ProbeResult r : results)
+            texts.add((r == null) ? null : r.toString());
+        text.put("results", texts);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(prefix + ".json"), "UTF-8");
+        try {
+            writer.write(JSONValue.toJSONString(text));
+            writer.write('\n');
+        }
+        finally {
+            writer.close();
+        }
+        System.out.println("Wrote " + prefix + ".pr1 and " + prefix + ".json");
+    }
+
+    public static void main(String args[]) throws IOException {
+        boolean fixture = args.length == 2 && args[0].equals("--fixture");
+        int passes = (args.length > 0 && !fixture) ? Integer.parseInt(args[0]) : 200;
+        Map<String, String> fields = new LinkedHashMap<String, String>();
+        fields.put("token", "6f1c2a");
+        fields.put("userid", "yoda");
+        fields.put("uuid", "e3a1d2c4-5b6f-4a7e-8c9d-0e1f2a3b4c5d");
+        fields.put("part", null);
+        String[] header = {"192.0.2.2", null, "OS=Linux"};
+        if (fixture) {
+            writeFixture(fields, header, args[1]);
+            return;
+        }
+        ProbeResult[] results = new ProbeResult[RESULTS];
+        for (int i = 0; i < RESULTS; i++)
+            results[i] = result();
+
+        byte[] binary = binary(fields, header, results);
+        ResultCodec.Submission s = ResultCodec.decode(new ByteArrayInputStream(binary));
+        int differences = 0;
+        if (!s.fields.equals(fields)) {
+            System.out.println("DIFFERENT FIELDS " + s.fields);
+            differences++;
+        }
+        for (int i = 0; i < header.length + results.length; i++) {
+            String expected = (i < header.length) ? header[i] :
+                (results[i - header.length] == null) ? null : results[i - header.length].toString();
+            Object decoded = (i < s.results.size()) ? s.results.get(i) : "(missing)";
+            String actual = (decoded == null) ? null : decoded.toString();
+            if ((expected == null) ? (actual != null) : !expected.equals(actual)) {
+                System.out.println("DIFFERENT TEXT for entry " + i +
+                                   "\n  text:   " + expected + "\n  binary: " + actual);
+                differences++;
+            }
+        }
+        if (s.results.size() != header.length + results.length) {
+            System.out.println("DIFFERENT NUMBER of entries: " + s.results.size());
+            differences++;
+        }
+        System.out.println(results.length + " results, " + differences + " different texts");
+        if (differences != 0)
+            System.exit(1);
+
+        byte[] json = json(fields, header, results);
+        System.out.println("size    text " + json.length + "B, binary " + binary.length + "B (" +
+                           100 * binary.length / json.length + "%)");
+        int json_gz = gzipped(json);
+        int binary_gz = gzipped(binary);
+        System.out.println("gzipped text " + json_gz + "B, binary " + binary_gz + "B (" +
+                           100 * binary_gz / json_gz + "%)");
+
+        for (int warm_up = 0; warm_up < 2; warm_up++) {
+            int n = (warm_up == 0) ? passes / 10 + 1 : passes;
+            long begin = System.nanoTime();
+            for (int i = 0; i < n; i++)
+                json(fields, header, results);
+            long json_ns = (System.nanoTime() - begin) / n;
+            begin = System.nanoTime();
+            for (int i = 0; i < n; i++)
+                binary(fields, header, results);
+            long binary_ns = (System.nanoTime() - begin) / n;
+            begin = System.nanoTime();
+            for (int i = 0; i < n; i++)
+                ResultCodec.decode(new ByteArrayInputStream(binary));
+            long decode_ns = (System.nanoTime() - begin) / n;
+            if (warm_up == 1)
+                System.out.println("encode  text " + json_ns / 1000 + "us, binary " + binary_ns / 1000 +
+                                   "us; decode binary " + decode_ns / 1000 + "us");
+        }
+    }
+}
@@ -1,19 +1,29 @@
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.InetAddress;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.ArrayList;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.json.simple.JSONValue;
-import org.json.simple.JSONObject;
-import org.json.simple.JSONArray;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
 
 /** Interface to the Pings server. Allows retrieving a list
  *  of addresses to ping (together with their geoip information),
@@ -22,31 +32,100 @@ import org.json.simple.JSONArray;
  *  All connection problems are throws as subclasses of IOException
  *  and must be handled by the caller.
  *
+ *  The requests are written to the connection as they are serialized
+ *  and the answers parsed as they are read, without a copy of the
+ *  whole JSON text. Content-Encoding is negotiated: the answers come
+ *  gzipped if the server wants, and the results are sent gzipped once
+ *  an answer of the server said it accepts it (an Accept-Encoding
+ *  header, RFC 7694), uncompressed again if it refuses them (415).
+ *
  *  @author Christian Hudon <chrish@pianocktail.org>
  */
 public class ServerProxy {
-	
-	/** Timeouts in milliseconds*/
-	private int connection_timeout = 10000;
-	private int socket_operation_timeout = 10000;
+    /// Logging
+    private final static Logger LOGGER = Logger.getLogger(ServerProxy.class.getName());
+
+    /** Default deadline of a request, connection included, in milliseconds */
+    public static final long DEFAULT_REQUEST_TIMEOUT = 20000;
+
+    /** Default number of requests to the server at once */
+    public static final int DEFAULT_CONNECTIONS = 4;
+
+    /** Deadline of a request in milliseconds */
+    private volatile long request_timeout = DEFAULT_REQUEST_TIMEOUT;
+
+    /** Sends the requests */
+    private volatile ServerTransport m_transport;
+
+    /** False to neither ask for nor send compressed bodies */
+    private volatile boolean m_compression = true;
+    /** True once the server said it accepts gzip request bodies */
+    private volatile boolean m_server_gzip = false;
+    /** True to submit the results in the format of ResultCodec, if the server has it */
+    private volatile boolean m_binary_results = false;
+    /** True once the server said it accepts results in the format of ResultCodec */
+    private volatile boolean m_server_binary = false;
+    /** True if the server said it has /exchange */
+    private volatile boolean m_exchange = false;
+
+    /** Most results arrays kept by recycle() */
+    private static final int MAX_FREE_RESULTS = 4;
+    /** The results arrays of the Pings given back, cleared, to reuse */
+    private final ArrayDeque<ProbeResult[]> m_free_results = new ArrayDeque<ProbeResult[]>();
 
     /** Container class for the Pings data. Obtained from getPings().
         To use, fill in the results array with the corresponding Prober
         results for each address, and give to submitResults() method
-        of ServerProxy. */
+        of ServerProxy, which sends them as text. The addresses and their
+        geoip information are packed in columns; getAddress() makes the
+        InetAddress of an address on its first call, getGeoipInfo() a new
+        GeoipInfo on each call. */
     public static class Pings {
-        public InetAddress[] addresses;
-        public GeoipInfo[] geoip_info;
-        public String[] results;
+        public PingsColumns columns;
+        public ProbeResult[] results;
         public String token;
 	public long time_fetched;
 	public long min_round_time;
+	/** The ProbePlan the server wants used, null for the client's own */
+	public String probe_plan;
+	/** null when all the results are submitted at once, else "first"
+	    for the results done at the straggler cutoff and "rest" for
+	    the others, submitted later under the same token (null results
+	    are in the other part) */
+	public String part;
+
+        /** @return the number of addresses */
+        public int size() {
+            return columns.size();
+        }
+
+        /** @return the address of index i */
+        public InetAddress getAddress(int i) {
+            return columns.getAddress(i);
+        }
+
+        /** @return the geoip information of the address of index i, null if none */
+        public GeoipInfo getGeoipInfo(int i) {
+            return columns.getGeoipInfo(i);
+        }
     }
 
     /** Exception class for communication errors with the server. */
     public static class Exception extends IOException {
+        private final int m_status;
+
         public Exception(String error_msg) {
+            this(error_msg, -1);
+        }
+
+        public Exception(String error_msg, int status) {
             super(error_msg);
+            m_status = status;
+        }
+
+        /** @return the HTTP status the server returned, -1 if none */
+        public int getStatus() {
+            return m_status;
         }
     }
 
@@ -61,6 +140,61 @@ public class ServerProxy {
     public ServerProxy(String server_hostname, int server_port) {
         m_server_hostname = server_hostname;
         m_server_port = server_port;
+        m_transport = new UrlConnectionTransport(server_hostname, server_port, DEFAULT_CONNECTIONS);
+    }
+
+    /**
+       Makes a transport to the server of this proxy.
+
+       @param http2 true for HttpClientTransport, if it was built and
+       the JVM has java.net.http, false for UrlConnectionTransport
+       @param max_connections the requests that can run at once
+    */
+    public ServerTransport newTransport(boolean http2, int max_connections) {
+        if (http2) {
+            try {
+                return (ServerTransport)Class.forName("HttpClientTransport")
+                    .getConstructor(String.class, int.class, int.class)
+                    .newInstance(m_server_hostname, m_server_port, max_connections);
+            }
+            catch (Throwable e) {
+                LOGGER.log(Level.INFO, "No HTTP/2 transport, using HttpURLConnection.", e);
+            }
+        }
+        return new UrlConnectionTransport(m_server_hostname, m_server_port, max_connections);
+    }
+
+    /** Sends the next requests with transport, closing the former one. */
+    public void setTransport(ServerTransport transport) {
+        ServerTransport old = m_transport;
+        m_transport = transport;
+        old.close();
+    }
+
+    public ServerTransport getTransport() {
+        return m_transport;
+    }
+
+    /**
+       Selects whether the request and answer bodies are gzipped when
+       the server accepts it (true, the default).
+    */
+    public void setCompression(boolean compression) {
+        m_compression = compression;
+    }
+
+    /**
+       Selects whether the results are submitted in the binary format of
+       ResultCodec when the server advertises it (true), or as text in
+       JSON (false, the default).
+    */
+    public void setBinaryResults(boolean binary) {
+        m_binary_results = binary;
+    }
+
+    /** Sets the deadline of each request, connection included, in milliseconds. */
+    public void setRequestTimeout(long timeout_ms) {
+        request_timeout = timeout_ms;
     }
 
     /** Retrieves and returns a list of addresses to ping. Also updates
@@ -83,14 +217,28 @@ public class ServerProxy {
         // Send request to server. Returns a dict with the following keys
         // and values: "token" (a string), "pings" (a list of IP addresses),
         // "geoip" (a list of dicts, one per IP address).
-        JSONObject json_result = (JSONObject)doJsonRequest("/get_pings", json_request);
+        return readPings(client_info, doRequest("/get_pings", JSON_TYPE, jsonBody(json_request), false));
+    }
+
+    /**
+       Reads the answer to /get_pings or /exchange into a new Pings, and
+       updates the ClientInfo object with the geoip data for the client
+       address.
+    */
+    private Pings readPings(ClientInfo client_info, ServerTransport.Response response)
+        throws IOException {
+        PingsJsonReader json_result = new PingsJsonReader();
+        readJson(response, json_result);
+        if (json_result.token == null || json_result.columns == null ||
+            json_result.min_round_time == null)
+            throw new ServerProxy.Exception("The answer of the server misses token, pings or min_round_time");
+        m_exchange = json_result.exchange;
 
         // Update client_info with new client-related information.
-        JSONObject client_geoip = (JSONObject)json_result.get("client_geoip");
-        if (client_geoip != null){
-            client_info.setGeoipInfo(new GeoipInfo(client_geoip));
+        if (json_result.client_geoip != null){
+            client_info.setGeoipInfo(json_result.client_geoip);
 	}
-        String client_ip = (String)json_result.get("client_ip");
+        String client_ip = json_result.client_ip;
 	if (client_ip != null && !client_ip.equals("")){
 		InetAddress ip = InetAddress.getByName(client_ip);
 		if(!ip.isSiteLocalAddress()){
@@ -118,55 +266,117 @@ public class ServerProxy {
 
         // Fill Pings instance from JSON results of our request.
         Pings pings = new Pings();
-        pings.token = (String)json_result.get("token");
+        pings.token = json_result.token;
 	pings.time_fetched = System.currentTimeMillis();
-        JSONArray addresses = (JSONArray)json_result.get("pings");
-        int num_addresses = addresses.size();
-        pings.addresses = new InetAddress[num_addresses];
-        for (int i = 0; i < num_addresses; i++) {
-            pings.addresses[i] = InetAddress.getByName((String)addresses.get(i));
-        }
-
-	// Fill GEOIP data from JSON results
-        JSONArray all_geoip_data = (JSONArray)json_result.get("geoip");
-        pings.geoip_info = new GeoipInfo[num_addresses];
-        if (all_geoip_data != null) {
-            for (int i = 0; i < num_addresses; i++) {
-                Object o = all_geoip_data.get(i);
-                if (o != null) {
-                    pings.geoip_info[i] = new GeoipInfo((JSONObject)o);
-                }
-                else
-                    pings.geoip_info[i] = null;
-            }
-        }
-
-        pings.results = new String[num_addresses];
+        // The addresses with their GEOIP data
+        pings.columns = json_result.columns;
+        pings.results = newResults(pings.size());
 
 	// Fill min_round_time from JSON results
-	pings.min_round_time = ((java.lang.Long)json_result.get("min_round_time")).longValue();
+	pings.min_round_time = json_result.min_round_time.longValue();
+	// Optional, from newer servers
+	pings.probe_plan = json_result.probe_plan;
         return pings;
     }
 
     /** Submits the ping results back to the server. */
     public void submitResults(ClientInfo client_info, Pings pings) throws IOException {
+        submit("/submit_ping_results", client_info, pings, new HashMap<String, String>()).discard();
+    }
+
+    /**
+       Gives back the results array of a Pings submitted in full (part
+       null), to be reused for a next Pings of the same size. Neither
+       the Pings nor its results must be used afterwards.
+    */
+    public void recycle(Pings pings) {
+        ProbeResult[] results = pings.results;
+        pings.results = null;
+        if (results == null)
+            return;
+        Arrays.fill(results, null);
+        synchronized (m_free_results) {
+            if (m_free_results.size() == MAX_FREE_RESULTS)
+                m_free_results.removeFirst();
+            m_free_results.addLast(results);
+        }
+    }
+
+    /** @return an empty results array of the size, given back by recycle() if there is one */
+    private ProbeResult[] newResults(int size) {
+        synchronized (m_free_results) {
+            for (Iterator<ProbeResult[]> i = m_free_results.descendingIterator(); i.hasNext();) {
+                ProbeResult[] results = i.next();
+                if (results.length == size) {
+                    i.remove();
+                    return results;
+                }
+            }
+        }
+        return new ProbeResult[size];
+    }
+
+    /** @return true if the server said it has /exchange, in its last answer with addresses */
+    public boolean hasExchange() {
+        return m_exchange;
+    }
+
+    /** Submits the results of pings and gets the next Pings, of the server's size. */
+    public Pings exchange(ClientInfo client_info, Pings pings) throws IOException {
+        return exchange(client_info, pings, 0);
+    }
+
+    /**
+       Submits the results of pings and gets the next Pings: in one
+       request to /exchange if the server has it (hasExchange()), else
+       with submitResults() then getPings(). Also updates the ClientInfo
+       object as getPings().
+
+       @param next_size the number of addresses wanted, 0 for the
+       server's choice
+    */
+    public Pings exchange(ClientInfo client_info, Pings pings, int next_size)
+        throws IOException {
+        if (m_exchange) {
+            HashMap<String, String> next = new HashMap<String, String>();
+            next.put("next_size", Integer.toString(next_size));
+            try {
+                return readPings(client_info, submit("/exchange", client_info, pings, next));
+            }
+            catch (ServerProxy.Exception e) {
+                // A server behind a proxy that does not route it yet
+                if (e.getStatus() != HttpURLConnection.HTTP_NOT_FOUND)
+                    throw e;
+                LOGGER.info("The server has no /exchange, submitting and getting pings apart.");
+                m_exchange = false;
+            }
+        }
+        submitResults(client_info, pings);
+        return getPings(client_info);
+    }
+
+    /**
+       POSTs the results of pings, with the fields of the client and
+       extra ones, to request_path.
+
+       @return the answer, of status 200; its body must be closed
+    */
+    private ServerTransport.Response submit(String request_path, final ClientInfo client_info,
+                                            final Pings pings, Map<String, String> extra)
+        throws IOException {
         // Build JSON request, a dict with the following keys and values:
         // "token" (a string... the same as return by getPings), "results"
         // (a list of arbitrary JSON objects, one per ping), and optionally
         // "userid" (a string).
         //
-        // Don't use JSONObject here. As currently written, it's not
-        // generics-aware and so it's possible to use it without triggering
-        // unchecked exception warnings. JSONObject doesn't buy us anything
-        // over using a HashMap<String, Object> here anyways.
-        HashMap<String, Object> json_request = new HashMap<String, Object>();
+        // The results are the bulk of it, the traceroutes most of all:
+        // they are written to the connection one at a time rather than
+        // collected into one JSON string first. The same request goes in
+        // the format of ResultCodec when the server accepts it.
+        final HashMap<String, String> json_request = new HashMap<String, String>();
         json_request.put("token", pings.token);
-        List<String> results = new ArrayList<String>();
-        results.add(client_info.getAddress().getHostAddress());
-        results.add(client_info.getInterface());
-        results.add("OS=" + System.getProperty("os.name"));
-        results.addAll(Arrays.asList(pings.results));
-        json_request.put("results", results);
+        if (pings.part != null)
+            json_request.put("part", pings.part);
         String nick = client_info.getNickname();
 	String uuid = client_info.getUUID();
 	String global_ip = null;
@@ -178,9 +388,74 @@ public class ServerProxy {
             json_request.put("uuid", uuid);
 	if (global_ip != null)
 	    json_request.put("ip", global_ip);
+        json_request.putAll(extra);
+        final String[] header = {client_info.getAddress().getHostAddress(),
+                                 client_info.getInterface(),
+                                 "OS=" + System.getProperty("os.name")};
 
-        // Send request to server. Returns a constant (at least for now).
-        Object json_result = doJsonRequest("/submit_ping_results", json_request);
+        ServerTransport.Body body = new ServerTransport.Body() {
+                public void writeTo(OutputStream out) throws IOException {
+                    Writer writer = new BufferedWriter(new OutputStreamWriter(out, CHARSET));
+                    writer.write('{');
+                    for (Map.Entry<String, String> e : json_request.entrySet()) {
+                        writer.write(JSONValue.toJSONString(e.getKey()));
+                        writer.write(':');
+                        writer.write(JSONValue.toJSONString(e.getValue()));
+                        writer.write(',');
+                    }
+                    writer.write("\"results\":[");
+                    for (int i = 0; i < header.length; i++) {
+                        if (i > 0)
+                            writer.write(',');
+                        writer.write(JSONValue.toJSONString(header[i]));
+                    }
+                    StringBuilder sb = new StringBuilder();
+                    for (ProbeResult r : pings.results) {
+                        writer.write(',');
+                        if (r == null) {
+                            writer.write("null");
+                            continue;
+                        }
+                        sb.setLength(0);
+                        r.appendTo(sb);
+                        writer.write('"');
+                        writer.write(JSONValue.escape(sb.toString()));
+                        writer.write('"');
+                    }
+                    writer.write("]}");
+                    writer.flush();
+                }
+            };
+
+        // Send request to server. /submit_ping_results returns a constant
+        // (at least for now), /exchange the next pings as /get_pings.
+        ServerTransport.Response response = null;
+        if (m_binary_results && m_server_binary) {
+            ServerTransport.Body binary_body = new ServerTransport.Body() {
+                    public void writeTo(OutputStream out) throws IOException {
+                        BufferedOutputStream buffered = new BufferedOutputStream(out);
+                        ResultCodec.Encoder encoder = new ResultCodec.Encoder(buffered, json_request);
+                        encoder.startResults(header.length + pings.results.length);
+                        for (String h : header)
+                            encoder.writeText(h);
+                        for (ProbeResult r : pings.results)
+                            encoder.write(r);
+                        buffered.flush();
+                    }
+                };
+            try {
+                response = doRequest(request_path, ResultCodec.CONTENT_TYPE, binary_body, true);
+            }
+            catch (ServerProxy.Exception e) {
+                if (e.getStatus() != HttpURLConnection.HTTP_UNSUPPORTED_TYPE)
+                    throw e;
+                LOGGER.info("The server refused binary results, sending them as text.");
+                m_server_binary = false;
+            }
+        }
+        if (response == null)
+            response = doRequest(request_path, JSON_TYPE, body, true);
+        return response;
     }
 
     /// The hostname of the Pings server.
@@ -188,53 +463,88 @@ public class ServerProxy {
     /// The port of the Pings server.
     private int m_server_port;
     private static final String CHARSET = "UTF-8";
+    private static final String JSON_TYPE = "application/json;charset=" + CHARSET;
 
-    /** Sends a JSON object via POST to the given request URL path. Returns the
-        JSON response object. */
-    private Object doJsonRequest(String request_path, Object content) throws IOException {
-        // Serialize content to JSON.
-        String json_request = JSONValue.toJSONString(content);
-
-        // Open connection to URL.
-        URL server_url = new URL("http", m_server_hostname, m_server_port,
-                                 request_path);
-
-        HttpURLConnection connection = (HttpURLConnection)server_url.openConnection();
-        connection.setDoOutput(true);
-        connection.setRequestMethod("POST");
-        connection.setRequestProperty("Accept-Charset", CHARSET);
-        connection.setRequestProperty("Content-Type", "application/json;charset=" + CHARSET);
-        connection.setConnectTimeout(connection_timeout);
-        connection.setReadTimeout(socket_operation_timeout);
-
-        // Write request.
-        OutputStream output = connection.getOutputStream();
-        try {
-            output.write(json_request.getBytes(CHARSET));
-        }
-        finally {
-            output.close();
-        }
-        
-        int status = connection.getResponseCode();
-        if (status != HttpURLConnection.HTTP_OK) {
-            throw new ServerProxy.Exception(String.format("Server returned HTTP status %d", status));
+    /** @return a request body of content serialized to JSON */
+    private static ServerTransport.Body jsonBody(final Object content) {
+        return new ServerTransport.Body() {
+            public void writeTo(OutputStream out) throws IOException {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(out, CHARSET));
+                JSONValue.writeJSONString(content, writer);
+                writer.flush();
+            }
+        };
+    }
+
+    /**
+       Sends a body via POST to the given request URL path, gzipped if
+       compress and the server accepts it.
+
+       @param content_type JSON_TYPE or ResultCodec.CONTENT_TYPE
+       @return the answer, of status 200; its body must be closed
+    */
+    private ServerTransport.Response doRequest(String request_path, String content_type,
+                                               final ServerTransport.Body json,
+                                               boolean compress) throws IOException {
+        boolean gzip = compress && m_compression && m_server_gzip;
+        HashMap<String, String> headers = new HashMap<String, String>();
+        headers.put("Accept-Charset", CHARSET);
+        headers.put("Content-Type", content_type);
+        if (m_compression)
+            headers.put("Accept-Encoding", "gzip");
+        if (m_binary_results)
+            headers.put(ResultCodec.RESULTS_FORMAT_HEADER, ResultCodec.FORMAT);
+        ServerTransport.Body body = json;
+        if (gzip) {
+            headers.put("Content-Encoding", "gzip");
+            body = new ServerTransport.Body() {
+                    public void writeTo(OutputStream out) throws IOException {
+                        GZIPOutputStream gzip_out = new GZIPOutputStream(out, 8192);
+                        json.writeTo(gzip_out);
+                        gzip_out.finish();
+                    }
+                };
         }
 
-        // Read back reply.
-        InputStream response = connection.getInputStream();
-        BufferedReader br = new BufferedReader(new InputStreamReader(response));
+        ServerTransport.Response response = m_transport.post(request_path, headers, body, request_timeout);
+        String accepted = response.getHeader("Accept-Encoding");
+        m_server_gzip = (accepted != null && accepted.toLowerCase().contains("gzip"));
+        if (m_binary_results)
+            m_server_binary = ResultCodec.FORMAT.equals(response.getHeader(ResultCodec.RESULTS_FORMAT_HEADER));
+        if (response.status != HttpURLConnection.HTTP_OK) {
+            response.discard();
+            if (gzip && response.status == HttpURLConnection.HTTP_UNSUPPORTED_TYPE) {
+                LOGGER.info("The server refused a gzipped request, sending it uncompressed.");
+                m_server_gzip = false;
+                return doRequest(request_path, content_type, json, false);
+            }
+            throw new ServerProxy.Exception(String.format("Server returned HTTP status %d", response.status),
+                                            response.status);
+        }
+        return response;
+    }
 
-        StringBuilder sb_response = new StringBuilder();
-        String chunk = br.readLine();
-        while (chunk != null) {
-            sb_response.append(chunk);
-            chunk = br.readLine();
+    /** Parses the JSON body of response into handler, and closes it. */
+    private static void readJson(ServerTransport.Response response, PingsJsonReader handler)
+        throws IOException {
+        boolean parsed = false;
+        try {
+            InputStream input = response.body;
+            if ("gzip".equalsIgnoreCase(response.getHeader("Content-Encoding")))
+                input = new GZIPInputStream(input);
+            Reader reader = new BufferedReader(new InputStreamReader(input, CHARSET));
+            new JSONParser().parse(reader, handler);
+            parsed = true;
+        }
+        catch (ParseException e) {
+            throw new ServerProxy.Exception("We didn't find JSON in the server output: " + e);
+        }
+        finally {
+            // Read to its end, the connection serves the next request
+            if (parsed)
+                response.discard();
+            else
+                response.body.close();
         }
-	Object ret = JSONValue.parse(sb_response.toString());
-	if(ret == null)
-	    System.out.println("We didn't found JSON in the server output. We got:\n" +
-			       sb_response.toString());
-        return ret;
     }
 }
@@ -0,0 +1,108 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+   How ServerProxy sends its requests to the server: one POST at a
+   time per calling thread, the transport keeping its connections open
+   between requests when it can.
+
+   <p>The request body is written by the caller straight to the
+   transport (Body), and the answer is read from the connection as it
+   comes (Response.body), so neither has to be held whole in memory.
+
+   <p>The default is UrlConnectionTransport. HttpClientTransport, built
+   separately as it needs Java 11, multiplexes the requests over HTTP/2
+   connections when the server speaks it.
+*/
+public interface ServerTransport {
+    /** Writes a request body; may be called again if the request is sent again. */
+    public interface Body {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+       The answer to a request. Its body must be closed, read to its end
+       or not: that frees the connection for the next request.
+    */
+    public static class Response {
+        public final int status;
+        /** The headers, by lowercase name */
+        public final Map<String, String> headers;
+        /** The body as sent, before any Content-Encoding is undone */
+        public final InputStream body;
+
+        public Response(int status, Map<String, String> headers, InputStream body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        /** @return the value of a header, null if it is not there */
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase());
+        }
+
+        /**
+           Reads the body to its end and closes it.
+           @return the number of bytes read
+        */
+        public long discard() throws IOException {
+            try {
+                long total = 0;
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = body.read(buffer)) > 0)
+                    total += n;
+                return total;
+            }
+            finally {
+                body.close();
+            }
+        }
+    }
+
+    /** An answer body that gives back its request slot when closed. */
+    public static class SlotStream extends FilterInputStream {
+        private final Semaphore m_slots;
+        private boolean m_closed = false;
+
+        public SlotStream(InputStream in, Semaphore slots) {
+            super(in);
+            m_slots = slots;
+        }
+
+        public void close() throws IOException {
+            synchronized (this) {
+                if (m_closed)
+                    return;
+                m_closed = true;
+            }
+            try {
+                super.close();
+            }
+            finally {
+                m_slots.release();
+            }
+        }
+    }
+
+    /**
+       POSTs body to path on the server. The answer is read whatever
+       its status, so the connection can serve the next request.
+
+       @param headers the request headers, Content-Type included
+       @param timeout_ms the deadline of the request, connection
+       included
+       @throws java.net.SocketTimeoutException if the deadline passed,
+       java.io.InterruptedIOException if the thread was interrupted
+    */
+    Response post(String path, Map<String, String> headers, Body body, long timeout_ms)
+        throws IOException;
+
+    /** Closes the connections kept open. */
+    void close();
+}
@@ -2,6 +2,7 @@ import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.text.DecimalFormat;
 import java.io.IOException;
@@ -19,6 +20,9 @@ public class TcpPinger implements Prober {
     /** A reference to ClientInfo */
     private ClientInfo m_info;
 
+    /** The sockets the pings may use */
+    private TcpSocketBudget m_budget = TcpSocketBudget.getDefault();
+
     /**
        Returns the last collected times as a String.
 
@@ -34,6 +38,8 @@ public class TcpPinger implements Prober {
     */
     public String getLastProbe() { return m_tcp_times; }
 
+    public ProbeResult getLastResult() { return new ProbeResult.Text(m_tcp_times); }
+
     public void clearProbe() { m_tcp_times = ""; }
 
     /**
@@ -87,6 +93,7 @@ public class TcpPinger implements Prober {
             }
 
             boolean timed_out = false;
+            m_budget.acquire();
             long start = System.nanoTime();
 
             Socket ping_socket = null;
@@ -108,12 +115,20 @@ public class TcpPinger implements Prober {
                 prefix = " ?";
             }
             finally {
+                boolean connected = (ping_socket != null && ping_socket.isConnected());
+                try {
+                    if (connected && m_budget.isAbortiveClose())
+                        ping_socket.setSoLinger(true, 0);
+                }
+                catch (SocketException e) {
+                }
                 try {
                     if (ping_socket != null)
                         ping_socket.close();
                 }
                 catch (IOException e) {
                 }
+                m_budget.release(connected);
             }
 
             long stop = System.nanoTime();
@@ -135,6 +150,11 @@ public class TcpPinger implements Prober {
         return 0;
     }
 
+    /** Sets the budget the sockets of the pings are taken from, the default one otherwise. */
+    public void setBudget(TcpSocketBudget budget) {
+        m_budget = budget;
+    }
+
     /**
        Creates a TcpPinger (linked to a ClientInfo configuration)
        @param this_info A reference to a ClientInfo
@@ -0,0 +1,137 @@
+import java.util.ArrayDeque;
+
+/**
+   The number of TCP sockets the probes of this JVM may hold at once,
+   to spare the connection table of the home router (NAT) and the
+   ephemeral ports of the host.
+
+   <p>A socket counts from the moment it is opened (acquire()) until it
+   is closed (release()), and, if it was connected, until it has left
+   TIME_WAIT: the side that closes a connection keeps it for about
+   twice the maximum segment lifetime, and so does the NAT table of
+   many routers. Connections that failed or were refused never enter
+   TIME_WAIT, nor do the ones reset on close with SO_LINGER=0
+   (setAbortiveClose()), so those are returned to the budget at once.
+
+   <p>Thread-safe.
+*/
+public class TcpSocketBudget {
+    /** Default number of sockets open or in TIME_WAIT */
+    public static final int DEFAULT_SOCKETS = 512;
+
+    /** Default time a closed connection stays in TIME_WAIT, in milliseconds (2MSL on Linux) */
+    public static final long DEFAULT_TIME_WAIT = 60000;
+
+    private int m_sockets;
+    private long m_time_wait;
+    private volatile boolean m_abortive_close = false;
+
+    private int m_open = 0;
+    /** When the closed connections leave TIME_WAIT, oldest first, in ms */
+    private final ArrayDeque<Long> m_draining = new ArrayDeque<Long>();
+
+    private long m_acquired = 0;
+    private long m_waits = 0;
+
+    private static TcpSocketBudget s_default = null;
+
+    public TcpSocketBudget(int sockets, long time_wait_ms) {
+        m_sockets = sockets;
+        m_time_wait = time_wait_ms;
+    }
+
+    /** @return the budget shared by the TCP pingers of this JVM */
+    public static synchronized TcpSocketBudget getDefault() {
+        if (s_default == null)
+            s_default = new TcpSocketBudget(DEFAULT_SOCKETS, DEFAULT_TIME_WAIT);
+        return s_default;
+    }
+
+    /**
+       Sets the number of sockets open or in TIME_WAIT at once, and how
+       long TIME_WAIT lasts. Sockets already counted stay counted.
+    */
+    public synchronized void setSockets(int sockets, long time_wait_ms) {
+        m_sockets = sockets;
+        m_time_wait = time_wait_ms;
+        notifyAll();
+    }
+
+    public synchronized int getSockets() { return m_sockets; }
+
+    /**
+       Selects whether the probes close their connections with a reset
+       (SO_LINGER=0), so they do not go through TIME_WAIT, instead of
+       the usual FIN (false, the default).
+    */
+    public void setAbortiveClose(boolean abortive_close) {
+        m_abortive_close = abortive_close;
+    }
+
+    public boolean isAbortiveClose() { return m_abortive_close; }
+
+    /** Forgets the connections out of TIME_WAIT. */
+    private void drain(long now) {
+        while (!m_draining.isEmpty() && m_draining.peekFirst().longValue() <= now)
+            m_draining.pollFirst();
+    }
+
+    /** @return true if a socket is left in the budget */
+    private boolean isFree() {
+        drain(System.currentTimeMillis());
+        return m_open + m_draining.size() < m_sockets;
+    }
+
+    /** Takes a socket from the budget, waiting for one if none is left. */
+    public synchronized void acquire() throws InterruptedException {
+        if (!isFree()) {
+            m_waits++;
+            do {
+                // Wake up for a release, or when the next connection
+                // leaves TIME_WAIT
+                long wait = m_draining.isEmpty() ? 0 :
+                    Math.max(1, m_draining.peekFirst().longValue() - System.currentTimeMillis());
+                wait(wait);
+            } while (!isFree());
+        }
+        m_open++;
+        m_acquired++;
+    }
+
+    /** @return true if a socket was taken from the budget, false if none is left */
+    public synchronized boolean tryAcquire() {
+        if (!isFree())
+            return false;
+        m_open++;
+        m_acquired++;
+        return true;
+    }
+
+    /**
+       Returns a socket taken by acquire() or tryAcquire(), once closed.
+
+       @param connected true if the connection was established, so it
+       stays in TIME_WAIT unless it was reset
+    */
+    public synchronized void release(boolean connected) {
+        m_open--;
+        if (connected && !m_abortive_close)
+            m_draining.addLast(Long.valueOf(System.currentTimeMillis() + m_time_wait));
+        notifyAll();
+    }
+
+    /** @return the number of sockets open */
+    public synchronized int getOpen() { return m_open; }
+
+    /** @return the number of closed connections still counted in TIME_WAIT */
+    public synchronized int getDraining() {
+        drain(System.currentTimeMillis());
+        return m_draining.size();
+    }
+
+    /** @return the number of sockets taken since the start */
+    public synchronized long getAcquired() { return m_acquired; }
+
+    /** @return the number of times acquire() had to wait */
+    public synchronized long getWaits() { return m_waits; }
+}
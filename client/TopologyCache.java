@@ -0,0 +1,345 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+   The topology already discovered by the traceroutes of this client,
+   used to avoid probing it again (the stop sets of the Doubletree
+   algorithm, Donnet et al., SIGMETRICS 2005).
+
+   <ul>
+   <li>The <b>local stop set</b> holds the hops seen near the source, by
+   TTL. All the paths from one client share their first hops, so once
+   the first hops always answered from the same address, traces start
+   after them (see getFirstTtl()).</li>
+   <li>The <b>global stop set</b> holds (hop, destination prefix) pairs.
+   Once a trace meets a hop already seen on the way to the same /24
+   (/48 for IPv6), the rest of the path is known and the trace stops
+   there (see isKnown()).</li>
+   <li>The distance to each destination prefix bounds the TTLs of the
+   first round of probes (see getExpectedDistance()).</li>
+   </ul>
+
+   <p>Each table is bounded and evicts its least recently used entries.
+   The tables are saved in a text file of the user's home directory
+   every SAVE_INTERVAL traces and when the JVM exits, and read back on
+   the next run.
+*/
+public class TopologyCache {
+    /// Logging
+    private final static Logger LOGGER = Logger.getLogger(TopologyCache.class.getName());
+
+    /** Highest TTL kept in the local stop set */
+    static final int LOCAL_MAX_TTL = 8;
+    /** Times a hop must answer from the same address before it is skipped */
+    static final int CONFIRMATIONS = 3;
+    /** One trace in REFRESH_INTERVAL starts at TTL 1 to check the local stop set */
+    static final int REFRESH_INTERVAL = 32;
+    /** Hops probed past the expected distance to the destination */
+    static final int DISTANCE_MARGIN = 2;
+
+    static final int LOCAL_CAPACITY = 256;
+    static final int GLOBAL_CAPACITY = 50000;
+    static final int DISTANCE_CAPACITY = 20000;
+
+    /** The file is written after this many learned traces */
+    static final int SAVE_INTERVAL = 1000;
+
+    /** Name of the file, in the user's home directory */
+    static final String FILE_NAME = ".pings_topology";
+
+    /** The local stop set: hop address -> {ttl, times seen} */
+    private final LruMap<InetAddress, int[]> m_local =
+        new LruMap<InetAddress, int[]>(LOCAL_CAPACITY);
+    /** The global stop set: "hop prefix" -> ttl */
+    private final LruMap<String, Integer> m_global =
+        new LruMap<String, Integer>(GLOBAL_CAPACITY);
+    /** The distance to each destination prefix */
+    private final LruMap<String, Integer> m_distances =
+        new LruMap<String, Integer>(DISTANCE_CAPACITY);
+
+    /** Where the cache is saved, null to keep it in memory only */
+    private final File m_file;
+
+    private int m_traces_started = 0;
+    private int m_traces_learned = 0;
+
+    private static TopologyCache s_default = null;
+
+    /** A LinkedHashMap in access order that drops its eldest entries. */
+    private static class LruMap<K, V> extends LinkedHashMap<K, V> {
+        private static final long serialVersionUID = 1L;
+        private final int m_capacity;
+
+        LruMap(int capacity) {
+            super(16, 0.75f, true);
+            m_capacity = capacity;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > m_capacity;
+        }
+    }
+
+    /**
+       Creates an empty cache.
+
+       @param file where to save the cache, or null to keep it in memory
+    */
+    public TopologyCache(File file) {
+        m_file = file;
+    }
+
+    /**
+       Returns the cache shared by the traceroutes of this JVM, loaded
+       from the user's home directory on first use and saved back when
+       the JVM exits.
+    */
+    public static synchronized TopologyCache getDefault() {
+        if (s_default != null)
+            return s_default;
+
+        File file = null;
+        try {
+            file = new File(System.getProperty("user.home"), FILE_NAME);
+        }
+        catch (SecurityException e) {
+            LOGGER.info("No access to the home directory, topology cache not saved.");
+        }
+        s_default = new TopologyCache(file);
+        if (file != null) {
+            s_default.load();
+            try {
+                final TopologyCache cache = s_default;
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                        public void run() {
+                            cache.save();
+                        }
+                    });
+            }
+            catch (SecurityException e) {
+                LOGGER.info("Cannot save the topology cache at exit.");
+            }
+        }
+        return s_default;
+    }
+
+    /**
+       Returns the destination prefix used by the global stop set: the
+       /24 of an IPv4 address, the /48 of an IPv6 address.
+    */
+    static String getPrefix(InetAddress addr) {
+        byte[] bytes = addr.getAddress();
+        if (addr instanceof Inet6Address) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 6; i += 2)
+                sb.append(Integer.toHexString(((bytes[i] & 0xff) << 8) | (bytes[i + 1] & 0xff)))
+                    .append(':');
+            return sb.append(":/48").toString();
+        }
+        return (bytes[0] & 0xff) + "." + (bytes[1] & 0xff) + "." + (bytes[2] & 0xff) + ".0/24";
+    }
+
+    /**
+       Returns the TTL a trace to dest should start at: one past the
+       first hops that always answered from the same address, but not
+       past the destination's known distance, or 1 for a refresh trace
+       or a destination near the source.
+    */
+    public synchronized int getFirstTtl(InetAddress dest) {
+        m_traces_started++;
+        if (m_traces_started % REFRESH_INTERVAL == 0 || m_local.containsKey(dest))
+            return 1;
+
+        int ttl = 1;
+        while (ttl <= LOCAL_MAX_TTL && isStable(ttl))
+            ttl++;
+        Integer distance = m_distances.get(getPrefix(dest));
+        if (distance != null)
+            ttl = Math.min(ttl, distance.intValue());
+        return ttl;
+    }
+
+    /** @return true if only one address answered at ttl, often enough */
+    private boolean isStable(int ttl) {
+        boolean found = false;
+        for (int[] hop : m_local.values()) {
+            if (hop[0] != ttl)
+                continue;
+            if (found || hop[1] < CONFIRMATIONS)
+                return false;
+            found = true;
+        }
+        return found;
+    }
+
+    /**
+       Returns the highest TTL worth probing for dest on the first
+       round: the distance last measured to its prefix plus a margin,
+       or MAX_HOPS if unknown.
+    */
+    public synchronized int getExpectedDistance(InetAddress dest, int max_hops) {
+        Integer distance = m_distances.get(getPrefix(dest));
+        if (distance == null)
+            return max_hops;
+        return Math.min(max_hops, distance.intValue() + DISTANCE_MARGIN);
+    }
+
+    /**
+       @return true if hop was already seen on the way to the prefix of
+       dest, in which case the rest of the path is known. Hops of the
+       local stop set are shared by all the paths, so they never stop a
+       trace.
+    */
+    public synchronized boolean isKnown(InetAddress hop, InetAddress dest) {
+        return !m_local.containsKey(hop) &&
+            m_global.containsKey(hop.getHostAddress() + " " + getPrefix(dest));
+    }
+
+    /**
+       Records the result of a trace.
+
+       @param hops the address that answered at each TTL (index ttl - 1),
+       null where nothing answered or the TTL was not probed
+       @param last_ttl the TTL of the echo reply or unreachable that
+       ended the trace, 0 if none did. That hop is not a router on the
+       way, so it does not go in the local stop set.
+       @param reached true if last_ttl is the echo reply of dest
+    */
+    public void learn(InetAddress dest, InetAddress[] hops, int last_ttl, boolean reached) {
+        boolean save;
+        synchronized (this) {
+            String prefix = getPrefix(dest);
+            for (int i = 0; i < hops.length; i++) {
+                if (hops[i] == null)
+                    continue;
+                int ttl = i + 1;
+                m_global.put(hops[i].getHostAddress() + " " + prefix, Integer.valueOf(ttl));
+                if (ttl <= LOCAL_MAX_TTL && (last_ttl == 0 || ttl < last_ttl))
+                    learnLocal(hops[i], ttl);
+            }
+            if (reached)
+                m_distances.put(prefix, Integer.valueOf(last_ttl));
+            m_traces_learned++;
+            save = (m_file != null && m_traces_learned % SAVE_INTERVAL == 0);
+        }
+        if (save)
+            save();
+    }
+
+    /** Counts hop at ttl and forgets the other addresses seen at ttl. */
+    private void learnLocal(InetAddress hop, int ttl) {
+        Iterator<Map.Entry<InetAddress, int[]>> it = m_local.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<InetAddress, int[]> e = it.next();
+            if (e.getValue()[0] == ttl && !e.getKey().equals(hop))
+                it.remove();
+        }
+        int[] entry = m_local.get(hop);
+        if (entry == null || entry[0] != ttl)
+            m_local.put(hop, new int[] {ttl, 1});
+        else
+            entry[1]++;
+    }
+
+    /**
+       Reads the cache back from its file, if there is one. Lines are
+       "L hop ttl count", "G hop prefix ttl" and "D prefix distance",
+       least recently used first.
+    */
+    synchronized void load() {
+        if (m_file == null || !m_file.exists())
+            return;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(m_file));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] f = line.split(" ");
+                try {
+                    if (f[0].equals("L") && f.length == 4)
+                        m_local.put(InetAddress.getByName(f[1]),
+                                    new int[] {Integer.parseInt(f[2]), Integer.parseInt(f[3])});
+                    else if (f[0].equals("G") && f.length == 4)
+                        m_global.put(f[1] + " " + f[2], Integer.valueOf(f[3]));
+                    else if (f[0].equals("D") && f.length == 3)
+                        m_distances.put(f[1], Integer.valueOf(f[2]));
+                }
+                catch (NumberFormatException e) {
+                    LOGGER.fine("Bad topology cache line: " + line);
+                }
+            }
+            LOGGER.info("Topology cache loaded: " + m_local.size() + " local, " +
+                        m_global.size() + " global, " + m_distances.size() + " prefixes.");
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.INFO, "Cannot read topology cache " + m_file, e);
+        }
+        finally {
+            try {
+                if (reader != null)
+                    reader.close();
+            }
+            catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+       Writes the cache to its file. The file is replaced at once, so a
+       crash leaves the previous version.
+    */
+    public synchronized void save() {
+        if (m_file == null)
+            return;
+        File tmp = new File(m_file.getPath() + ".tmp");
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(tmp));
+            for (Map.Entry<InetAddress, int[]> e : m_local.entrySet()) {
+                writer.write("L " + e.getKey().getHostAddress() + " " +
+                             e.getValue()[0] + " " + e.getValue()[1]);
+                writer.newLine();
+            }
+            for (Map.Entry<String, Integer> e : m_global.entrySet()) {
+                writer.write("G " + e.getKey() + " " + e.getValue());
+                writer.newLine();
+            }
+            for (Map.Entry<String, Integer> e : m_distances.entrySet()) {
+                writer.write("D " + e.getKey() + " " + e.getValue());
+                writer.newLine();
+            }
+            writer.close();
+            writer = null;
+            if (!tmp.renameTo(m_file)) {
+                m_file.delete();
+                if (!tmp.renameTo(m_file))
+                    throw new IOException("Cannot rename " + tmp);
+            }
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.INFO, "Cannot save topology cache " + m_file, e);
+        }
+        catch (SecurityException e) {
+            LOGGER.info("Not allowed to save topology cache " + m_file);
+        }
+        finally {
+            try {
+                if (writer != null)
+                    writer.close();
+            }
+            catch (IOException e) {
+            }
+        }
+    }
+}
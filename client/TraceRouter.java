@@ -17,6 +17,10 @@ public class TraceRouter implements Prober {
     /** A reference to ClientInfo */
     private ClientInfo m_info;
 
+    /** The traceroute command is killed after this many milliseconds (30 hops
+        of 3 queries of 1s, plus a margin) */
+    static final int TIMEOUT = 100000;
+
     /** Describes the OS-Specific traceroute commands */
     private static final String[][] OS_SPECIFIC_COMMAND = {
         // Number of query per hops must remain the LAST parameter because
@@ -32,14 +36,15 @@ public class TraceRouter implements Prober {
     };
 
     /** Regexes to reject completely failed hops */
-    private static final String[] OS_SPECIFIC_REJECT_REGEX = {
+    static final String[] OS_SPECIFIC_REJECT_REGEX = {
         // Checks if all pings were lost
         // ex:  5 * * *
         "\\s*[0-9]+(\\s+\\*){3}.*"
     };
 
-    /** Regexes to canonalize OS-specific output to a common format */
-    private static final String[][] OS_SPECIFIC_TRANSLATOR = {
+    /** Regexes to canonalize OS-specific output to a common format, in the
+        order of ProbeOutputParser's HOPS_ formats */
+    static final String[][] OS_SPECIFIC_TRANSLATOR = {
         // Windows outputs trace in a slightly different order than all the
         // others:
         //     n time time time ip
@@ -67,6 +72,8 @@ public class TraceRouter implements Prober {
     */
     public String getLastProbe() { return m_trace_times; }
 
+    public ProbeResult getLastResult() { return new ProbeResult.Text(m_trace_times); }
+
     /**
        Clears the last collected times
     */
@@ -77,6 +84,22 @@ public class TraceRouter implements Prober {
     */
     public static String getTimes(String reject_regex, String[] translator, int retval,
 				  List<String> stdout_lines) {
+        int format = -1;
+        for (int i = 0; i < OS_SPECIFIC_TRANSLATOR.length; i++)
+            if (translator == OS_SPECIFIC_TRANSLATOR[i])
+                format = i;
+        if (format < 0 || reject_regex != OS_SPECIFIC_REJECT_REGEX[0] ||
+            ProbeOutputParser.hasLineTerminator(stdout_lines))
+            return getTimesRegex(reject_regex, translator, retval, stdout_lines);
+        return ProbeOutputParser.get().getHops(format, retval, stdout_lines);
+    }
+
+    /**
+       getTimes() with regexes: the reference ProbeOutputParser is
+       checked against, also used for output it does not handle.
+    */
+    static String getTimesRegex(String reject_regex, String[] translator, int retval,
+                                List<String> stdout_lines) {
 	String ret = "";
         if (retval == 0) {
             // Success!
@@ -165,10 +188,14 @@ public class TraceRouter implements Prober {
 
         command.add(addr.toString().split("/")[1]); // append addr (as string) to traceroute
 
-        LinkedList<String> stdout_lines = new LinkedList<String>();
-        LinkedList<String> stderr_lines = new LinkedList<String>();
-        // FIXME: check if 70 is always ok for traceroute
-        int retval = Launcher.launch(command, stdout_lines, stderr_lines, 70);
+        final LinkedList<String> stdout_lines = new LinkedList<String>();
+        int retval = Launcher.launch(command, new Launcher.LineHandler() {
+                public void handleLine(String line, boolean from_stderr) {
+                    // FIXME: check if 70 is always ok for traceroute
+                    if (!from_stderr && stdout_lines.size() < 70)
+                        stdout_lines.add(line);
+                }
+            }, TIMEOUT);
 
         m_trace_times = "TROUTE " + addr.toString().split("/")[1] + " "; // the protocol (TraceROUTE)
 	m_trace_times += getTimes(reject_regex, translator, retval, stdout_lines);
@@ -186,12 +213,11 @@ public class TraceRouter implements Prober {
         m_info = this_info;
     }
 
-    /**
-     * This test the parsing of the outputs.
-     */
-    public static void main(String args[]) throws InterruptedException {
-	System.out.println("Test parsing of traceroute for OSX");
-	String[][] to_test_OSX= {
+    /*
+       Test vectors: traceroute outputs, each followed by the expected
+       result of getTimes(), used by main() and by ParserBenchmark.
+    */
+    static final String[][] TEST_OSX = {
 	    {
 "traceroute to google.ca (173.194.75.94), 64 hops max, 52 byte packets",
 " 1  10.0.0.129  7.836 ms  2.898 ms  2.514 ms",
@@ -263,22 +289,9 @@ public class TraceRouter implements Prober {
 "64  * * *",
 "TIMEOUT"//The returned strings
 }//unknow OSX
-	};
-	for(int i = 0; i < to_test_OSX.length; i++){
-	    String[] ins = Arrays.copyOfRange(to_test_OSX[i], 0, to_test_OSX[i].length - 1);
-	    String ans = to_test_OSX[i][to_test_OSX[i].length - 1];
-	    LinkedList<String> to_test = new LinkedList(Arrays.asList(ins));
-	    String out = getTimes(OS_SPECIFIC_REJECT_REGEX[0], OS_SPECIFIC_TRANSLATOR[0], 0, to_test);
-	    if(!out.equals(ans)){
-		System.out.println("BAD OUTPUT!!!\nExpected output: " + ans);
-		System.out.println("         Output: " + out);
-	    }else{
-		System.out.println("Test passed");
-	    }
-	}
+    };
 
-	System.out.println("\nTest parsing of traceroute for linux");
-	String[][] to_test_linux= {
+    static final String[][] TEST_LINUX = {
 	    {
 "traceroute to google.ca (74.125.224.119), 30 hops max, 40 byte packets",
 " 1  171.64.68.2  0.578 ms  0.777 ms  0.838 ms",
@@ -311,22 +324,9 @@ public class TraceRouter implements Prober {
 "12  173.194.75.94  38.309 ms  36.743 ms  37.386 ms",
 "1 192.168.0.1 0.575ms 0.644ms 0.739ms,3 10.170.163.249 15.494ms 15.770ms 15.904ms,4 216.113.123.113 16.096ms 16.282ms 16.560ms,5 216.113.122.58 33.703ms 33.857ms 34.041ms,6 72.14.214.126 30.328ms 29.976ms 33.711ms,7 216.239.46.248 36.119ms 29.764ms 29.565ms,8 72.14.236.98 27.923ms 27.623ms 72.14.236.146 30.459ms,9 209.85.243.114 44.669ms 40.801ms 41.186ms,10 216.239.48.159 39.557ms 216.239.48.157 37.484ms 216.239.48.183 41.527ms,12 173.194.75.94 38.309ms 36.743ms 37.386ms"//the answer
 }//ubuntu 12.04
-	};
-	for(int i = 0; i < to_test_linux.length; i++){
-	    String[] ins = Arrays.copyOfRange(to_test_linux[i], 0, to_test_linux[i].length - 1);
-	    String ans = to_test_linux[i][to_test_linux[i].length - 1];
-	    LinkedList<String> to_test = new LinkedList(Arrays.asList(ins));
-	    String out = getTimes(OS_SPECIFIC_REJECT_REGEX[0], OS_SPECIFIC_TRANSLATOR[0], 0, to_test);
-	    if(!out.equals(ans)){
-		System.out.println("BAD OUTPUT!!!\nExpected output: " + ans);
-		System.out.println("         Output: " + out);
-	    }else{
-		System.out.println("Test passed");
-	    }
-	}
+    };
 
-	System.out.println("\nTest parsing of traceroute for Windows");
-	String[][] to_test_win= {
+    static final String[][] TEST_WINDOWS = {
 	    {
 		//"-->tracert -d -w 1000 3 google.ca",
 "",
@@ -376,11 +376,45 @@ public class TraceRouter implements Prober {
 " 21   293 ms   275 ms   277 ms  74.125.135.94",
 "1 192.168.1.254 42ms 101ms 98ms,2 67.69.122.130 14ms 17ms 15ms,3 65.38.93.233 13ms 16ms 17ms,4 77.67.70.125 17ms 13ms 32ms,5 89.149.181.110 47ms 50ms 49ms,6 72.14.212.15 48ms 32ms 59ms,7 209.85.255.68 64ms 33ms 31ms,8 72.14.236.208 47ms 90ms 52ms,9 72.14.239.93 41ms 42ms 58ms,10 72.14.235.12 49ms 105ms 48ms,11 72.14.239.66 64ms 56ms 59ms,12 72.14.237.213 75ms 71ms 69ms,13 64.233.174.140 103ms 106ms 104ms,14 64.233.174.177 239ms 223ms 200ms,15 209.85.255.35 300ms 222ms 195ms,16 64.233.175.0 200ms 267ms 225ms,17 66.249.94.105 290ms 289ms 257ms,18 209.85.242.233 312ms 544ms 604ms,19 209.85.242.125 267ms 304ms 294ms,21 74.125.135.94 293ms 275ms 277ms"//The answer
 }// Windows 7 Chinese sp1
-	};
+    };
+
+    /**
+     * This test the parsing of the outputs.
+     */
+    public static void main(String args[]) throws InterruptedException {
+	System.out.println("Test parsing of traceroute for OSX");
+	for(int i = 0; i < TEST_OSX.length; i++){
+	    String[] ins = Arrays.copyOfRange(TEST_OSX[i], 0, TEST_OSX[i].length - 1);
+	    String ans = TEST_OSX[i][TEST_OSX[i].length - 1];
+	    LinkedList<String> to_test = new LinkedList(Arrays.asList(ins));
+	    String out = getTimes(OS_SPECIFIC_REJECT_REGEX[0], OS_SPECIFIC_TRANSLATOR[0], 0, to_test);
+	    if(!out.equals(ans)){
+		System.out.println("BAD OUTPUT!!!\nExpected output: " + ans);
+		System.out.println("         Output: " + out);
+	    }else{
+		System.out.println("Test passed");
+	    }
+	}
+
+	System.out.println("\nTest parsing of traceroute for linux");
+	for(int i = 0; i < TEST_LINUX.length; i++){
+	    String[] ins = Arrays.copyOfRange(TEST_LINUX[i], 0, TEST_LINUX[i].length - 1);
+	    String ans = TEST_LINUX[i][TEST_LINUX[i].length - 1];
+	    LinkedList<String> to_test = new LinkedList(Arrays.asList(ins));
+	    String out = getTimes(OS_SPECIFIC_REJECT_REGEX[0], OS_SPECIFIC_TRANSLATOR[0], 0, to_test);
+	    if(!out.equals(ans)){
+		System.out.println("BAD OUTPUT!!!\nExpected output: " + ans);
+		System.out.println("         Output: " + out);
+	    }else{
+		System.out.println("Test passed");
+	    }
+	}
+
+	System.out.println("\nTest parsing of traceroute for Windows");
 
-	for(int i = 0; i < to_test_win.length; i++){
-	    String[] ins = Arrays.copyOfRange(to_test_win[i], 0, to_test_win[i].length - 1);
-	    String ans = to_test_win[i][to_test_win[i].length - 1];
+	for(int i = 0; i < TEST_WINDOWS.length; i++){
+	    String[] ins = Arrays.copyOfRange(TEST_WINDOWS[i], 0, TEST_WINDOWS[i].length - 1);
+	    String ans = TEST_WINDOWS[i][TEST_WINDOWS[i].length - 1];
 	    LinkedList<String> to_test = new LinkedList(Arrays.asList(ins));
 	    String out = getTimes(OS_SPECIFIC_REJECT_REGEX[0], OS_SPECIFIC_TRANSLATOR[1], 0, to_test);
 	    if(!out.equals(ans)){
@@ -0,0 +1,206 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+   Times the requests of ServerProxy against a local stand-in of the
+   server, which answers /get_pings with a Pings of PINGS_SIZE
+   addresses: the former doJsonRequest(), reconstructed in Legacy,
+   against UrlConnectionTransport and, when it was built ("make http2")
+   and Java is 11 or later, HttpClientTransport. Each sends the same
+   requests from 1, 4, 16 threads and the server counts the TCP
+   connections they used.
+
+   <p>Not part of the client. Run with "make bench" or
+   <tt>java TransportBenchmark [requests]</tt>; exits with 1 if a
+   request failed.
+*/
+public class TransportBenchmark {
+    private static final int PINGS_SIZE = 100;
+    private static final String CHARSET = "UTF-8";
+
+    /** The connections seen by the server, by client port */
+    private static final Set<Integer> s_ports = Collections.synchronizedSet(new HashSet<Integer>());
+
+    /** @return the answer of the stand-in server to /get_pings */
+    private static byte[] answer() throws IOException {
+        StringBuilder sb = new StringBuilder("{\"token\": \"t\", \"min_round_time\": 0, \"pings\": [");
+        for (int i = 0; i < PINGS_SIZE; i++)
+            sb.append(i > 0 ? ", " : "").append("\"10.0.").append(i / 250).append('.').append(i % 250).append('"');
+        sb.append("], \"geoip\": [");
+        for (int i = 0; i < PINGS_SIZE; i++)
+            sb.append(i > 0 ? ", " : "").append("{\"country\": \"CA\", \"city\": \"Montreal\"}");
+        return sb.append("]}").toString().getBytes(CHARSET);
+    }
+
+    private static HttpServer startServer() throws IOException {
+        final byte[] answer = answer();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 100);
+        server.createContext("/", new HttpHandler() {
+                public void handle(HttpExchange exchange) throws IOException {
+                    s_ports.add(Integer.valueOf(exchange.getRemoteAddress().getPort()));
+                    InputStream in = exchange.getRequestBody();
+                    byte[] buffer = new byte[4096];
+                    while (in.read(buffer) > 0)
+                        ;
+                    exchange.getResponseHeaders().set("Content-Type", "application/json");
+                    exchange.sendResponseHeaders(200, answer.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(answer);
+                    out.close();
+                }
+            });
+        server.setExecutor(Executors.newFixedThreadPool(16));
+        server.start();
+        return server;
+    }
+
+    /**
+       doJsonRequest() as it was: a new HttpURLConnection per request,
+       fixed connect and read timeouts, the answer read by lines and its
+       stream left open.
+    */
+    private static class Legacy implements ServerTransport {
+        private final int m_port;
+
+        Legacy(int port) {
+            m_port = port;
+        }
+
+        public Response post(String path, Map<String, String> headers, Body body, long timeout_ms)
+            throws IOException {
+            URL server_url = new URL("http", "127.0.0.1", m_port, path);
+            HttpURLConnection connection = (HttpURLConnection)server_url.openConnection();
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            for (Map.Entry<String, String> h : headers.entrySet())
+                connection.setRequestProperty(h.getKey(), h.getValue());
+            connection.setConnectTimeout(10000);
+            connection.setReadTimeout(10000);
+            OutputStream output = connection.getOutputStream();
+            try {
+                body.writeTo(output);
+            }
+            finally {
+                output.close();
+            }
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK)
+                return new Response(status, new HashMap<String, String>(),
+                                    new ByteArrayInputStream(new byte[0]));
+            BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+            StringBuilder sb_response = new StringBuilder();
+            String chunk = br.readLine();
+            while (chunk != null) {
+                sb_response.append(chunk);
+                chunk = br.readLine();
+            }
+            return new Response(status, new HashMap<String, String>(),
+                                new ByteArrayInputStream(sb_response.toString().getBytes(CHARSET)));
+        }
+
+        public void close() {
+        }
+    }
+
+    /** @return the time to send requests over threads threads, in nanoseconds; -1 if one failed */
+    private static long run(final ServerTransport transport, int threads, final int requests)
+        throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Accept-Charset", CHARSET);
+        headers.put("Content-Type", "application/json;charset=" + CHARSET);
+        final byte[] request = "{\"uuid\": \"0\", \"userid\": \"bench\"}".getBytes();
+        final ServerTransport.Body body = new ServerTransport.Body() {
+                public void writeTo(OutputStream out) throws IOException {
+                    out.write(request);
+                }
+            };
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread() {
+                    public void run() {
+                        try {
+                            start.await();
+                            while (next.getAndIncrement() < requests) {
+                                ServerTransport.Response r =
+                                    transport.post("/get_pings", headers, body, 10000);
+                                if (r.discard() == 0 || r.status != 200)
+                                    failed.incrementAndGet();
+                            }
+                        }
+                        catch (Exception e) {
+                            e.printStackTrace();
+                            failed.incrementAndGet();
+                        }
+                    }
+                };
+            workers[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread w : workers)
+            w.join();
+        long ns = System.nanoTime() - begin;
+        return (failed.get() == 0) ? ns : -1;
+    }
+
+    /** Prints the requests per second of a transport and the connections it used */
+    private static void time(String name, ServerTransport transport, int threads, int requests)
+        throws InterruptedException {
+        run(transport, threads, requests / 10 + 1);
+        s_ports.clear();
+        long ns = run(transport, threads, requests);
+        if (ns < 0) {
+            System.out.println(name + " with " + threads + " threads: a request failed");
+            System.exit(1);
+        }
+        System.out.printf("%-22s %7d  %10.0f  %11d%n", name, threads,
+                          requests / (ns / 1.0e9), s_ports.size());
+    }
+
+    public static void main(String args[]) throws Exception {
+        int requests = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+        // Keep as many idle connections as threads, for every transport,
+        // and don't let the stand-in wait for delayed ACKs (Nagle)
+        System.setProperty("http.maxConnections", "16");
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        HttpServer server = startServer();
+        int port = server.getAddress().getPort();
+        ServerProxy proxy = new ServerProxy("127.0.0.1", port);
+
+        System.out.println("transport              threads  requests/s  connections");
+        for (int threads = 1; threads <= 16; threads *= 4) {
+            time("doJsonRequest (legacy)", new Legacy(port), threads, requests);
+            time("UrlConnectionTransport", new UrlConnectionTransport("127.0.0.1", port, threads),
+                 threads, requests);
+            ServerTransport http2 = proxy.newTransport(true, threads);
+            if (http2 instanceof UrlConnectionTransport)
+                System.out.println("(no HttpClientTransport: built by \"make http2\", Java 11 or later)");
+            else
+                time("HttpClientTransport", http2, threads, requests);
+            http2.close();
+        }
+        server.stop(0);
+        System.exit(0);
+    }
+}
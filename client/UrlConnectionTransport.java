@@ -0,0 +1,125 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+   The ServerTransport of HttpURLConnection, on any JVM.
+
+   <p>HttpURLConnection keeps a connection open for the next request
+   only once the answer was read to its end, the error body included,
+   and its stream closed; then the requests to the server reuse up to
+   http.maxConnections (5 by default) idle connections. At most
+   max_connections requests run at once, until the body of their answer
+   is closed; the others wait for one to end, within their deadline.
+
+   <p>The request body is sent in chunks as it is written, so it is not
+   held in memory. A server that wants its length (411 Length
+   Required) gets the next requests with it, held whole by
+   HttpURLConnection as written: compressed, if the caller compresses
+   it.
+
+   <p>The deadline bounds the wait for a free connection, the TCP
+   connection and each read of the answer.
+*/
+public class UrlConnectionTransport implements ServerTransport {
+    private final static Logger LOGGER = Logger.getLogger(UrlConnectionTransport.class.getName());
+
+    private final String m_hostname;
+    private final int m_port;
+    private final Semaphore m_slots;
+    /** False once the server refused a chunked request body */
+    private volatile boolean m_chunked = true;
+
+    public UrlConnectionTransport(String hostname, int port, int max_connections) {
+        m_hostname = hostname;
+        m_port = port;
+        m_slots = new Semaphore(Math.max(1, max_connections), true);
+    }
+
+    public Response post(String path, Map<String, String> headers, Body body, long timeout_ms)
+        throws IOException {
+        long deadline = System.currentTimeMillis() + timeout_ms;
+        try {
+            if (!m_slots.tryAcquire(timeout_ms, TimeUnit.MILLISECONDS))
+                throw new SocketTimeoutException("No connection to the server free in " + timeout_ms + "ms");
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a connection to the server");
+        }
+        boolean answered = false;
+        try {
+            HttpURLConnection connection;
+            int status;
+            InputStream input;
+            while (true) {
+                boolean chunked = m_chunked;
+                connection = (HttpURLConnection)new URL("http", m_hostname, m_port, path).openConnection();
+                connection.setDoOutput(true);
+                connection.setRequestMethod("POST");
+                if (chunked)
+                    connection.setChunkedStreamingMode(0);
+                for (Map.Entry<String, String> h : headers.entrySet())
+                    connection.setRequestProperty(h.getKey(), h.getValue());
+                connection.setConnectTimeout(remaining(deadline));
+                connection.setReadTimeout(remaining(deadline));
+
+                OutputStream output = connection.getOutputStream();
+                try {
+                    body.writeTo(output);
+                }
+                finally {
+                    output.close();
+                }
+
+                connection.setReadTimeout(remaining(deadline));
+                status = connection.getResponseCode();
+                input = (status >= 400) ? connection.getErrorStream() :
+                    connection.getInputStream();
+                if (input == null)
+                    input = new ByteArrayInputStream(new byte[0]);
+                if (!chunked || status != HttpURLConnection.HTTP_LENGTH_REQUIRED)
+                    break;
+                new Response(status, null, input).discard();
+                LOGGER.info("The server refused a chunked request, sending the requests with their length.");
+                m_chunked = false;
+            }
+
+            Map<String, String> answer_headers = new HashMap<String, String>();
+            for (Map.Entry<String, List<String>> h : connection.getHeaderFields().entrySet())
+                if (h.getKey() != null && !h.getValue().isEmpty())
+                    answer_headers.put(h.getKey().toLowerCase(), h.getValue().get(0));
+            Response response = new Response(status, answer_headers, new SlotStream(input, m_slots));
+            answered = true;
+            return response;
+        }
+        finally {
+            //Else the slot is given back with the body of the answer
+            if (!answered)
+                m_slots.release();
+        }
+    }
+
+    /** @return the time left before deadline, at least 1ms as 0 would be no timeout */
+    private static int remaining(long deadline) throws SocketTimeoutException {
+        long left = deadline - System.currentTimeMillis();
+        if (left <= 0)
+            throw new SocketTimeoutException("Server request deadline passed");
+        return (int)Math.min(Integer.MAX_VALUE, left);
+    }
+
+    /** The connections are HttpURLConnection's; it closes them when idle. */
+    public void close() {
+    }
+}
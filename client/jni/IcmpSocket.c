@@ -0,0 +1,265 @@
+/*
+ * JNI shim for IcmpSocket.java: Linux unprivileged ICMP sockets
+ * (SOCK_DGRAM / IPPROTO_ICMP), see net.ipv4.ping_group_range.
+ *
+ * Build with "make native" in the client directory.
+ */
+#include <jni.h>
+
+#include <errno.h>
+#include <poll.h>
+#include <stdio.h>
+#include <string.h>
+#include <unistd.h>
+#include <arpa/inet.h>
+#include <netinet/in.h>
+#include <linux/errqueue.h>
+#include <sys/socket.h>
+#include <sys/types.h>
+#include <sys/uio.h>
+
+#define ICMP_ECHO_REQUEST 8
+#define ICMP6_ECHO_REQUEST 128
+#define MAX_PACKET 1500
+
+static void throwIOException(JNIEnv *env, const char *what)
+{
+    char msg[256];
+    jclass cls = (*env)->FindClass(env, "java/io/IOException");
+    if (cls == NULL)
+        return;
+    snprintf(msg, sizeof(msg), "%s: %s", what, strerror(errno));
+    (*env)->ThrowNew(env, cls, msg);
+}
+
+static unsigned short checksum(const unsigned char *buf, int len)
+{
+    unsigned long sum = 0;
+    int i;
+    for (i = 0; i + 1 < len; i += 2)
+        sum += (buf[i] << 8) | buf[i + 1];
+    if (len & 1)
+        sum += buf[len - 1] << 8;
+    while (sum >> 16)
+        sum = (sum & 0xffff) + (sum >> 16);
+    return (unsigned short)~sum;
+}
+
+/* Fills a sockaddr from a Java byte[] of length 4 or 16. */
+static socklen_t toSockaddr(JNIEnv *env, jbyteArray addr,
+                            struct sockaddr_storage *ss)
+{
+    jsize len = (*env)->GetArrayLength(env, addr);
+    memset(ss, 0, sizeof(*ss));
+    if (len == 4) {
+        struct sockaddr_in *sin = (struct sockaddr_in *)ss;
+        sin->sin_family = AF_INET;
+        (*env)->GetByteArrayRegion(env, addr, 0, 4, (jbyte *)&sin->sin_addr);
+        return sizeof(*sin);
+    }
+    else if (len == 16) {
+        struct sockaddr_in6 *sin6 = (struct sockaddr_in6 *)ss;
+        sin6->sin6_family = AF_INET6;
+        (*env)->GetByteArrayRegion(env, addr, 0, 16, (jbyte *)&sin6->sin6_addr);
+        return sizeof(*sin6);
+    }
+    return 0;
+}
+
+/* Copies the source address into the Java byte[16], returns its length. */
+static int fromSockaddr(JNIEnv *env, const struct sockaddr_storage *ss,
+                        jbyteArray from)
+{
+    if (ss->ss_family == AF_INET) {
+        const struct sockaddr_in *sin = (const struct sockaddr_in *)ss;
+        (*env)->SetByteArrayRegion(env, from, 0, 4, (const jbyte *)&sin->sin_addr);
+        return 4;
+    }
+    else if (ss->ss_family == AF_INET6) {
+        const struct sockaddr_in6 *sin6 = (const struct sockaddr_in6 *)ss;
+        (*env)->SetByteArrayRegion(env, from, 0, 16, (const jbyte *)&sin6->sin6_addr);
+        return 16;
+    }
+    return 0;
+}
+
+JNIEXPORT jint JNICALL
+Java_IcmpSocket_nativeOpen(JNIEnv *env, jclass cls, jboolean ipv6)
+{
+    int fd;
+    int on = 1;
+    if (ipv6)
+        fd = socket(AF_INET6, SOCK_DGRAM, IPPROTO_ICMPV6);
+    else
+        fd = socket(AF_INET, SOCK_DGRAM, IPPROTO_ICMP);
+    if (fd < 0) {
+        throwIOException(env, "socket");
+        return fd;
+    }
+    /* Have ICMP errors about our requests (time exceeded, unreachable)
+       queued on the error queue, with the address of the router. */
+    if (ipv6)
+        setsockopt(fd, IPPROTO_IPV6, IPV6_RECVERR, &on, sizeof(on));
+    else
+        setsockopt(fd, IPPROTO_IP, IP_RECVERR, &on, sizeof(on));
+    return fd;
+}
+
+JNIEXPORT void JNICALL
+Java_IcmpSocket_nativeSend(JNIEnv *env, jclass cls, jint fd, jbyteArray addr,
+                           jint sequence, jint payload_size, jint ttl)
+{
+    unsigned char packet[MAX_PACKET];
+    struct sockaddr_storage ss;
+    socklen_t ss_len = toSockaddr(env, addr, &ss);
+    int len = 8 + payload_size;
+    unsigned short sum;
+    int i;
+
+    if (ss_len == 0 || len > MAX_PACKET) {
+        errno = EINVAL;
+        throwIOException(env, "sendto");
+        return;
+    }
+
+    memset(packet, 0, len);
+    packet[0] = (ss.ss_family == AF_INET6) ? ICMP6_ECHO_REQUEST : ICMP_ECHO_REQUEST;
+    /* packet[4..5] is the identifier, overwritten by the kernel. */
+    packet[6] = (sequence >> 8) & 0xff;
+    packet[7] = sequence & 0xff;
+    for (i = 8; i < len; i++)
+        packet[i] = (unsigned char)i;
+    /* The kernel computes the ICMPv6 checksum itself. */
+    if (ss.ss_family == AF_INET) {
+        sum = checksum(packet, len);
+        packet[2] = sum >> 8;
+        packet[3] = sum & 0xff;
+    }
+
+    /* A ttl of 0 keeps the current one. The caller serializes sends. */
+    if (ttl > 0) {
+        int r;
+        if (ss.ss_family == AF_INET6)
+            r = setsockopt(fd, IPPROTO_IPV6, IPV6_UNICAST_HOPS, &ttl, sizeof(ttl));
+        else
+            r = setsockopt(fd, IPPROTO_IP, IP_TTL, &ttl, sizeof(ttl));
+        if (r < 0) {
+            throwIOException(env, "setsockopt");
+            return;
+        }
+    }
+
+    if (sendto(fd, packet, len, 0, (struct sockaddr *)&ss, ss_len) < 0)
+        throwIOException(env, "sendto");
+}
+
+/*
+ * Reads one message from the error queue. Returns the length of the
+ * offender address, or 0 if the entry is not an ICMP error.
+ */
+static int receiveError(JNIEnv *env, jint fd, jbyteArray from, jintArray info)
+{
+    unsigned char packet[MAX_PACKET];
+    char control[512];
+    struct sockaddr_storage ss;
+    struct iovec iov;
+    struct msghdr msg;
+    struct cmsghdr *cmsg;
+    jint values[3];
+    ssize_t n;
+
+    iov.iov_base = packet;
+    iov.iov_len = sizeof(packet);
+    memset(&msg, 0, sizeof(msg));
+    msg.msg_name = &ss;
+    msg.msg_namelen = sizeof(ss);
+    msg.msg_iov = &iov;
+    msg.msg_iovlen = 1;
+    msg.msg_control = control;
+    msg.msg_controllen = sizeof(control);
+
+    n = recvmsg(fd, &msg, MSG_ERRQUEUE | MSG_DONTWAIT);
+    if (n < 0) {
+        if (errno == EAGAIN || errno == EWOULDBLOCK || errno == EINTR)
+            return 0;
+        throwIOException(env, "recvmsg");
+        return 0;
+    }
+
+    for (cmsg = CMSG_FIRSTHDR(&msg); cmsg != NULL; cmsg = CMSG_NXTHDR(&msg, cmsg)) {
+        struct sock_extended_err *ee;
+        struct sockaddr_storage offender;
+        if (!((cmsg->cmsg_level == IPPROTO_IP && cmsg->cmsg_type == IP_RECVERR) ||
+              (cmsg->cmsg_level == IPPROTO_IPV6 && cmsg->cmsg_type == IPV6_RECVERR)))
+            continue;
+        ee = (struct sock_extended_err *)CMSG_DATA(cmsg);
+        if (ee->ee_origin != SO_EE_ORIGIN_ICMP && ee->ee_origin != SO_EE_ORIGIN_ICMP6)
+            return 0;
+        if (n < 8)
+            return 0;
+        /* The data is our own echo request, which has the sequence. */
+        values[0] = ee->ee_type;
+        values[1] = ee->ee_code;
+        values[2] = (packet[6] << 8) | packet[7];
+        (*env)->SetIntArrayRegion(env, info, 0, 3, values);
+        memset(&offender, 0, sizeof(offender));
+        if (ee->ee_origin == SO_EE_ORIGIN_ICMP6)
+            memcpy(&offender, SO_EE_OFFENDER(ee), sizeof(struct sockaddr_in6));
+        else
+            memcpy(&offender, SO_EE_OFFENDER(ee), sizeof(struct sockaddr_in));
+        return fromSockaddr(env, &offender, from);
+    }
+    return 0;
+}
+
+JNIEXPORT jint JNICALL
+Java_IcmpSocket_nativeReceive(JNIEnv *env, jclass cls, jint fd, jint timeout_ms,
+                              jbyteArray from, jintArray info)
+{
+    unsigned char packet[MAX_PACKET];
+    struct sockaddr_storage ss;
+    socklen_t ss_len = sizeof(ss);
+    struct pollfd pfd;
+    jint values[3];
+    ssize_t n;
+    int r;
+
+    pfd.fd = fd;
+    pfd.events = POLLIN;
+    pfd.revents = 0;
+    r = poll(&pfd, 1, timeout_ms);
+    if (r < 0) {
+        if (errno == EINTR)
+            return 0;
+        throwIOException(env, "poll");
+        return 0;
+    }
+    if (r == 0)
+        return 0;
+    if (pfd.revents & POLLERR)
+        return receiveError(env, fd, from, info);
+
+    n = recvfrom(fd, packet, sizeof(packet), MSG_DONTWAIT,
+                 (struct sockaddr *)&ss, &ss_len);
+    if (n < 0) {
+        if (errno == EAGAIN || errno == EWOULDBLOCK || errno == EINTR)
+            return 0;
+        throwIOException(env, "recvfrom");
+        return 0;
+    }
+    if (n < 8)
+        return 0;
+
+    /* Ping sockets deliver the ICMP message without the IP header. */
+    values[0] = packet[0];
+    values[1] = packet[1];
+    values[2] = (packet[6] << 8) | packet[7];
+    (*env)->SetIntArrayRegion(env, info, 0, 3, values);
+    return fromSockaddr(env, &ss, from);
+}
+
+JNIEXPORT void JNICALL
+Java_IcmpSocket_nativeClose(JNIEnv *env, jclass cls, jint fd)
+{
+    close(fd);
+}
@@ -0,0 +1,194 @@
+"""Decoder of the binary format of the submissions of results.
+
+The client sends its results in this format (ResultCodec.java) instead
+of JSON when the server advertised it with the header
+X-Pings-Results-Format: pr1. decode() gives back the request as the
+JSON of a text submission would have it: its fields, and "results", the
+list of the results as Prober.getLastProbe() text, None for the results
+not done. The web server hands that to submit_ping_results, so what is
+stored does not change.
+
+To print the submissions saved to files:
+
+    python -m pings.results_codec file...
+"""
+import json
+import sys
+
+FORMAT = 'pr1'
+HEADER = 'X-Pings-Results-Format'
+CONTENT_TYPE = 'application/x-pings-results'
+VERSION = 1
+
+# Record types.
+NULL, TEXT, ICMP, TCP, TROUTE, COMPOSITE = range(6)
+
+# TROUTE probe kinds, plus FLAGGED when a flag follows.
+LOST, SAME_FROM, NEW_FROM, FLAGGED = 0, 1, 2, 4
+
+# TCP attempt status, as the text shows them before the time.
+TCP_PREFIXES = (' ', ' !', ' *', ' ?')
+TCP_TIMEOUT = 2
+
+
+class DecodeError(ValueError):
+    pass
+
+
+def _ms(us):
+    """A time in microseconds as the text shows it."""
+    return '%d.%03dms' % divmod(us, 1000)
+
+
+def _address(data):
+    """An address as Java's InetAddress.getHostAddress() writes it."""
+    if len(data) == 4:
+        return '%d.%d.%d.%d' % tuple(data)
+    if len(data) == 16:
+        # Every group, no "::".
+        return ':'.join('%x' % (data[i] << 8 | data[i + 1])
+                        for i in range(0, 16, 2))
+    raise DecodeError('Bad address length %d' % len(data))
+
+
+class _Decoder(object):
+    def __init__(self, data):
+        self.data = bytearray(data)
+        self.pos = 0
+        self.addresses = []
+        self.last_us = 0
+
+    def byte(self):
+        if self.pos >= len(self.data):
+            raise DecodeError('Truncated submission of results')
+        b = self.data[self.pos]
+        self.pos += 1
+        return b
+
+    def bytes(self, n):
+        if self.pos + n > len(self.data):
+            raise DecodeError('Truncated submission of results')
+        b = self.data[self.pos:self.pos + n]
+        self.pos += n
+        return b
+
+    def varint(self):
+        n = 0
+        shift = 0
+        while shift < 64:
+            b = self.byte()
+            n |= (b & 0x7f) << shift
+            if not b & 0x80:
+                return n
+            shift += 7
+        raise DecodeError('Varint too long')
+
+    def signed(self):
+        n = self.varint()
+        return (n >> 1) ^ -(n & 1)
+
+    def time(self):
+        self.last_us += self.signed()
+        return self.last_us
+
+    def string(self):
+        n = self.varint()
+        if n == 0:
+            return None
+        return self.bytes(n - 1).decode('utf-8')
+
+    def address(self):
+        index = self.varint()
+        if index > 0:
+            if index > len(self.addresses):
+                raise DecodeError('Unknown address index %d' % index)
+            return self.addresses[index - 1]
+        address = _address(self.bytes(self.byte()))
+        self.addresses.append(address)
+        return address
+
+    def record(self, kind):
+        self.last_us = 0
+        if kind == NULL:
+            return None
+        if kind == TEXT:
+            return self.string()
+        if kind == ICMP:
+            target = self.address()
+            sent, received, total_ms = (self.signed(), self.signed(),
+                                        self.signed())
+            text = ['ICMP %s %d %d %dms' % (target, sent, received, total_ms)]
+            for i in range(self.varint()):
+                text.append(_ms(self.time()))
+            return ' '.join(text)
+        if kind == TCP:
+            target = self.address()
+            port = self.varint()
+            sent, received, timeout_ms = (self.signed(), self.signed(),
+                                          self.signed())
+            text = ['TCP %s:%d %d %d %d' % (target, port, sent, received,
+                                            timeout_ms)]
+            for i in range(self.varint()):
+                v = self.varint()
+                status = v & 3
+                text.append(TCP_PREFIXES[status])
+                if status != TCP_TIMEOUT:
+                    n = v >> 2
+                    self.last_us += (n >> 1) ^ -(n & 1)
+                    text.append(_ms(self.last_us))
+            return ''.join(text)
+        if kind == TROUTE:
+            target = self.address()
+            hops = []
+            for h in range(self.varint()):
+                hop = [str(self.varint())]
+                last_from = None
+                for q in range(self.varint()):
+                    probe = self.byte()
+                    if probe & 3 == LOST:
+                        hop.append('*')
+                        continue
+                    if probe & 3 == NEW_FROM:
+                        address = self.address()
+                        if address != last_from:
+                            hop.append(address)
+                        last_from = address
+                    flag = self.string() if probe & FLAGGED else None
+                    hop.append(_ms(self.time()))
+                    if flag is not None:
+                        hop.append(flag)
+                hops.append(' '.join(hop))
+            if not hops:
+                return 'TROUTE %s TIMEOUT' % target
+            return 'TROUTE %s %s' % (target, ','.join(hops))
+        if kind == COMPOSITE:
+            return '; '.join(self.record(self.byte())
+                             for i in range(self.varint()))
+        raise DecodeError('Unknown result record type %d' % kind)
+
+    def submission(self):
+        if self.bytes(2) != bytearray(b'PR'):
+            raise DecodeError('Not a submission of results')
+        version = self.byte()
+        if version != VERSION:
+            raise DecodeError('Unknown results format version %d' % version)
+        request = {}
+        for i in range(self.varint()):
+            key = self.string()
+            request[key] = self.string()
+        request['results'] = [self.record(self.byte())
+                              for i in range(self.varint())]
+        return request
+
+
+def decode(data):
+    """Returns the request of a submission of results in the binary
+    format, as a dict like the JSON of a text submission. Raises
+    DecodeError if data is not one."""
+    return _Decoder(data).submission()
+
+
+if __name__ == '__main__':
+    for name in sys.argv[1:]:
+        with open(name, 'rb') as f:
+            print(json.dumps(decode(f.read()), indent=1))
@@ -0,0 +1,50 @@
+"""Checks the decoder of pings.results_codec against a submission
+encoded by the client (ResultCodec.java): test_results_codec.pr1 must
+decode to test_results_codec.json, the same submission as the client
+sends it in JSON. After a change of the format, write them again from
+the client directory with:
+
+    java ResultCodecBenchmark --fixture ../server/pings/test_results_codec
+"""
+import io
+import json
+import os
+
+# mut: module under test
+import pings.results_codec as mut
+
+FIXTURE = os.path.join(os.path.dirname(__file__), 'test_results_codec')
+
+
+def read_fixture():
+    with open(FIXTURE + '.pr1', 'rb') as f:
+        data = f.read()
+    with io.open(FIXTURE + '.json', encoding='utf-8') as f:
+        expected = json.load(f)
+    return data, expected
+
+
+def test_decode_fields():
+    data, expected = read_fixture()
+    request = mut.decode(data)
+    del request['results']
+    del expected['results']
+    assert request == expected
+
+
+def test_decode_results():
+    data, expected = read_fixture()
+    results = mut.decode(data)['results']
+    assert len(results) == len(expected['results'])
+    for i, (actual, text) in enumerate(zip(results, expected['results'])):
+        assert actual == text, 'result %d: %r != %r' % (i, actual, text)
+
+
+def test_truncated():
+    data, expected = read_fixture()
+    try:
+        mut.decode(data[:len(data) // 2])
+    except mut.DecodeError:
+        pass
+    else:
+        assert False, 'A truncated submission was decoded'
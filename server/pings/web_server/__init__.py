@@ -39,7 +39,11 @@ def main(global_config, **settings):
     config_parser = ConfigParser.SafeConfigParser()
     config_parser.read(global_config['__file__'])
     init_geoip()
-    init_web_service(config_parser.getint('web_service', 'num_addresses'))
+    probe_plan = None
+    if config_parser.has_option('web_service', 'probe_plan'):
+        probe_plan = config_parser.get('web_service', 'probe_plan')
+    init_web_service(config_parser.getint('web_service', 'num_addresses'),
+                     probe_plan)
     init_storage_zmq(_get_config_list(config_parser,
                                       'storage_client', 'server_url'))
     init_rankings_zmq(config_parser.get('leaderboards_client',
@@ -53,8 +57,10 @@ def main(global_config, **settings):
     config.add_route('main', '/')
     config.add_route('get_pings', '/get_pings')
     config.add_route('submit_ping_results', '/submit_ping_results')
+    config.add_route('exchange', '/exchange')
     config.add_route('hello', '/hello/{name}')
     config.add_route('feedback', '/feedback.py')
+    config.add_tween('pings.web_server.encoding.gzip_tween_factory')
     config.scan()
 
     return config.make_wsgi_app()
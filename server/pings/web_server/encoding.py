@@ -0,0 +1,104 @@
+"""Content-Encoding negotiation for the JSON requests of the client.
+
+The client streams its requests in chunks (Transfer-Encoding: chunked),
+without a Content-Length: their body is read here to its end, up to
+MAX_BODY bytes, before the views see them.
+
+The answers to /get_pings, /submit_ping_results and /exchange carry an
+"Accept-Encoding: gzip" header (RFC 7694): it tells the client it may
+send its next requests compressed. Requests with "Content-Encoding:
+gzip" are decompressed before the views see them, up to MAX_BODY
+bytes (413 beyond, so a small gzip bomb cannot take the memory of the
+server), other codings are
+refused with 415 and the same header, so the client falls back to an
+uncompressed request. Answers are compressed for clients that accept
+gzip, once they are big enough to gain from it.
+
+The answers also carry "X-Pings-Results-Format: pr1": the client may
+then submit its results in the binary format of pings.results_codec,
+which is decoded here to the JSON of a text submission."""
+import json
+import zlib
+
+from pyramid.httpexceptions import (HTTPBadRequest,
+                                    HTTPRequestEntityTooLarge,
+                                    HTTPUnsupportedMediaType)
+
+from pings import results_codec
+
+JSON_PATHS = ('/get_pings', '/submit_ping_results', '/exchange')
+
+# Answers smaller than this are not worth compressing.
+MIN_GZIP_SIZE = 1024
+
+# Most bytes a chunked request may have, and a compressed one may
+# expand to: far more than the results of the largest Pings.
+MAX_BODY = 16 * 1024 * 1024
+
+
+def read_chunked(stream):
+    """Reads a request body sent in chunks to its end (the server undoes
+    the chunking). Returns None if it has more than MAX_BODY bytes."""
+    parts = []
+    size = 0
+    while True:
+        data = stream.read(64 * 1024)
+        if not data:
+            return ''.join(parts)
+        size += len(data)
+        if size > MAX_BODY:
+            return None
+        parts.append(data)
+
+
+def gzip_tween_factory(handler, registry):
+    def gzip_tween(request):
+        if request.path not in JSON_PATHS:
+            return handler(request)
+
+        if (request.content_length is None and
+            request.headers.get('Transfer-Encoding', '').lower() == 'chunked'):
+            body = read_chunked(request.environ['wsgi.input'])
+            if body is None:
+                return HTTPRequestEntityTooLarge(
+                    'The request body has more than %d bytes.' % MAX_BODY)
+            request.body = body
+
+        encoding = request.headers.get('Content-Encoding', 'identity')
+        encoding = encoding.strip().lower()
+        if encoding == 'gzip':
+            try:
+                # 16 + MAX_WBITS: a gzip header and trailer around the data.
+                decompressor = zlib.decompressobj(16 + zlib.MAX_WBITS)
+                body = decompressor.decompress(request.body, MAX_BODY)
+            except zlib.error:
+                return HTTPBadRequest('Bad gzip request body.')
+            if decompressor.unconsumed_tail or len(body) >= MAX_BODY:
+                return HTTPRequestEntityTooLarge(
+                    'The request body expands to more than %d bytes.' %
+                    MAX_BODY)
+            request.body = body
+            del request.headers['Content-Encoding']
+        elif encoding != 'identity':
+            response = HTTPUnsupportedMediaType()
+            response.headers['Accept-Encoding'] = 'gzip'
+            return response
+
+        if request.content_type == results_codec.CONTENT_TYPE:
+            try:
+                submission = results_codec.decode(request.body)
+            except results_codec.DecodeError, e:
+                return HTTPBadRequest('Bad binary results: %s' % e)
+            request.body = json.dumps(submission)
+            request.content_type = 'application/json'
+
+        response = handler(request)
+        response.headers['Accept-Encoding'] = 'gzip'
+        response.headers[results_codec.HEADER] = results_codec.FORMAT
+        response.vary = ('Accept-Encoding',)
+        if ('gzip' in request.accept_encoding and
+            response.content_encoding is None and
+            len(response.body) >= MIN_GZIP_SIZE):
+            response.encode_content('gzip')
+        return response
+    return gzip_tween
@@ -1,3 +1,4 @@
+import collections
 import cPickle
 import logging
 import os
@@ -98,10 +99,20 @@ class Root(object):
 #  and less then len(last_clients) * probability_to_ping
 _num_addresses = 15
 
+# The probe plan sent to the clients, None to let them use their own.
+# See ProbePlan.java in the client for the syntax.
+_probe_plan = None
 
-def init_web_service(num_addresses):
-    global _num_addresses
+
+def init_web_service(num_addresses, probe_plan=None):
+    global _num_addresses, _probe_plan
     _num_addresses = num_addresses
+    _probe_plan = probe_plan
+
+
+def get_probe_plan():
+    """Returns the probe plan for the clients, or None."""
+    return _probe_plan
 
 
 def get_token():
@@ -110,6 +121,26 @@ def get_token():
     return token
 
 
+# The (token, part) of the last submissions stored, oldest first, so a
+# submission the client sends again (when the answer to it was lost)
+# is neither stored nor scored twice. The clients retry within minutes,
+# many fewer submissions than this are made meanwhile.
+MAX_SUBMISSIONS_KEPT = 100000
+_submissions = collections.OrderedDict()
+
+
+def is_new_submission(token, part):
+    """Returns True, and remembers it, if no submission of token and
+    part (None for all the results of the token) was stored yet."""
+    key = (token, part)
+    if key in _submissions:
+        return False
+    _submissions[key] = True
+    if len(_submissions) > MAX_SUBMISSIONS_KEPT:
+        _submissions.popitem(last=False)
+    return True
+
+
 # The address of the server that all clients should ping
 always_up_addresses = ["173.194.73.104", "183.60.136.45", "195.22.144.60"]
 # The probability that we ping an reference ip and used for the prob to
@@ -204,9 +235,13 @@ def get_int_from_ip(ip):
                                  (int_parts[1] + 256 * int_parts[0]))
 
 
-def get_pings(client_addr):
+def get_pings(client_addr, num_addresses=None):
     """Returns a list (of length 'num_addresses') of IP addresses to be
-    pinged."""
+    pinged. The client may ask for fewer addresses than the configured
+    number, not more."""
+    if num_addresses is None:
+        num_addresses = _num_addresses
+    num_addresses = max(1, min(num_addresses, _num_addresses))
     ip_addresses = []
 
     # Add some reference address to ping.
@@ -219,11 +254,11 @@ def get_pings(client_addr):
     # Do not ping clients when the cache is too low
     # Otherwise, this could cause a DDoS attack.
     if len(last_clients) > 9:
-        # Add up to half of _num_addresses from other peers
-        nb_cli_ip = _num_addresses / 3
+        # Add up to half of num_addresses from other peers
+        nb_cli_ip = num_addresses / 3
         num_tries = 0
         # If too few past clients, lower the prob to ping them.
-        max_tries = min(_num_addresses,
+        max_tries = min(num_addresses,
                         len(last_clients) * probability_to_ping)
         while len(ip_addresses) < nb_cli_ip and num_tries < max_tries:
             num_tries += 1
@@ -238,7 +273,7 @@ def get_pings(client_addr):
 
     # Get ip from the list of know good ip. If we know enough client,
     # 1/3 ip are clients, 1/3 are known pignable and 1/3 are random.
-    n = (_num_addresses - len(ip_addresses)) / 2
+    n = (num_addresses - len(ip_addresses)) / 2
     if len(known_pignable) > (2 * n):
         for i in range(n):
             random_ip = known_pignable.get_random()
@@ -261,8 +296,8 @@ def get_pings(client_addr):
     # The num_tries < max_tries part of the loop is to guarantee that
     # this function executes in a bounded time.
     num_tries = 0
-    max_tries = _num_addresses * 6
-    while len(ip_addresses) < _num_addresses and num_tries < max_tries:
+    max_tries = num_addresses * 6
+    while len(ip_addresses) < num_addresses and num_tries < max_tries:
         num_tries += 1
         # Create a random IPv4 address. Exclude 0.0.0.0 and 255.255.255.255.
         ip = ipaddr.IPv4Address(random.randint(1, 2 ** 32 - 2))
@@ -331,13 +366,10 @@ def get_geoip_data(ip_addresses):
     return results
 
 
-def update_leaderboards(userid, results):
-    """Computes the number of points which the ping results is worth, and
-    sends a request to the leaderboards server to add that number to
-    the leaderboards for the given userid."""
-    # Compute how many points the given results are worth.
-    points = len(results)
-
+def update_leaderboards(userid, points):
+    """Sends a request to the leaderboards server to add points, the
+    worth of the ping results submitted, to the leaderboards for the
+    given userid."""
     # Send them to server.
     logger.debug('Adding %d to score of user "%s"', points, userid)
     zmq_incr_score_socket.send_json({'userid': userid,
@@ -363,7 +395,8 @@ def store_known_pignable(results):
     now = time.time()
     try:
         for res in results:
-            if res.startswith("ICMP"):
+            # Results not done are null, and in the other part if any.
+            if res is not None and res.startswith("ICMP"):
                 sp = res.split()
                 t = sp[4]
                 if t.endswith("ms;"):
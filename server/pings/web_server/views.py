@@ -37,6 +37,9 @@ last_nb_get_pings = 0
 nb_submited_requests = 0
 nb_submited_results = 0
 nb_feedback = 0
+# The client puts its address, its interface and its OS before the
+# results of its probes.
+CLIENT_HEADER_SIZE = 3
 last_nb_feedback = 0
 last_nb_submited_requests = 0
 
@@ -82,6 +85,14 @@ def get_client_ip(request):
              renderer='json', request_method='POST')
 def get_pings(request):
     """Called by the client to get a list of addresses to ping."""
+    return next_pings(request)
+
+
+def next_pings(request, num_addresses=None):
+    """Returns the answer to a request for addresses to ping: the
+    addresses, their geoip data and the client's, the token under which
+    to submit the results. num_addresses is the number of addresses the
+    client asked for, None for the configured number."""
     global nb_get_pings, min_round_time
     global last_time, last_nb_get_pings, time_table_idx
     global nb_submited_requests, nb_submited_results, last_nb_submited_requests
@@ -90,7 +101,7 @@ def get_pings(request):
     client_addr = get_client_ip(request)
     logger.debug('get_pings request client address: %s', client_addr)
 
-    ip_addresses = resources.get_pings(client_addr)
+    ip_addresses = resources.get_pings(client_addr, num_addresses)
     token = resources.get_token()
     uuid = request.json_body.get("uuid")
     nick = request.json_body.get('userid')
@@ -141,18 +152,48 @@ def get_pings(request):
         last_nb_submited_requests = nb_submited_requests
         last_nb_feedback = nb_feedback
 
-    return {'token': token,
-            'pings': ip_addresses,
-            'geoip': resources.get_geoip_data(ip_addresses),
-            'client_geoip': resources.get_geoip_data([client_addr])[0],
-            'client_ip': client_addr,
-            'min_round_time': min_round_time}  # in seconds
+    response = {'token': token,
+                'pings': ip_addresses,
+                'geoip': resources.get_geoip_data(ip_addresses),
+                'client_geoip': resources.get_geoip_data([client_addr])[0],
+                'client_ip': client_addr,
+                'min_round_time': min_round_time}  # in seconds
+    probe_plan = resources.get_probe_plan()
+    if probe_plan:
+        response['probe_plan'] = probe_plan
+    # Tells the client it can use /exchange for its next round.
+    response['exchange'] = True
+    return response
 
 
 @view_config(route_name='submit_ping_results',
              renderer='json', request_method='POST')
 def submit_ping_results(request):
     """Called by the client to submit the results of the addresses pinged."""
+    store_submission(request)
+    return {'success': True}
+
+
+@view_config(route_name='exchange',
+             renderer='json', request_method='POST')
+def exchange(request):
+    """Called by the client at the end of a round: submits its results,
+    as submit_ping_results, and gets the addresses of the next round,
+    as get_pings, in one request. Besides the fields of a submission,
+    the request has "next_size", the number of addresses the client
+    wants (0 for the configured number)."""
+    try:
+        num_addresses = int(request.json_body.get('next_size') or 0)
+    except (TypeError, ValueError):
+        raise HTTPBadRequest('Bad "next_size" field.')
+    store_submission(request)
+    logger.debug('exchange request: next_size=%d', num_addresses)
+    return next_pings(request, num_addresses or None)
+
+
+def store_submission(request):
+    """Stores the results of a submission and counts them for the
+    leaderboards."""
     global nb_submited_requests, nb_submited_results
 
     client_addr = get_client_ip(request)
@@ -165,17 +206,41 @@ def submit_ping_results(request):
     token = request.json_body.get('token')
     nick = request.json_body.get('userid')
     uuid = request.json_body.get('uuid')
+    # With a straggler cutoff, the client submits the results of a token
+    # in two parts: "first", the results done at the cutoff, then
+    # "rest", the others. Each part has null for the results of the other.
+    part = request.json_body.get('part')
 
     # Store results.
     results = request.json_body.get('results')
     if results is None:
         # FB: should return 400 client error
         raise HTTPBadRequest('No "results" field.')
+    if not resources.is_new_submission(token, part):
+        # Sent again as the answer to it was lost: already stored. The
+        # exchange view still answers with the next addresses.
+        logger.info('Ignoring the results of token %s sent again.', token)
+        return
 
     results.insert(0, client_addr)
     results.append("TOKEN=" + token)
     results.append("NICK=" + nick)
     results.append("UUID=" + uuid)
+
+    # One point per entry stored. With a cutoff, a part doesn't score
+    # the results of the other part (null), and only "first" scores
+    # the header and the entries added above, so the two parts add up
+    # to the points of the Pings submitted at once.
+    if part is None:
+        points = len(results)
+    elif part == 'first':
+        points = len([r for r in results if r is not None])
+    else:
+        points = len([r for r in results[1 + CLIENT_HEADER_SIZE:-3]
+                      if r is not None])
+
+    if part is not None:
+        results.append("PART=" + part)
     resources.store_results(results)
     resources.store_known_pignable(results)
     nb_submited_requests += 1
@@ -183,9 +248,7 @@ def submit_ping_results(request):
 
     # Update leaderboards if nick was passed.
     if nick is not None:
-        resources.update_leaderboards(nick, results)
-
-    return {'success': True}
+        resources.update_leaderboards(nick, points)
 
 
 @view_config(route_name='hello')